@@ -36,8 +36,10 @@ import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -57,6 +59,9 @@ import org.silvertunnel_ng.netlib.api.NetLayerIDs;
 import com.trsst.client.Client;
 import com.trsst.client.EntryOptions;
 import com.trsst.client.FeedOptions;
+import com.trsst.server.AbderaProvider;
+import com.trsst.server.FileStorage;
+import com.trsst.server.LuceneStorage;
 import com.trsst.server.Server;
 import com.trsst.server.TrsstAdapter;
 import com.trsst.ui.AppMain;
@@ -210,6 +215,7 @@ public class Command {
     private Options pullOptions;
     private Options mergedOptions;
     private Options postOptions;
+    private Options reindexOptions;
     private Option helpOption;
     private boolean format = false;
     private static boolean HAS_TOR = false;
@@ -403,6 +409,15 @@ public class Command {
         o.setLongOpt("strict");
         postOptions.addOption(o);
 
+        reindexOptions = new Options();
+
+        o = new Option(null, "Number of threads, default one per processor");
+        o.setRequired(false);
+        o.setArgs(1);
+        o.setArgName("count");
+        o.setLongOpt("threads");
+        reindexOptions.addOption(o);
+
         // merge options parameters
         mergedOptions = new Options();
         for (Object obj : pullOptions.getOptions()) {
@@ -414,6 +429,9 @@ public class Command {
         for (Object obj : portOptions.getOptions()) {
             mergedOptions.addOption((Option) obj);
         }
+        for (Object obj : reindexOptions.getOptions()) {
+            mergedOptions.addOption((Option) obj);
+        }
         helpOption = OptionBuilder.isRequired(false).withLongOpt("help")
                 .withDescription("Display these options").create('?');
         mergedOptions.addOption(helpOption);
@@ -466,6 +484,18 @@ public class Command {
                 return 0;
             }
 
+            // for offline index rebuilds
+            if ("reindex".equals(mode)) {
+                // rebuild the index and exit
+                return doReindex(commands, arguments);
+            }
+
+            // for offline storage layout upgrades
+            if ("migrate".equals(mode)) {
+                // migrate storage and exit
+                return doMigrate(commands, arguments);
+            }
+
             // attempt to parse next argument as a server url
             Client client = null;
             if (commands.hasOption("h")) {
@@ -708,6 +738,69 @@ public class Command {
         return 0; // "OK"
     }
 
+    public int doReindex(CommandLine commands, LinkedList<String> arguments) {
+
+        int threadsOption = Runtime.getRuntime().availableProcessors();
+        if (commands.hasOption("threads")) {
+            String threadsString = commands.getOptionValue("threads");
+            try {
+                threadsOption = Integer.parseInt(threadsString);
+            } catch (NumberFormatException t) {
+                threadsOption = 0;
+            }
+            if (threadsOption < 1) {
+                log.error("Invalid thread count: " + threadsString);
+                return 78; // "configuration error"
+            }
+        }
+
+        LuceneStorage storage;
+        try {
+            storage = AbderaProvider.createIndexedStorage();
+        } catch (IOException e) {
+            // most likely a running server holds the index lock
+            log.error("Could not open index: " + e);
+            return 71; // "system error"
+        }
+        System.err.println("Reindexing with " + threadsOption + " threads");
+        try {
+            storage.reindex(threadsOption, System.err);
+        } catch (IOException e) {
+            log.error("Could not reindex: " + e, e);
+            return 74; // "general io error"
+        } finally {
+            try {
+                storage.close();
+            } catch (IOException e) {
+                log.error("Could not close index: " + e);
+            }
+        }
+        return 0; // "OK"
+    }
+
+    public int doMigrate(CommandLine commands, LinkedList<String> arguments) {
+        // no need to migrate segment storage
+        List<File> roots = new LinkedList<File>();
+        roots.add(Common.getClientRoot());
+        roots.add(Common.getServerRoot());
+        Set<File> migrated = new HashSet<File>();
+        for (File root : roots) {
+            if (!root.exists()) {
+                continue;
+            }
+            try {
+                if (!migrated.add(root.getCanonicalFile())) {
+                    continue; // client and server share a root
+                }
+                new FileStorage(root).migrate(System.err);
+            } catch (IOException e) {
+                log.error("Could not migrate storage: " + root + " : " + e, e);
+                return 74; // "general io error"
+            }
+        }
+        return 0; // "OK"
+    }
+
     public int doPost(Client client, CommandLine commands,
             LinkedList<String> arguments, PrintStream out, InputStream in) {
 
@@ -1036,6 +1129,8 @@ public class Command {
         printPullUsage();
         printPushUsage();
         printPortUsage();
+        printReindexUsage();
+        printMigrateUsage();
     }
 
     private void printPullUsage() {
@@ -1056,6 +1151,18 @@ public class Command {
         formatter.printHelp("serve ", portOptions);
     }
 
+    private void printReindexUsage() {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.setSyntaxPrefix("");
+        formatter.printHelp("reindex ", reindexOptions);
+    }
+
+    private void printMigrateUsage() {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.setSyntaxPrefix("");
+        formatter.printHelp("migrate ", new Options());
+    }
+
     private void printPostUsage() {
         HelpFormatter formatter = new HelpFormatter();
         formatter.setSyntaxPrefix("");
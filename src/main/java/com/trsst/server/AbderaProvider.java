@@ -15,6 +15,7 @@ s * Copyright 2013 mpowers
  */
 package com.trsst.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.InetAddress;
@@ -208,7 +209,9 @@ public class AbderaProvider extends AbstractWorkspaceProvider implements
 
     /**
      * Override to return a custom storage instance. This implementation
-     * defaults to a single shared LuceneStorage instance.
+     * defaults to a single shared LuceneStorage instance. Cached content from
+     * other servers is kept in a SegmentStorage instead of a FileStorage if
+     * system property "com.trsst.server.storage.engine" is "segment".
      * 
      * @param feedId
      *            a hint for implementors
@@ -217,10 +220,7 @@ public class AbderaProvider extends AbstractWorkspaceProvider implements
     protected Storage getStorage() {
         if (sharedStorage == null) {
             try {
-                Storage clientStorage = new FileStorage(Common.getClientRoot());
-                Storage cacheStorage = new FileStorage(Common.getServerRoot());
-                sharedStorage = new LuceneStorage(cacheStorage, clientStorage);
-                sharedStorage = new CachingStorage(sharedStorage);
+                sharedStorage = new CachingStorage(createIndexedStorage());
             } catch (IOException e) {
                 log.error("Could not initialize storage", e);
             }
@@ -228,6 +228,25 @@ public class AbderaProvider extends AbstractWorkspaceProvider implements
         return sharedStorage;
     }
 
+    /**
+     * Creates the indexed storage shared by default: feeds managed by this
+     * server are persisted to the client root, and all other feeds are cached
+     * in the server root, in segments if the system property
+     * "com.trsst.server.storage.engine" is "segment".
+     */
+    public static LuceneStorage createIndexedStorage() throws IOException {
+        Storage clientStorage = new FileStorage(Common.getClientRoot());
+        Storage cacheStorage;
+        if ("segment".equals(System
+                .getProperty("com.trsst.server.storage.engine"))) {
+            cacheStorage = new SegmentStorage(new File(Common.getServerRoot(),
+                    "segments"));
+        } else {
+            cacheStorage = new FileStorage(Common.getServerRoot());
+        }
+        return new LuceneStorage(cacheStorage, clientStorage);
+    }
+
     /**
      * Override to return a custom adapter instance. This implementation
      * defaults to TrsstAdapter configured to use the result of
@@ -17,10 +17,14 @@
  */
 package com.trsst.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.util.Collection;
 import java.util.Enumeration;
@@ -44,7 +48,7 @@ import org.apache.abdera.protocol.server.multipart.MultipartInputStream;
 import org.apache.abdera.protocol.server.multipart.MultipartRelatedCollectionInfo;
 import org.apache.abdera.util.Constants;
 import org.apache.abdera.util.MimeTypeHelper;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
 
 @SuppressWarnings("unchecked")
 public abstract class AbstractMultipartAdapter extends
@@ -220,17 +224,43 @@ public abstract class AbstractMultipartAdapter extends
         return false;
     }
 
+    /**
+     * Decodes the base64 part into a temporary file, so that large attachments
+     * are never held on the heap; the file is deleted when the returned stream
+     * is closed.
+     */
     private InputStream getDataInputStream(InputStream stream)
             throws IOException {
-        Base64 base64 = new Base64();
-        ByteArrayOutputStream bo = new ByteArrayOutputStream();
-
-        byte[] buffer = new byte[1024];
-        int i;
-        while ((i = stream.read(buffer)) != -1) {
-            bo.write(buffer, 0, i);
+        final File temp = File.createTempFile("trsst-part-", ".tmp");
+        temp.deleteOnExit();
+        InputStream input = new Base64InputStream(stream);
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(
+                temp));
+        boolean complete = false;
+        try {
+            byte[] buffer = new byte[8192];
+            int i;
+            while ((i = input.read(buffer)) != -1) {
+                output.write(buffer, 0, i);
+            }
+            output.flush();
+            complete = true;
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+            if (!complete) {
+                temp.delete();
+            }
         }
-        return new ByteArrayInputStream(base64.decode(bo.toByteArray()));
+        return new BufferedInputStream(new FileInputStream(temp) {
+            public void close() throws IOException {
+                super.close();
+                temp.delete();
+            }
+        });
     }
 
     private <T extends Element> Document<T> getEntry(InputStream stream,
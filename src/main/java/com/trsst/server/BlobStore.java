@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+
+import com.trsst.Common;
+
+/**
+ * Stores resource content once per distinct content, keyed by the hex
+ * ripemd160 digest of the content, so that media reposted across feeds and
+ * entries takes the space of a single copy on disk and in the page cache.
+ *
+ * Each blob keeps the set of references to it in a file alongside it; a
+ * reference names the feed, entry, and resource that stores the content.
+ * Adding the same reference twice has no effect, and a blob is deleted when
+ * its last reference is removed. References are appended as they are added,
+ * and the file is only rewritten when a reference is removed.
+ *
+ * Several stores may share a root, in this process or another, so changes to
+ * a blob are made holding a lock on a byte of a lock file in the root chosen
+ * by the digest, and within this process a matching monitor shared by all
+ * stores.
+ *
+ * @author mpowers
+ */
+class BlobStore {
+
+    private static final String REFS_SUFFIX = ".refs";
+    private static final String LOCK_FILE = "refs.lock";
+
+    /**
+     * A jvm holds file locks for the whole process, and throws on overlapping
+     * requests, so threads of all stores take these first.
+     */
+    private static final Object[] monitors = new Object[64];
+    static {
+        for (int i = 0; i < monitors.length; i++) {
+            monitors[i] = new Object();
+        }
+    }
+
+    private final File root;
+
+    /**
+     * Opened on first use and never closed: closing may release the locks
+     * this process holds on the file through other stores.
+     */
+    private FileChannel lockChannel;
+
+    BlobStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Stores the content of the specified stream, read to its end, and adds
+     * the specified reference to it. Nothing is stored if reading the stream
+     * throws an exception.
+     *
+     * @return the digest of the content.
+     */
+    String put(InputStream data, String reference) throws IOException {
+        Staged staged = stage(data);
+        try {
+            return put(staged, reference);
+        } finally {
+            discard(staged);
+        }
+    }
+
+    /**
+     * Reads the content of the specified stream to its end into a temporary
+     * file, so that callers can store it while holding their own locks
+     * without reading the stream under them. The result must be passed to
+     * put() or discard().
+     */
+    Staged stage(InputStream data) throws IOException {
+        root.mkdirs();
+        File temp = File.createTempFile("blob", ".tmp", root);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(
+                temp));
+        boolean complete = false;
+        try {
+            int c;
+            byte[] buf = new byte[8192];
+            while ((c = data.read(buf)) != -1) {
+                digest.update(buf, 0, c);
+                output.write(buf, 0, c);
+            }
+            output.flush();
+            complete = true;
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+            if (!complete) {
+                temp.delete();
+            }
+        }
+        byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return new Staged(temp, new String(Hex.encodeHex(result)));
+    }
+
+    /**
+     * Stores the specified staged content, unless already stored, and adds
+     * the specified reference to it.
+     *
+     * @return the digest of the content.
+     */
+    String put(Staged staged, String reference) throws IOException {
+        String hash = staged.hash;
+        File file = getFile(hash);
+        int stripe = getStripe(hash);
+        synchronized (monitors[stripe]) {
+            FileLock lock = lock(stripe);
+            try {
+                if (!file.exists()) {
+                    file.getParentFile().mkdirs();
+                    if (!staged.temp.renameTo(file)) {
+                        throw new IOException("Could not store blob: " + file);
+                    }
+                }
+                if (!readReferences(hash).contains(reference)) {
+                    appendReference(hash, reference);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Deletes whatever remains of the specified staged content.
+     */
+    void discard(Staged staged) {
+        staged.temp.delete();
+    }
+
+    /**
+     * Removes the specified reference from the specified blob, deleting the
+     * blob if no references remain.
+     */
+    void release(String hash, String reference) throws IOException {
+        int stripe = getStripe(hash);
+        synchronized (monitors[stripe]) {
+            FileLock lock = lock(stripe);
+            try {
+                Set<String> references = readReferences(hash);
+                if (references.remove(reference)) {
+                    if (references.isEmpty()) {
+                        getFile(hash).delete();
+                        getReferencesFile(hash).delete();
+                    } else {
+                        writeReferences(hash, references);
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the file storing the content with the specified digest.
+     */
+    File getFile(String hash) {
+        return new File(new File(new File(root, hash.substring(0, 2)),
+                hash.substring(2, 4)), hash);
+    }
+
+    /**
+     * Returns the number of references to the specified blob.
+     */
+    int getReferenceCount(String hash) throws IOException {
+        int stripe = getStripe(hash);
+        synchronized (monitors[stripe]) {
+            FileLock lock = lock(stripe);
+            try {
+                return readReferences(hash).size();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private File getReferencesFile(String hash) {
+        File file = getFile(hash);
+        return new File(file.getParentFile(), hash + REFS_SUFFIX);
+    }
+
+    private Set<String> readReferences(String hash) throws IOException {
+        Set<String> result = new LinkedHashSet<String>();
+        File file = getReferencesFile(hash);
+        if (file.exists()) {
+            InputStream input = new FileInputStream(file);
+            try {
+                String text = new String(Common.readFully(input),
+                        FileStorage.ENCODING);
+                for (String line : text.split("\n")) {
+                    if (line.length() > 0) {
+                        result.add(line);
+                    }
+                }
+            } finally {
+                try {
+                    input.close();
+                } catch (IOException ioe) {
+                    // suppress any futher error on closing
+                }
+            }
+        }
+        return result;
+    }
+
+    private void writeReferences(String hash, Set<String> references)
+            throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (String reference : references) {
+            builder.append(reference).append('\n');
+        }
+        File file = getReferencesFile(hash);
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(builder.toString().getBytes(FileStorage.ENCODING));
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+        if (!temp.renameTo(file)) {
+            // some platforms won't rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not write file: " + file);
+            }
+        }
+    }
+
+    /**
+     * Adds a line for the specified reference to the end of the references
+     * file. A line cut short by a crash is closed off first, and is then
+     * only a reference that holds its blob until it is released.
+     */
+    private void appendReference(String hash, String reference)
+            throws IOException {
+        File file = getReferencesFile(hash);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            long length = output.length();
+            String line = reference + '\n';
+            if (length > 0) {
+                output.seek(length - 1);
+                if (output.read() != '\n') {
+                    line = '\n' + line;
+                }
+            }
+            output.seek(length);
+            output.write(line.getBytes(FileStorage.ENCODING));
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+    }
+
+    private static int getStripe(String hash) {
+        return (hash.hashCode() & 0x7fffffff) % monitors.length;
+    }
+
+    /**
+     * Locks the specified stripe of the lock file, waiting for any other
+     * process holding it. Callers must hold the matching monitor.
+     */
+    private FileLock lock(int stripe) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (lockChannel == null || !lockChannel.isOpen()) {
+                // an interrupt while waiting for a lock closes the channel
+                root.mkdirs();
+                lockChannel = new RandomAccessFile(new File(root, LOCK_FILE),
+                        "rw").getChannel();
+            }
+            channel = lockChannel;
+        }
+        return channel.lock(stripe, 1, false);
+    }
+
+    /**
+     * Content read into a temporary file but not yet stored.
+     */
+    static class Staged {
+        private final File temp;
+        final String hash;
+
+        private Staged(File temp, String hash) {
+            this.temp = temp;
+            this.hash = hash;
+        }
+    }
+
+}
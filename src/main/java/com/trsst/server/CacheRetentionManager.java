@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps cached feeds within a disk budget by deleting the least recently used
+ * feeds. Feeds are evicted when the total size of the cache exceeds the byte
+ * limit, or when they have not been used for longer than the age limit.
+ *
+ * Readers and writers only record the time of use in memory; sizes are
+ * measured and evictions made by a background sweep, which handles a limited
+ * number of feeds each time it runs so that it never holds up requests. The
+ * time of use is not persisted: after a restart, feeds are ranked by the time
+ * they were last modified until they are used again.
+ *
+ * @author mpowers
+ */
+class CacheRetentionManager {
+
+    /**
+     * Decides which feeds may be evicted, and is called to remove them from
+     * anywhere other than storage before their files are deleted, and again
+     * after, so that anything read in between can be discarded.
+     */
+    interface Evictor {
+        boolean isEvictable(String feedId);
+
+        void evict(List<String> feedIds) throws Exception;
+
+        void evicted(List<String> feedIds);
+    }
+
+    private static final int MEASURE_BATCH = 1000;
+    private static final int EVICT_BATCH = 100;
+
+    private final FileStorage storage;
+    private final long maxBytes;
+    private final long maxAge;
+    private final Evictor evictor;
+    private final ConcurrentMap<String, Usage> usage = new ConcurrentHashMap<String, Usage>();
+    private final Timer sweeper;
+    private boolean discovered;
+
+    /**
+     * @param maxBytes
+     *            the maximum total size of the cache in bytes, or zero for no
+     *            limit.
+     * @param maxAge
+     *            the maximum time in milliseconds since a feed was last used,
+     *            or zero for no limit.
+     * @param interval
+     *            the time in milliseconds between sweeps.
+     */
+    CacheRetentionManager(FileStorage storage, long maxBytes, long maxAge,
+            long interval, Evictor evictor) {
+        this.storage = storage;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.evictor = evictor;
+        sweeper = new Timer("CacheRetentionManager-sweep", true);
+        sweeper.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    sweep();
+                } catch (Throwable t) {
+                    log.error("Unexpected error sweeping cache", t);
+                }
+            }
+        }, 0, interval);
+    }
+
+    /**
+     * Records that the specified feed was read.
+     */
+    void touch(String feedId) {
+        Usage u = usage.get(feedId);
+        if (u != null) {
+            u.accessed = System.currentTimeMillis();
+        } else {
+            usage.putIfAbsent(feedId, new Usage(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Records that the specified feed was written, so its size is measured
+     * again on the next sweep.
+     */
+    void changed(String feedId) {
+        Usage u = usage.get(feedId);
+        if (u != null) {
+            u.accessed = System.currentTimeMillis();
+            u.bytes = -1;
+        } else {
+            usage.putIfAbsent(feedId, new Usage(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Returns the total size in bytes of the cached feeds measured so far.
+     */
+    long getSize() {
+        long result = 0;
+        for (Usage u : usage.values()) {
+            result += Math.max(0, u.bytes);
+        }
+        return result;
+    }
+
+    void close() {
+        sweeper.cancel();
+    }
+
+    /**
+     * Measures a batch of feeds whose size is unknown, and then evicts a
+     * batch of feeds if over budget.
+     */
+    void sweep() throws Exception {
+        if (!discovered) {
+            // first run: find the feeds cached before we started
+            for (String feedId : storage.getStoredFeedIds()) {
+                if (!usage.containsKey(feedId)
+                        && evictor.isEvictable(feedId)) {
+                    usage.putIfAbsent(feedId, new Usage(
+                            storage.getFeedLastModified(feedId)));
+                }
+            }
+            discovered = true;
+        }
+
+        int measured = 0;
+        for (Map.Entry<String, Usage> e : usage.entrySet()) {
+            if (measured >= MEASURE_BATCH) {
+                break;
+            }
+            if (e.getValue().bytes < 0) {
+                long bytes = storage.getFeedSize(e.getKey());
+                if (bytes < 0) {
+                    // never stored or already gone
+                    usage.remove(e.getKey(), e.getValue());
+                } else {
+                    e.getValue().bytes = bytes;
+                }
+                measured++;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        long total = getSize();
+        if ((maxBytes <= 0 || total <= maxBytes) && maxAge <= 0) {
+            return; // nothing to do
+        }
+
+        // least recently used first
+        List<Map.Entry<String, Usage>> entries = new ArrayList<Map.Entry<String, Usage>>(
+                usage.entrySet());
+        final Map<String, Long> accessed = new HashMap<String, Long>();
+        for (Map.Entry<String, Usage> e : entries) {
+            accessed.put(e.getKey(), e.getValue().accessed);
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Usage>>() {
+            public int compare(Map.Entry<String, Usage> a,
+                    Map.Entry<String, Usage> b) {
+                return accessed.get(a.getKey()).compareTo(
+                        accessed.get(b.getKey()));
+            }
+        });
+        List<String> victims = new ArrayList<String>();
+        for (Map.Entry<String, Usage> e : entries) {
+            boolean aged = maxAge > 0
+                    && accessed.get(e.getKey()) < now - maxAge;
+            boolean over = maxBytes > 0 && total > maxBytes;
+            if (!aged && !over) {
+                break; // remaining feeds are more recent
+            }
+            if (victims.size() >= EVICT_BATCH) {
+                break; // continue next sweep
+            }
+            if (evictor.isEvictable(e.getKey())) {
+                victims.add(e.getKey());
+                total -= Math.max(0, e.getValue().bytes);
+            }
+        }
+        if (victims.isEmpty()) {
+            return;
+        }
+
+        // a feed used after this point is fetched again from its home
+        evictor.evict(victims);
+        for (String feedId : victims) {
+            try {
+                storage.deleteFeed(feedId);
+                usage.remove(feedId);
+            } catch (Throwable t) {
+                log.error("Could not evict feed: " + feedId, t);
+            }
+        }
+        evictor.evicted(victims);
+        log.info("Evicted " + victims.size() + " feeds from cache: "
+                + getSize() + " bytes remaining");
+    }
+
+    private static final class Usage {
+        volatile long accessed;
+        volatile long bytes = -1;
+
+        Usage(long accessed) {
+            this.accessed = accessed;
+        }
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(CacheRetentionManager.class);
+
+}
@@ -18,13 +18,47 @@ package com.trsst.server;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.trsst.Common;
 
 /**
- * A simple passthrough that caches read operations.
+ * A simple passthrough that caches read operations. The cache is bounded by
+ * the approximate retained size of its keys and values, in bytes, specified by
+ * the system property "com.trsst.server.cache.bytes" (default 32MB).
+ * 
+ * Writes don't search the cache: each write bumps the generation of its feed,
+ * which is part of every cache key, so stale results are simply never read
+ * again and are evicted in due course. A LuceneStorage delegate bumps the
+ * generation again once a feed's changes become searchable. Results spanning
+ * feeds are keyed by a global generation that is bumped only when changes can
+ * reach them: with a LuceneStorage delegate, once they become searchable.
+ * 
+ * Missing feeds and entries are remembered for the number of milliseconds in
+ * "com.trsst.server.cache.negative.ttl" (default 30 seconds), or until they
+ * are written through this storage, so that repeated existence checks don't
+ * reach the delegate.
+ * 
+ * Concurrent misses on the same key are coalesced so that only one thread
+ * calls the delegate. If "com.trsst.server.cache.stale" is "true", a feed
+ * document that was just invalidated is served from its previous version
+ * while it is reloaded in the background, unless the document was since
+ * written through this storage.
  * 
  * @author mpowers
  */
@@ -37,10 +71,46 @@ public class CachingStorage implements Storage {
     private Storage persistentStorage;
 
     /**
-     * Persistent storage delegate used to fetch items not in cache and to
-     * passthrough write operations.
+     * Cached results of read operations, weighted by approximate size.
+     */
+    private ConcurrentLinkedHashMap<Key, Object> cache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+
+    /**
+     * Expiration times of known-missing feeds and entries.
+     */
+    private ConcurrentMap<Key, Long> missing;
+
+    private final long missingTimeout;
+
+    /**
+     * Loads in progress, so concurrent misses wait for a single load.
+     */
+    private final ConcurrentMap<Key, FutureTask<Object>> loading;
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Most recently loaded document for each feed, served while the current
+     * version is reloaded, or a marker that the document was written since;
+     * null if stale reads are not enabled.
+     */
+    private ConcurrentMap<String, Stale> staleFeeds;
+
+    private final AtomicLong staleCount = new AtomicLong();
+
+    private Timer refresher;
+
+    /**
+     * True if the delegate answers queries spanning feeds from an index that
+     * tells us when changes become searchable.
      */
-    private ConcurrentMap<String, Object> cache;
+    private final boolean indexed;
 
     /**
      * Manages index and calls to the specified storage delegate to handle
@@ -50,60 +120,490 @@ public class CachingStorage implements Storage {
      * @throws IOException
      */
     public CachingStorage(Storage delegate) throws IOException {
+        this(delegate, getDefaultCapacity());
+    }
+
+    /**
+     * Returns the number of bytes specified by "com.trsst.server.cache.bytes",
+     * which also bounds the ParsedDocumentCache.
+     */
+    static long getDefaultCapacity() {
+        return Long.getLong("com.trsst.server.cache.bytes", 32 * 1024 * 1024);
+    }
+
+    /**
+     * Creates a cache of the specified delegate bounded by the specified number
+     * of bytes.
+     * 
+     * @param delegate
+     * @param maximumBytes
+     * @throws IOException
+     */
+    public CachingStorage(Storage delegate, long maximumBytes)
+            throws IOException {
         persistentStorage = delegate;
-        cache = new ConcurrentLinkedHashMap.Builder<String, Object>()
-                .maximumWeightedCapacity(256).build();
+        cache = new ConcurrentLinkedHashMap.Builder<Key, Object>()
+                .maximumWeightedCapacity(maximumBytes)
+                .weigher(new EntryWeigher<Key, Object>() {
+                    public int weightOf(Key key, Object value) {
+                        return key.size() + sizeOf(value);
+                    }
+                }).listener(new EvictionListener<Key, Object>() {
+                    public void onEviction(Key key, Object value) {
+                        evictionCount.incrementAndGet();
+                    }
+                }).build();
+        missing = new ConcurrentLinkedHashMap.Builder<Key, Long>()
+                .maximumWeightedCapacity(64 * 1024).build();
+        missingTimeout = Long.getLong("com.trsst.server.cache.negative.ttl",
+                30 * 1000);
+        loading = new ConcurrentHashMap<Key, FutureTask<Object>>();
+        if (Boolean.getBoolean("com.trsst.server.cache.stale")) {
+            staleFeeds = new ConcurrentLinkedHashMap.Builder<String, Stale>()
+                    .maximumWeightedCapacity(1024).build();
+            refresher = new Timer("CachingStorage refresher", true);
+        }
+        indexed = delegate instanceof LuceneStorage;
+        if (indexed) {
+            // id queries cached before indexing completed are now stale
+            ((LuceneStorage) delegate).addListener(new LuceneStorage.Listener() {
+                public void changed(String feedId) {
+                    invalidate(feedId, true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the number of reads answered from cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of reads passed through to the delegate.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of cached results evicted to stay within budget.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of results loaded from the delegate.
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * Returns the number of reads that waited for another thread's load
+     * instead of calling the delegate.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of feed reads answered with a previous version while
+     * reloading.
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    /**
+     * Returns the total time spent loading from the delegate, in nanoseconds.
+     */
+    public long getTotalLoadTime() {
+        return loadTime.get();
+    }
+
+    /**
+     * Returns the approximate number of bytes currently cached.
+     */
+    public long getWeightedSize() {
+        return cache.weightedSize();
+    }
+
+    /**
+     * Returns the maximum number of bytes to be cached.
+     */
+    public long getCapacity() {
+        return cache.capacity();
+    }
+
+    public String toString() {
+        long hits = hitCount.get();
+        long misses = missCount.get();
+        long loads = loadCount.get();
+        return "CachingStorage[hits=" + hits + ", misses=" + misses
+                + ", hitRate=" + (hits + misses == 0 ? 0 : hits * 100
+                / (hits + misses)) + "%, coalesced=" + coalescedCount.get()
+                + ", stale=" + staleCount.get() + ", evictions="
+                + evictionCount.get()
+                + ", averageLoadMillis="
+                + (loads == 0 ? 0 : loadTime.get() / loads / 1000000)
+                + ", bytes=" + cache.weightedSize() + "/" + cache.capacity()
+                + "]";
+    }
+
+    /**
+     * Returns the approximate retained size in bytes of a cached key or value.
+     */
+    static int sizeOf(Object value) {
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        if (value instanceof long[]) {
+            return 16 + 8 * ((long[]) value).length;
+        }
+        if (value instanceof String[]) {
+            int result = 16;
+            for (String s : (String[]) value) {
+                result += 4 + (s == null ? 0 : sizeOf(s));
+            }
+            return result;
+        }
+        if (value instanceof Object[]) {
+            int result = 16;
+            for (Object o : (Object[]) value) {
+                result += 4 + (o == null ? 0 : sizeOf(o));
+            }
+            return result;
+        }
+        return 16; // Integer, Long, or null sentinel
+    }
+
+    /**
+     * Identifies a cached read: the operation, its arguments, and the
+     * generation of the feed (or of all feeds) when it was read. Writes bump
+     * the generation, so keys for stale results are never matched again and
+     * simply age out of the cache.
+     */
+    private static final class Key {
+        final byte op;
+        final String feedId;
+        final long generation;
+        final long a;
+        final long b;
+        final Object[] args;
+        final int hash;
+
+        Key(byte op, String feedId, long generation, long a, long b,
+                Object[] args) {
+            this.op = op;
+            this.feedId = feedId;
+            this.generation = generation;
+            this.a = a;
+            this.b = b;
+            this.args = args;
+            int h = op;
+            h = 31 * h + (feedId == null ? 0 : feedId.hashCode());
+            h = 31 * h + (int) (generation ^ (generation >>> 32));
+            h = 31 * h + (int) (a ^ (a >>> 32));
+            h = 31 * h + (int) (b ^ (b >>> 32));
+            h = 31 * h + (args == null ? 0 : Arrays.deepHashCode(args));
+            this.hash = h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && op == k.op && generation == k.generation
+                    && a == k.a && b == k.b
+                    && (feedId == null ? k.feedId == null : feedId
+                            .equals(k.feedId))
+                    && Arrays.deepEquals(args, k.args);
+        }
+
+        int size() {
+            int result = 56;
+            if (feedId != null) {
+                result += sizeOf(feedId);
+            }
+            if (args != null) {
+                result += 16;
+                for (Object arg : args) {
+                    result += 4 + (arg == null ? 0 : sizeOf(arg));
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final byte GET_FEED_IDS = 1;
+    private static final byte GET_CATEGORIES = 2;
+    private static final byte GET_ENTRY_COUNT = 3;
+    private static final byte GET_ENTRY_IDS = 4;
+    private static final byte GET_ENTRY_IDS_FOR_FEED_ID = 5;
+    private static final byte READ_FEED = 6;
+    private static final byte READ_ENTRY = 7;
+    private static final byte READ_RESOURCE_TYPE = 8;
+    private static final byte MISSING_FEED = 9;
+    private static final byte MISSING_ENTRY = 10;
+    private static final byte GET_ENTRY_IDS_FROM_CURSOR = 11;
+    private static final byte GET_ENTRY_IDS_FOR_FEED_ID_FROM_CURSOR = 12;
+
+    /**
+     * Results spanning all feeds are keyed by this generation, incremented
+     * whenever a change may be visible to them.
+     */
+    private final AtomicLong globalGeneration = new AtomicLong();
+
+    /**
+     * Incremented before any feed generation, so that it is never less than
+     * any of them; seeds new feed generations so that they never repeat.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Generation of each feed, incremented on every write to the feed.
+     */
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentLinkedHashMap.Builder<String, AtomicLong>()
+            .maximumWeightedCapacity(64 * 1024).build();
+
+    /**
+     * Returns the current generation of the specified feed, or of all feeds
+     * if null. The value changes whenever the feed is modified through this
+     * storage, so callers can use it to key their own derived caches.
+     */
+    public long getGeneration(String feedId) {
+        if (feedId == null) {
+            return globalGeneration.get();
+        }
+        AtomicLong result = generations.get(feedId);
+        if (result == null) {
+            // a new or evicted counter must not reuse an old value
+            result = new AtomicLong(sequence.incrementAndGet());
+            AtomicLong existing = generations.putIfAbsent(feedId, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result.get();
+    }
 
+    /**
+     * Invalidates all cached results for the specified feed, and if specified
+     * all cached results spanning feeds.
+     */
+    private void invalidate(String feedId, boolean spanning) {
+        if (spanning) {
+            globalGeneration.incrementAndGet();
+        }
+        sequence.incrementAndGet();
+        AtomicLong generation = generations.get(feedId);
+        if (generation != null) {
+            generation.incrementAndGet();
+        } else {
+            getGeneration(feedId); // seeds a fresh value
+        }
     }
 
-    private static char DELIMITER = 0;
+    /**
+     * Invalidates cached results after a write to the specified feed through
+     * this storage. Unless indexed, the delegate answers queries spanning
+     * feeds from what was just written.
+     */
+    private void written(String feedId) {
+        invalidate(feedId, !indexed);
+    }
 
-    private static final String tokenize(Object... args) {
-        StringBuffer buf = new StringBuffer();
-        for (Object arg : args) {
-            buf.append(arg).append(DELIMITER);
+    /**
+     * Returns true if the specified key was recently found to be missing.
+     */
+    private boolean isMissing(Key key) {
+        Long expires = missing.get(key);
+        if (expires == null) {
+            return false;
+        }
+        if (expires.longValue() < System.currentTimeMillis()) {
+            missing.remove(key, expires);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers that the specified key is missing, unless the feed was written
+     * since the specified generation was obtained.
+     */
+    private void setMissing(Key key, long generation) {
+        if (getGeneration(key.feedId) == generation) {
+            missing.put(key, System.currentTimeMillis() + missingTimeout);
         }
-        return buf.toString();
     }
 
-    private static Object NOT_FOUND = "NOT_FOUND";
+    /**
+     * Thrown for known-missing items: skips filling in the stack trace.
+     */
+    private static class MissingException extends FileNotFoundException {
+        private static final long serialVersionUID = 1L;
+
+        MissingException(String message) {
+            super(message);
+        }
 
-    private Object get(String token) {
-        if (cache.containsKey(token)) {
-            return cache.get(token);
+        public synchronized Throwable fillInStackTrace() {
+            return this;
         }
-        return NOT_FOUND;
     }
 
-    private void put(String token, Object value) {
-        cache.put(token, value);
+    private static long toTime(Date date) {
+        return date == null ? Long.MIN_VALUE : date.getTime();
     }
 
-    private void purge(String prefix) {
-        // purge all keys with prefix
-        for (String key : cache.keySet()) {
-            if (key.startsWith(prefix)) {
-                cache.remove(key);
+    private static Object NOT_FOUND = new Object();
+
+    /**
+     * Stands in for null results, which the cache cannot hold.
+     */
+    private static Object NULL = new Object();
+
+    private Object get(Key key) {
+        Object result = cache.get(key);
+        if (result == null) {
+            missCount.incrementAndGet();
+            return NOT_FOUND;
+        }
+        hitCount.incrementAndGet();
+        return result == NULL ? null : result;
+    }
+
+    /**
+     * Caches a value loaded from the delegate.
+     * 
+     * @param loadStart
+     *            the value of System.nanoTime() when the load began.
+     */
+    private void put(Key key, Object value, long loadStart) {
+        loadTime.addAndGet(System.nanoTime() - loadStart);
+        loadCount.incrementAndGet();
+        cache.put(key, value == null ? NULL : value);
+    }
+
+    /**
+     * Loads and caches the value for the specified key. If another thread is
+     * already loading the same key, waits for and returns its result instead
+     * of calling the delegate again.
+     */
+    private Object load(Key key, Callable<Object> loader) throws IOException {
+        FutureTask<Object> task = new FutureTask<Object>(loader);
+        FutureTask<Object> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return await(existing);
+        }
+        long began = System.nanoTime();
+        try {
+            task.run();
+            Object result = await(task);
+            // cache before removing so late arrivals find one or the other
+            put(key, result, began);
+            return result;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    /**
+     * Loads and caches the value for the specified key, for loaders that
+     * throw no checked exceptions.
+     */
+    private Object loadQuietly(Key key, Callable<Object> loader) {
+        try {
+            return load(key, loader);
+        } catch (IOException e) {
+            // should never happen
+            throw new IllegalStateException("Unexpected exception", e);
+        }
+    }
+
+    private static Object await(FutureTask<Object> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
         }
     }
 
-    public String[] getFeedIds(int start, int length) {
-        String token = tokenize("getFeedIds", start, length);
-        Object result = get(token);
+    /**
+     * Schedules a background load of the specified key, unless already loaded
+     * or loading.
+     */
+    private void refreshLater(final Key key, final Callable<Object> loader) {
+        if (loading.containsKey(key)) {
+            return;
+        }
+        refresher.schedule(new TimerTask() {
+            public void run() {
+                if (cache.containsKey(key)) {
+                    return; // already refreshed
+                }
+                try {
+                    load(key, loader);
+                } catch (FileNotFoundException e) {
+                    // removed since: stale copy already discarded
+                } catch (Throwable t) {
+                    log.warn("Could not refresh: " + key.feedId, t);
+                }
+            }
+        }, 0);
+    }
+
+    public String[] getFeedIds(final int start, final int length) {
+        Key key = new Key(GET_FEED_IDS, null, getGeneration(null), start,
+                length, null);
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.getFeedIds(start, length);
-            put(token, result);
+            result = loadQuietly(key, new Callable<Object>() {
+                public Object call() {
+                    return persistentStorage.getFeedIds(start, length);
+                }
+            });
         }
         return (String[]) result;
     }
 
-    public String[] getCategories(int start, int length) {
-        String token = tokenize("getCategories", start, length);
-        Object result = get(token);
+    public String[] getCategories(final int start, final int length) {
+        Key key = new Key(GET_CATEGORIES, null, getGeneration(null), start,
+                length, null);
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.getCategories(start, length);
-            put(token, result);
+            result = loadQuietly(key, new Callable<Object>() {
+                public Object call() {
+                    return persistentStorage.getCategories(start, length);
+                }
+            });
         }
         return (String[]) result;
     }
@@ -114,53 +614,150 @@ public class CachingStorage implements Storage {
                 tags, verb);
     }
 
-    public int getEntryCountForFeedId(String feedId, Date after, Date before,
-            String search, String[] mentions, String[] tags, String verb) {
-        String token = tokenize(feedId, "getEntryCountForFeedId", after,
-                before, search, mentions, tags, verb);
-        Object result = get(token);
+    public int getEntryCountForFeedId(final String feedId, final Date after,
+            final Date before, final String search, final String[] mentions,
+            final String[] tags, final String verb) {
+        Key key = new Key(GET_ENTRY_COUNT, feedId, getGeneration(feedId),
+                toTime(after), toTime(before), new Object[] { search,
+                        mentions, tags, verb });
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.getEntryCountForFeedId(feedId, after,
-                    before, search, mentions, tags, verb);
-            put(token, result);
+            result = loadQuietly(key, new Callable<Object>() {
+                public Object call() {
+                    return persistentStorage.getEntryCountForFeedId(feedId,
+                            after, before, search, mentions, tags, verb);
+                }
+            });
         }
         return ((Integer) result).intValue();
     }
 
-    public String[] getEntryIds(int start, int length, Date after, Date before,
-            String search, String[] mentions, String[] tags, String verb) {
-        String token = tokenize("getEntryIds", start, length, after, before,
-                search, mentions, tags, verb);
-        Object result = get(token);
+    public String[] getEntryIds(final int start, final int length,
+            final Date after, final Date before, final String search,
+            final String[] mentions, final String[] tags, final String verb) {
+        Key key = new Key(GET_ENTRY_IDS, null, getGeneration(null),
+                ((long) start << 32) | length, 0, new Object[] {
+                        toTime(after), toTime(before), search, mentions,
+                        tags, verb });
+        Object result = get(key);
+        if (result == NOT_FOUND) {
+            result = loadQuietly(key, new Callable<Object>() {
+                public Object call() {
+                    return persistentStorage.getEntryIds(start, length, after,
+                            before, search, mentions, tags, verb);
+                }
+            });
+        }
+        return (String[]) result;
+    }
+
+    public long[] getEntryIdsForFeedId(final String feedId, final int start,
+            final int length, final Date after, final Date before,
+            final String search, final String[] mentions, final String[] tags,
+            final String verb) {
+        Object[] args = null;
+        if (after != null || before != null || search != null
+                || mentions != null || tags != null || verb != null) {
+            args = new Object[] { toTime(after), toTime(before), search,
+                    mentions, tags, verb };
+        }
+        Key key = new Key(GET_ENTRY_IDS_FOR_FEED_ID, feedId,
+                getGeneration(feedId), start, length, args);
+        Object result = get(key);
+        if (result == NOT_FOUND) {
+            result = loadQuietly(key, new Callable<Object>() {
+                public Object call() {
+                    return persistentStorage.getEntryIdsForFeedId(feedId,
+                            start, length, after, before, search, mentions,
+                            tags, verb);
+                }
+            });
+        }
+        return (long[]) result;
+    }
+
+    public String[] getEntryIdsFromCursor(final String cursor,
+            final int length, final Date after, final Date before,
+            final String search, final String[] mentions, final String[] tags,
+            final String verb) {
+        Key key = new Key(GET_ENTRY_IDS_FROM_CURSOR, null, getGeneration(null),
+                length, 0, new Object[] { cursor, toTime(after),
+                        toTime(before), search, mentions, tags, verb });
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.getEntryIds(start, length, after,
-                    before, search, mentions, tags, verb);
-            put(token, result);
+            result = loadQuietly(key, new Callable<Object>() {
+                public Object call() {
+                    return persistentStorage.getEntryIdsFromCursor(cursor,
+                            length, after, before, search, mentions, tags,
+                            verb);
+                }
+            });
         }
         return (String[]) result;
     }
 
-    public long[] getEntryIdsForFeedId(String feedId, int start, int length,
-            Date after, Date before, String search, String[] mentions,
-            String[] tags, String verb) {
-        String token = tokenize(feedId, "getEntryIdsForFeedId", start, length,
-                after, before, search, mentions, tags, verb);
-        Object result = get(token);
+    public long[] getEntryIdsForFeedIdFromCursor(final String feedId,
+            final long cursor, final int length, final Date after,
+            final Date before, final String search, final String[] mentions,
+            final String[] tags, final String verb) {
+        Object[] args = null;
+        if (after != null || before != null || search != null
+                || mentions != null || tags != null || verb != null) {
+            args = new Object[] { toTime(after), toTime(before), search,
+                    mentions, tags, verb };
+        }
+        Key key = new Key(GET_ENTRY_IDS_FOR_FEED_ID_FROM_CURSOR, feedId,
+                getGeneration(feedId), cursor, length, args);
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.getEntryIdsForFeedId(feedId, start,
-                    length, after, before, search, mentions, tags, verb);
-            put(token, result);
+            result = loadQuietly(key, new Callable<Object>() {
+                public Object call() {
+                    return persistentStorage.getEntryIdsForFeedIdFromCursor(
+                            feedId, cursor, length, after, before, search,
+                            mentions, tags, verb);
+                }
+            });
         }
         return (long[]) result;
     }
 
-    public String readFeed(String feedId) throws FileNotFoundException,
+    public String readFeed(final String feedId) throws FileNotFoundException,
             IOException {
-        String token = tokenize(feedId, "readFeed");
-        Object result = get(token);
+        final long generation = getGeneration(feedId);
+        Key key = new Key(READ_FEED, feedId, generation, 0, 0, null);
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.readFeed(feedId);
-            put(token, result);
+            final Key missingKey = new Key(MISSING_FEED, feedId, 0, 0, 0, null);
+            if (isMissing(missingKey)) {
+                throw new MissingException("Not found: " + feedId);
+            }
+            Callable<Object> loader = new Callable<Object>() {
+                public Object call() throws IOException {
+                    try {
+                        String feed = persistentStorage.readFeed(feedId);
+                        if (staleFeeds != null) {
+                            setStale(feedId, new Stale(generation, feed));
+                        }
+                        return feed;
+                    } catch (FileNotFoundException e) {
+                        if (staleFeeds != null) {
+                            setStale(feedId, new Stale(generation, null));
+                        }
+                        setMissing(missingKey, generation);
+                        throw e;
+                    }
+                }
+            };
+            if (staleFeeds != null) {
+                Stale stale = staleFeeds.get(feedId);
+                if (stale != null && stale.feed != null) {
+                    // serve previous version while we reload
+                    staleCount.incrementAndGet();
+                    refreshLater(key, loader);
+                    return stale.feed;
+                }
+            }
+            result = load(key, loader);
         }
         return (String) result;
     }
@@ -168,41 +765,193 @@ public class CachingStorage implements Storage {
     public void updateFeed(String feedId, Date lastUpdated, String content)
             throws IOException {
         persistentStorage.updateFeed(feedId, lastUpdated, content);
-        purge(feedId);
+        // the feed may be new to queries spanning feeds
+        invalidate(feedId, true);
+        if (staleFeeds != null) {
+            // read your writes: don't serve a copy loaded before this one
+            setStale(feedId, new Stale(getGeneration(feedId), null));
+        }
+        missing.remove(new Key(MISSING_FEED, feedId, 0, 0, 0, null));
     }
 
-    public String readEntry(String feedId, long entryId)
+    public String readEntry(final String feedId, final long entryId)
             throws FileNotFoundException, IOException {
-        String token = tokenize(feedId, "readEntry", entryId);
-        Object result = get(token);
+        final long generation = getGeneration(feedId);
+        Key key = new Key(READ_ENTRY, feedId, generation, entryId, 0, null);
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.readEntry(feedId, entryId);
-            put(token, result);
+            final Key missingKey = new Key(MISSING_ENTRY, feedId, 0, entryId,
+                    0, null);
+            if (isMissing(missingKey)) {
+                throw new MissingException("Not found: " + feedId + " : "
+                        + Long.toHexString(entryId));
+            }
+            result = load(key, new Callable<Object>() {
+                public Object call() throws IOException {
+                    try {
+                        return persistentStorage.readEntry(feedId, entryId);
+                    } catch (FileNotFoundException e) {
+                        setMissing(missingKey, generation);
+                        throw e;
+                    }
+                }
+            });
         }
         return (String) result;
     }
 
+    /**
+     * A feed document loaded at a generation of its feed, or if the document
+     * is null, a marker that no copy loaded before that generation may be
+     * served.
+     */
+    private static final class Stale {
+        final long generation;
+        final String feed;
+
+        Stale(long generation, String feed) {
+            this.generation = generation;
+            this.feed = feed;
+        }
+    }
+
+    /**
+     * Records the specified stale copy or marker for the specified feed,
+     * unless one from a later generation is already recorded.
+     */
+    private void setStale(String feedId, Stale stale) {
+        Stale existing = staleFeeds.putIfAbsent(feedId, stale);
+        while (existing != null && existing.generation <= stale.generation) {
+            if (staleFeeds.replace(feedId, existing, stale)) {
+                return;
+            }
+            existing = staleFeeds.putIfAbsent(feedId, stale);
+        }
+    }
+
+    public String[] readEntries(String feedId, long[] entryIds)
+            throws IOException {
+        String[] feedIds = new String[entryIds.length];
+        Arrays.fill(feedIds, feedId);
+        return readEntries(feedIds, entryIds, true);
+    }
+
+    public String[] readEntries(String[] entryIds) throws IOException {
+        String[] feedIds = new String[entryIds.length];
+        long[] ids = new long[entryIds.length];
+        for (int i = 0; i < entryIds.length; i++) {
+            feedIds[i] = entryIds[i].substring(0,
+                    entryIds[i].lastIndexOf(':'));
+            ids[i] = Common.toEntryId(entryIds[i]);
+        }
+        return readEntries(feedIds, ids, false);
+    }
+
+    /**
+     * Answers what we can from cache and loads the rest with a single call to
+     * the delegate: to the single feed variant if all from the same feed.
+     */
+    private String[] readEntries(String[] feedIds, long[] entryIds,
+            boolean sameFeed) throws IOException {
+        String[] result = new String[entryIds.length];
+        long[] generations = new long[entryIds.length];
+        List<Integer> misses = new ArrayList<Integer>();
+        Object value;
+        for (int i = 0; i < entryIds.length; i++) {
+            generations[i] = getGeneration(feedIds[i]);
+            value = get(new Key(READ_ENTRY, feedIds[i], generations[i],
+                    entryIds[i], 0, null));
+            if (value != NOT_FOUND) {
+                result[i] = (String) value;
+            } else if (!isMissing(new Key(MISSING_ENTRY, feedIds[i], 0,
+                    entryIds[i], 0, null))) {
+                misses.add(i);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+
+        long began = System.nanoTime();
+        String[] loaded;
+        if (sameFeed) {
+            long[] ids = new long[misses.size()];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = entryIds[misses.get(j)];
+            }
+            loaded = persistentStorage.readEntries(feedIds[0], ids);
+        } else {
+            String[] ids = new String[misses.size()];
+            int i;
+            for (int j = 0; j < ids.length; j++) {
+                i = misses.get(j);
+                ids[j] = feedIds[i] + ':' + Long.toHexString(entryIds[i]);
+            }
+            loaded = persistentStorage.readEntries(ids);
+        }
+        loadTime.addAndGet(System.nanoTime() - began);
+        int i;
+        for (int j = 0; j < loaded.length; j++) {
+            i = misses.get(j);
+            if (loaded[j] == null) {
+                setMissing(new Key(MISSING_ENTRY, feedIds[i], 0, entryIds[i],
+                        0, null), generations[i]);
+            } else {
+                loadCount.incrementAndGet();
+                cache.put(new Key(READ_ENTRY, feedIds[i], generations[i],
+                        entryIds[i], 0, null), loaded[j]);
+                result[i] = loaded[j];
+            }
+        }
+        return result;
+    }
+
+    public boolean hasEntry(String feedId, long entryId) {
+        long generation = getGeneration(feedId);
+        if (cache.containsKey(new Key(READ_ENTRY, feedId, generation, entryId,
+                0, null))) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        Key missingKey = new Key(MISSING_ENTRY, feedId, 0, entryId, 0, null);
+        if (isMissing(missingKey)) {
+            hitCount.incrementAndGet();
+            return false;
+        }
+        missCount.incrementAndGet();
+        if (persistentStorage.hasEntry(feedId, entryId)) {
+            return true;
+        }
+        setMissing(missingKey, generation);
+        return false;
+    }
+
     public void updateEntry(String feedId, long entryId, Date publishDate,
             String content) throws IOException {
         persistentStorage.updateEntry(feedId, entryId, publishDate, content);
-        purge(feedId);
+        written(feedId);
+        missing.remove(new Key(MISSING_ENTRY, feedId, 0, entryId, 0, null));
     }
 
     public void deleteEntry(String feedId, long entryId)
             throws FileNotFoundException, IOException {
         persistentStorage.deleteEntry(feedId, entryId);
-        purge(feedId);
+        written(feedId);
     }
 
-    public String readFeedEntryResourceType(String feedId, long entryId,
-            String resourceId) throws FileNotFoundException, IOException {
-        String token = tokenize(feedId, "readFeedEntryResourceType", entryId,
-                resourceId);
-        Object result = get(token);
+    public String readFeedEntryResourceType(final String feedId,
+            final long entryId, final String resourceId)
+            throws FileNotFoundException, IOException {
+        Key key = new Key(READ_RESOURCE_TYPE, feedId, getGeneration(feedId),
+                entryId, 0, new Object[] { resourceId });
+        Object result = get(key);
         if (result == NOT_FOUND) {
-            result = persistentStorage.readFeedEntryResourceType(feedId,
-                    entryId, resourceId);
-            put(token, result);
+            result = load(key, new Callable<Object>() {
+                public Object call() throws IOException {
+                    return persistentStorage.readFeedEntryResourceType(feedId,
+                            entryId, resourceId);
+                }
+            });
         }
         return (String) result;
     }
@@ -214,16 +963,40 @@ public class CachingStorage implements Storage {
                 resourceId);
     }
 
+    public ResourceHandle openFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException {
+        // don't cache binary content
+        return persistentStorage.openFeedEntryResource(feedId, entryId,
+                resourceId);
+    }
+
     public void updateFeedEntryResource(String feedId, long entryId,
             String resourceId, String mimeType, Date publishDate, byte[] data)
             throws IOException {
         persistentStorage.updateFeedEntryResource(feedId, entryId, resourceId,
                 mimeType, publishDate, data);
+        written(feedId);
+    }
+
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate,
+            InputStream data) throws IOException {
+        persistentStorage.updateFeedEntryResource(feedId, entryId, resourceId,
+                mimeType, publishDate, data);
+        written(feedId);
     }
 
     public void deleteFeedEntryResource(String feedId, long entryId,
             String resourceId) throws IOException {
         persistentStorage.deleteFeedEntryResource(feedId, entryId, resourceId);
+        written(feedId);
     }
 
+    public void flush() throws IOException {
+        persistentStorage.flush();
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(CachingStorage.class);
+
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts how often each category is used by entries published within a
+ * sliding window of time, and ranks the most frequently used categories.
+ *
+ * The window is divided into buckets, each counting the categories of entries
+ * published during its slice of time; buckets are reused as the window moves
+ * forward. Entries published before the window are ignored, so ingesting the
+ * history of a feed does not make old categories trend. The ranking is
+ * recomputed from the buckets at most once per refresh interval, so readers
+ * are served from memory.
+ *
+ * @author mpowers
+ */
+class CategoryTracker {
+
+    private final long bucketMillis;
+    private final long refreshMillis;
+    private final int maxTerms;
+    private final int maxRanked;
+    private final AtomicReferenceArray<Bucket> buckets;
+
+    private volatile String[] ranked = new String[0];
+    private volatile long rankedTime = Long.MIN_VALUE;
+
+    /**
+     * @param windowMillis
+     *            the length of the window in milliseconds.
+     * @param bucketCount
+     *            the number of buckets dividing the window.
+     * @param refreshMillis
+     *            the maximum age of the ranking in milliseconds.
+     * @param maxTerms
+     *            the maximum number of distinct categories counted per bucket;
+     *            categories first seen after a bucket is full are ignored.
+     * @param maxRanked
+     *            the maximum number of categories ranked.
+     */
+    CategoryTracker(long windowMillis, int bucketCount, long refreshMillis,
+            int maxTerms, int maxRanked) {
+        this.bucketMillis = Math.max(1, windowMillis / bucketCount);
+        this.refreshMillis = refreshMillis;
+        this.maxTerms = maxTerms;
+        this.maxRanked = maxRanked;
+        this.buckets = new AtomicReferenceArray<Bucket>(bucketCount);
+    }
+
+    /**
+     * Counts the specified categories of an entry published at the specified
+     * time.
+     */
+    void add(long time, Collection<String> categories) {
+        if (categories.isEmpty()) {
+            return;
+        }
+        long current = System.currentTimeMillis() / bucketMillis;
+        long slice = Math.min(time / bucketMillis, current);
+        if (slice <= current - buckets.length()) {
+            return; // before the window
+        }
+        Bucket bucket = getBucket(slice);
+        if (bucket == null) {
+            return; // slot already taken by a later slice
+        }
+        AtomicInteger count;
+        for (String category : categories) {
+            count = bucket.counts.get(category);
+            if (count == null) {
+                if (bucket.counts.size() >= maxTerms) {
+                    continue;
+                }
+                count = bucket.counts.putIfAbsent(category,
+                        new AtomicInteger(1));
+                if (count == null) {
+                    continue;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the specified range of categories, most frequently used first.
+     */
+    String[] getCategories(int start, int length) {
+        String[] result = ranked;
+        if (rankedTime + refreshMillis < System.currentTimeMillis()) {
+            result = rank();
+        }
+        if (start < 0 || length < 1 || start >= result.length) {
+            return new String[0];
+        }
+        String[] page = new String[Math.min(length, result.length - start)];
+        System.arraycopy(result, start, page, 0, page.length);
+        return page;
+    }
+
+    private Bucket getBucket(long slice) {
+        int index = (int) (slice % buckets.length());
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            if (bucket != null && bucket.slice == slice) {
+                return bucket;
+            }
+            if (bucket != null && bucket.slice > slice) {
+                return null;
+            }
+            if (buckets.compareAndSet(index, bucket, new Bucket(slice))) {
+                return buckets.get(index);
+            }
+        }
+    }
+
+    private synchronized String[] rank() {
+        long now = System.currentTimeMillis();
+        if (rankedTime + refreshMillis >= now) {
+            return ranked; // another thread just ranked
+        }
+        long oldest = now / bucketMillis - buckets.length();
+        final Map<String, Integer> totals = new HashMap<String, Integer>();
+        Bucket bucket;
+        Integer total;
+        for (int i = 0; i < buckets.length(); i++) {
+            bucket = buckets.get(i);
+            if (bucket != null && bucket.slice > oldest) {
+                for (Map.Entry<String, AtomicInteger> e : bucket.counts
+                        .entrySet()) {
+                    total = totals.get(e.getKey());
+                    totals.put(e.getKey(), e.getValue().get()
+                            + (total == null ? 0 : total));
+                }
+            }
+        }
+        List<String> categories = new ArrayList<String>(totals.keySet());
+        Collections.sort(categories, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int result = totals.get(b).compareTo(totals.get(a));
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+        if (categories.size() > maxRanked) {
+            categories = categories.subList(0, maxRanked);
+        }
+        ranked = categories.toArray(new String[categories.size()]);
+        rankedTime = now;
+        return ranked;
+    }
+
+    private static final class Bucket {
+        final long slice;
+        final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+        Bucket(long slice) {
+            this.slice = slice;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+
+/**
+ * Computes the ripemd160 digest of the content as it is read, and throws an
+ * IOException at end of stream if the url-safe base64 encoding of the digest
+ * does not match the expected content id. Storage implementations that write
+ * to a temporary file and only commit on a clean end of stream will then never
+ * persist unverified content.
+ *
+ * @author mpowers
+ */
+class ContentDigestInputStream extends FilterInputStream {
+
+    private final String expected;
+    private final RIPEMD160Digest digest;
+    private String actual;
+
+    /**
+     * @param input
+     *            the content to be verified.
+     * @param expected
+     *            the url-safe base64 ripemd160 digest of the content.
+     */
+    ContentDigestInputStream(InputStream input, String expected) {
+        super(input);
+        this.expected = expected;
+        this.digest = new RIPEMD160Digest();
+    }
+
+    /**
+     * Returns true if the end of stream was reached and the digest did not
+     * match the expected digest.
+     */
+    boolean isMismatched() {
+        return actual != null && !actual.equals(expected);
+    }
+
+    /**
+     * Returns the computed digest, or null if the end of stream has not yet
+     * been reached.
+     */
+    String getDigest() {
+        return actual;
+    }
+
+    public int read() throws IOException {
+        int c = in.read();
+        if (c == -1) {
+            finish();
+        } else {
+            digest.update((byte) c);
+        }
+        return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int c = in.read(b, off, len);
+        if (c == -1) {
+            finish();
+        } else {
+            digest.update(b, off, c);
+        }
+        return c;
+    }
+
+    public long skip(long n) throws IOException {
+        // skipped content must still be digested
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        int c = read(buf, 0, buf.length);
+        return c == -1 ? 0 : c;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void finish() throws IOException {
+        if (actual == null) {
+            byte[] result = new byte[digest.getDigestSize()];
+            digest.doFinal(result, 0);
+            actual = new Base64(0, null, true).encodeToString(result);
+        }
+        if (!actual.equals(expected)) {
+            throw new IOException("Content digests did not match: "
+                    + expected + " : " + actual);
+        }
+    }
+
+}
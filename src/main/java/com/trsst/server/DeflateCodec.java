@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses feeds and entries for storage. Each document is deflated on its
+ * own, so a preset dictionary of the namespaces and signature markup that
+ * every signed feed and entry repeats lets even a short entry compress well.
+ *
+ * An encoded document begins with a header that can never begin utf-8 text:
+ * the byte 0xFE, "TZ", the dictionary version, and the length of the utf-8
+ * text as a four-byte integer. Files without the header are plain text
+ * written before compression was enabled.
+ *
+ * @author mpowers
+ */
+final class DeflateCodec {
+
+    private static final byte[] MAGIC = { (byte) 0xFE, 'T', 'Z' };
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * Deflate can't encode more than 258 bytes in two bits, so a header
+     * claiming more than this many bytes for each compressed byte is corrupt.
+     */
+    private static final int MAX_RATIO = 1032;
+
+    /**
+     * Increment when changing the dictionary, and keep the previous
+     * dictionaries to read existing files.
+     */
+    private static final byte VERSION = 1;
+
+    /**
+     * Deflate looks back from the end of the dictionary, so the most common
+     * strings come last.
+     */
+    private static final byte[] DICTIONARY = toBytes("<?xml version=\"1.0\"?>"
+            + "<feed xmlns=\"http://www.w3.org/2005/Atom\" "
+            + "xmlns:opensearch=\"http://a9.com/-/spec/opensearch/1.1/\" "
+            + "xmlns:activity=\"http://activitystrea.ms/spec/1.0/\" "
+            + "xml:space=\"default\" xml:base=\"http://"
+            + "<trsst:encrypt><trsst:sign><subtitle type=\"text\">"
+            + "<icon>urn:feed:</icon><logo></logo><author><name></name>"
+            + "<uri></uri><email></email></author>"
+            + "<link rel=\"alternate\" href=\"http://\"/>"
+            + "<link rel=\"enclosure\" type=\"image/"
+            + "<link rel=\"self\" type=\"application/atom+xml\" href=\""
+            + "<xenc:EncryptedData xmlns:xenc=\"http://www.w3.org/2001/04/xmlenc#\">"
+            + "<xenc:CipherData><xenc:CipherValue></xenc:CipherValue>"
+            + "</xenc:CipherData></xenc:EncryptedData>"
+            + "<content type=\"application/xenc+xml\">"
+            + "<category scheme=\"urn:tag\" term=\"\"/>"
+            + "<category scheme=\"urn:mention\" term=\"urn:feed:\"/>"
+            + "<trsst:mention>urn:feed:</trsst:mention>"
+            + "<activity:verb>post</activity:verb>"
+            + "<content type=\"html\"><summary type=\"html\">"
+            + "<rights type=\"text\">attribution, no derivatives, "
+            + "revoked if deleted</rights>"
+            + "<trsst:predecessor hash=\"ripemd160\">urn:entry:"
+            + "</trsst:predecessor>"
+            + "<entry xmlns=\"http://www.w3.org/2005/Atom\" "
+            + "xmlns:trsst=\"http://trsst.com/spec/0.1\" "
+            + "xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">"
+            + "<updated>2014-01-01T00:00:00.000Z</updated>"
+            + "<id>urn:entry::</id>"
+            + "<published>2014-01-01T00:00:00.000Z</published>"
+            + "<title type=\"text\"></title>"
+            + "<ds:Signature><ds:SignedInfo>"
+            + "<ds:CanonicalizationMethod Algorithm=\"http://www.w3.org/TR/2001/REC-xml-c14n-20010315\"/>"
+            + "<ds:SignatureMethod Algorithm=\"http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha1\"/>"
+            + "<ds:Reference URI=\"\"><ds:Transforms>"
+            + "<ds:Transform Algorithm=\"http://www.w3.org/2000/09/xmldsig#enveloped-signature\"/>"
+            + "<ds:Transform Algorithm=\"http://www.w3.org/2001/10/xml-exc-c14n#\"/>"
+            + "</ds:Transforms>"
+            + "<ds:DigestMethod Algorithm=\"http://www.w3.org/2000/09/xmldsig#sha1\"/>"
+            + "<ds:DigestValue></ds:DigestValue></ds:Reference>"
+            + "</ds:SignedInfo><ds:SignatureValue></ds:SignatureValue>"
+            + "</ds:Signature></entry>");
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private DeflateCodec() {
+    }
+
+    /**
+     * Returns the encoded form of the specified text.
+     */
+    static byte[] encode(String text) throws IOException {
+        byte[] input = text.getBytes(FileStorage.ENCODING);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+        // signed xml rarely compresses to less than a quarter
+        byte[] output = new byte[HEADER_LENGTH + input.length / 3 + 64];
+        int length = HEADER_LENGTH;
+        while (!deflater.finished()) {
+            if (length == output.length) {
+                byte[] larger = new byte[output.length * 2];
+                System.arraycopy(output, 0, larger, 0, length);
+                output = larger;
+            }
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        System.arraycopy(MAGIC, 0, output, 0, MAGIC.length);
+        output[3] = VERSION;
+        ByteBuffer.wrap(output, 4, 4).putInt(input.length);
+        byte[] result = new byte[length];
+        System.arraycopy(output, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Returns true if the remaining bytes of the specified buffer begin with
+     * an encoding header.
+     */
+    static boolean isEncoded(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        int position = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(position + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the text encoded in the remaining bytes of the specified buffer.
+     * 
+     * @throws IOException
+     *             if the header is not supported or does not match the
+     *             compressed data that follows it.
+     */
+    static String decode(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        byte version = buffer.get(position + 3);
+        if (version != VERSION) {
+            throw new IOException("Unsupported compression version: "
+                    + version);
+        }
+        int length = buffer.getInt(position + 4);
+        long compressed = buffer.remaining() - HEADER_LENGTH;
+        if (length < 0 || length > compressed * MAX_RATIO + MAX_RATIO) {
+            // check before allocating: the header is untrusted
+            throw new IOException("Corrupt compressed data length: " + length);
+        }
+        byte[] input;
+        int offset;
+        if (buffer.hasArray()) {
+            input = buffer.array();
+            offset = buffer.arrayOffset() + position + HEADER_LENGTH;
+        } else {
+            // mapped file: copy out
+            input = new byte[buffer.remaining() - HEADER_LENGTH];
+            ByteBuffer source = buffer.duplicate();
+            source.position(position + HEADER_LENGTH);
+            source.get(input);
+            offset = 0;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(input, offset, buffer.limit() - position
+                - HEADER_LENGTH);
+        byte[] output = new byte[length];
+        try {
+            int count = 0;
+            int n;
+            while (count < length) {
+                n = inflater.inflate(output, count, length - count);
+                if (n == 0) {
+                    throw new IOException(
+                            inflater.finished() ? "Compressed data shorter than header length"
+                                    : "Truncated compressed data");
+                }
+                count += n;
+            }
+            if (!inflater.finished()) {
+                // consume the end of the stream, which must produce nothing
+                if (inflater.inflate(new byte[1]) != 0) {
+                    throw new IOException(
+                            "Compressed data longer than header length");
+                }
+                if (!inflater.finished()) {
+                    throw new IOException("Truncated compressed data");
+                }
+            }
+            if (inflater.getRemaining() > 0) {
+                throw new IOException("Unexpected bytes after compressed data");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data: " + e.getMessage());
+        }
+        return new String(output, FileStorage.ENCODING);
+    }
+
+    private static byte[] toBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // not possible
+        }
+    }
+
+}
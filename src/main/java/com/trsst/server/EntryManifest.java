@@ -0,0 +1,596 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sorted index of the entry ids and publish dates for a single feed, backed by
+ * an append-only file of fixed-width records so that paging and counting a
+ * feed no longer requires listing and stat-ing every entry file.
+ *
+ * Each record is an entry id followed by its publish date; a deletion is
+ * recorded as the entry id followed by Long.MIN_VALUE. Later records supersede
+ * earlier ones, and the file is rewritten once superseded records outnumber
+ * live ones.
+ *
+ * Readers work against an immutable snapshot of primitive arrays and never
+ * block; writers are serialized on this instance. Adding an entry that is
+ * both the newest and the highest id, as new posts are, takes amortized
+ * constant time; other changes copy the snapshot.
+ *
+ * @author mpowers
+ */
+class EntryManifest {
+
+    private static final int RECORD_SIZE = 16;
+    private static final long DELETED = Long.MIN_VALUE;
+
+    /**
+     * Backing file, or null for a manifest held only in memory.
+     */
+    private final File file;
+
+    /**
+     * Current immutable view of the manifest.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Number of records in the backing file that no longer describe a live
+     * entry.
+     */
+    private int garbage;
+
+    /**
+     * Creates an empty manifest backed by the specified file; callers must
+     * then either load() or rebuild().
+     *
+     * @param file
+     *            the backing file, or null to keep the manifest in memory.
+     */
+    EntryManifest(File file) {
+        this.file = file;
+        this.snapshot = Snapshot.EMPTY;
+    }
+
+    /**
+     * Returns the backing file, or null if held in memory.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the backing file, if any, replaying all records.
+     */
+    synchronized void load() throws IOException {
+        if (file == null || !file.exists()) {
+            snapshot = Snapshot.EMPTY;
+            garbage = 0;
+            return;
+        }
+        Map<Long, Long> live = new HashMap<Long, Long>();
+        int records = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            long count = file.length() / RECORD_SIZE;
+            long id, date;
+            for (long i = 0; i < count; i++) {
+                id = input.readLong();
+                date = input.readLong();
+                records++;
+                if (date == DELETED) {
+                    live.remove(id);
+                } else {
+                    live.put(id, date);
+                }
+            }
+        } catch (EOFException eof) {
+            // partial trailing record from an interrupted append
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+        if (file.length() != (long) records * RECORD_SIZE) {
+            // drop the partial record so that appends stay aligned
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength((long) records * RECORD_SIZE);
+            } finally {
+                try {
+                    output.close();
+                } catch (IOException ioe) {
+                    // suppress any futher error on closing
+                }
+            }
+        }
+        long[] ids = new long[live.size()];
+        long[] dates = new long[live.size()];
+        int i = 0;
+        for (Map.Entry<Long, Long> e : live.entrySet()) {
+            ids[i] = e.getKey();
+            dates[i] = e.getValue();
+            i++;
+        }
+        snapshot = Snapshot.create(ids, dates);
+        garbage = records - ids.length;
+    }
+
+    /**
+     * Replaces the contents of this manifest with the specified entries and
+     * rewrites the backing file, if any.
+     *
+     * @param ids
+     *            the entry ids; not retained.
+     * @param dates
+     *            the corresponding publish dates; not retained.
+     */
+    synchronized void rebuild(long[] ids, long[] dates) throws IOException {
+        snapshot = Snapshot.create(ids.clone(), dates.clone());
+        rewrite();
+    }
+
+    /**
+     * Adds or replaces the specified entry.
+     */
+    synchronized void put(long entryId, long publishDate) throws IOException {
+        if (publishDate == DELETED) {
+            publishDate++; // reserved for deletion records
+        }
+        Snapshot current = snapshot;
+        int index = current.indexOfId(entryId);
+        if (index >= 0 && current.datesById[index] == publishDate) {
+            return; // no change
+        }
+        if (index >= 0) {
+            garbage++;
+        }
+        append(entryId, publishDate);
+        snapshot = current.with(entryId, publishDate);
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the specified entry if present.
+     */
+    synchronized void remove(long entryId) throws IOException {
+        Snapshot current = snapshot;
+        if (current.indexOfId(entryId) < 0) {
+            return; // no change
+        }
+        garbage += 2; // the deletion record and the record it supersedes
+        append(entryId, DELETED);
+        snapshot = current.without(entryId);
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns true if the specified entry is present.
+     */
+    boolean contains(long entryId) {
+        return snapshot.indexOfId(entryId) >= 0;
+    }
+
+    /**
+     * Returns the publish date of the specified entry, or Long.MIN_VALUE if
+     * not present.
+     */
+    long getDate(long entryId) {
+        Snapshot current = snapshot;
+        int index = current.indexOfId(entryId);
+        if (index < 0) {
+            return DELETED;
+        }
+        return current.datesById[index];
+    }
+
+    /**
+     * Returns the number of entries published strictly after and strictly
+     * before the specified times, or all entries if a time is zero.
+     */
+    int getEntryCount(long afterTime, long beforeTime) {
+        Snapshot current = snapshot;
+        return current.end(afterTime) - current.begin(beforeTime);
+    }
+
+    /**
+     * Returns the specified range of entry ids published strictly after and
+     * strictly before the specified times, most recent first.
+     */
+    long[] getEntryIds(int start, int length, long afterTime, long beforeTime) {
+        Snapshot current = snapshot;
+        int begin = current.begin(beforeTime) + start;
+        int end = Math.min(current.end(afterTime), begin + length);
+        if (begin >= end) {
+            return new long[0];
+        }
+        long[] result = new long[end - begin];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = current.idAt(begin + i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to the specified number of entry ids that follow the
+     * specified entry, published strictly after and strictly before the
+     * specified times, most recent first. If the specified entry is no longer
+     * present, its id is taken to be its publish date.
+     */
+    long[] getEntryIdsAfter(long entryId, int length, long afterTime,
+            long beforeTime) {
+        Snapshot current = snapshot;
+        int index = current.indexOfId(entryId);
+        int begin;
+        if (index >= 0) {
+            begin = current.position(entryId, current.datesById[index]) + 1;
+        } else {
+            begin = current.position(entryId, entryId);
+        }
+        begin = Math.max(begin, current.begin(beforeTime));
+        int end = Math.min(current.end(afterTime), begin + length);
+        if (begin >= end) {
+            return new long[0];
+        }
+        long[] result = new long[end - begin];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = current.idAt(begin + i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of entries in this manifest.
+     */
+    int size() {
+        return snapshot.size;
+    }
+
+    private void append(long entryId, long publishDate) throws IOException {
+        if (file == null) {
+            return;
+        }
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs(); // ensure directory exists
+        }
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true),
+                        RECORD_SIZE));
+        try {
+            output.writeLong(entryId);
+            output.writeLong(publishDate);
+            output.flush();
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (garbage > 64 && garbage > snapshot.size) {
+            rewrite();
+        }
+    }
+
+    private void rewrite() throws IOException {
+        garbage = 0;
+        if (file == null) {
+            return;
+        }
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs(); // ensure directory exists
+        }
+        Snapshot current = snapshot;
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            // oldest first so appends keep roughly chronological order
+            for (int i = 0; i < current.size; i++) {
+                output.writeLong(current.ids[i]);
+                output.writeLong(current.dates[i]);
+            }
+            output.flush();
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+        if (!temp.renameTo(file)) {
+            // some platforms won't rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace manifest: " + file);
+            }
+        }
+    }
+
+    /**
+     * Immutable view of a manifest: entries ordered oldest first, and the same
+     * entries ordered by id for lookups. Both orders usually place a new entry
+     * last, so the arrays have room to grow, and a snapshot with an entry
+     * appended shares them with its predecessor, which never reads past its
+     * own size.
+     */
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new long[0], new long[0],
+                new long[0], new long[0], 0);
+
+        /** Entry ids ordered by ascending date then ascending id. */
+        final long[] ids;
+        /** Publish dates in the same order as ids. */
+        final long[] dates;
+        /** Entry ids in ascending order. */
+        final long[] sortedIds;
+        /** Publish dates in the same order as sortedIds. */
+        final long[] datesById;
+        /** Number of entries; the arrays may be longer. */
+        final int size;
+
+        private Snapshot(long[] ids, long[] dates, long[] sortedIds,
+                long[] datesById, int size) {
+            this.ids = ids;
+            this.dates = dates;
+            this.sortedIds = sortedIds;
+            this.datesById = datesById;
+            this.size = size;
+        }
+
+        /**
+         * Takes ownership of the specified unordered arrays.
+         */
+        static Snapshot create(long[] ids, long[] dates) {
+            long[] sortedIds = ids.clone();
+            long[] datesById = dates.clone();
+            sort(sortedIds, datesById, false);
+            sort(ids, dates, true);
+            return new Snapshot(ids, dates, sortedIds, datesById, ids.length);
+        }
+
+        int indexOfId(long entryId) {
+            return Arrays.binarySearch(sortedIds, 0, size, entryId);
+        }
+
+        /**
+         * Returns the id of the entry at the specified index, most recent
+         * first.
+         */
+        long idAt(int index) {
+            return ids[size - 1 - index];
+        }
+
+        /**
+         * Returns the index of the first entry dated before the specified
+         * time, most recent first, or zero if time is zero.
+         */
+        int begin(long beforeTime) {
+            if (beforeTime == 0) {
+                return 0;
+            }
+            return size - following(beforeTime - 1, Long.MAX_VALUE);
+        }
+
+        /**
+         * Returns the index following the last entry dated after the specified
+         * time, most recent first, or the size if time is zero.
+         */
+        int end(long afterTime) {
+            if (afterTime == 0) {
+                return size;
+            }
+            return size - following(afterTime, Long.MAX_VALUE);
+        }
+
+        /**
+         * Returns the index at which the specified entry belongs, most recent
+         * first.
+         */
+        int position(long entryId, long date) {
+            return size - following(date, entryId);
+        }
+
+        /**
+         * Returns the index in ids of the first entry that sorts after the
+         * specified date and id.
+         */
+        private int following(long date, long entryId) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (dates[mid] < date
+                        || (dates[mid] == date && ids[mid] <= entryId)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns a snapshot that also contains the specified entry. Must only
+         * be called on the latest snapshot sharing these arrays.
+         */
+        Snapshot with(long entryId, long date) {
+            Snapshot base = without(entryId);
+            int n = base.size;
+            int i = base.following(date, entryId);
+            int j = -(base.indexOfId(entryId) + 1);
+            if (i == n && j == n) {
+                // newest entry with the highest id: append in place
+                long[] newIds = base.ids;
+                long[] newDates = base.dates;
+                long[] newSortedIds = base.sortedIds;
+                long[] newDatesById = base.datesById;
+                if (n == newIds.length) {
+                    int capacity = Math.max(8, n + (n >> 1));
+                    newIds = Arrays.copyOf(newIds, capacity);
+                    newDates = Arrays.copyOf(newDates, capacity);
+                    newSortedIds = Arrays.copyOf(newSortedIds, capacity);
+                    newDatesById = Arrays.copyOf(newDatesById, capacity);
+                }
+                newIds[n] = entryId;
+                newDates[n] = date;
+                newSortedIds[n] = entryId;
+                newDatesById[n] = date;
+                return new Snapshot(newIds, newDates, newSortedIds,
+                        newDatesById, n + 1);
+            }
+
+            long[] newIds = new long[n + 1];
+            long[] newDates = new long[n + 1];
+            System.arraycopy(base.ids, 0, newIds, 0, i);
+            System.arraycopy(base.dates, 0, newDates, 0, i);
+            newIds[i] = entryId;
+            newDates[i] = date;
+            System.arraycopy(base.ids, i, newIds, i + 1, n - i);
+            System.arraycopy(base.dates, i, newDates, i + 1, n - i);
+
+            long[] newSortedIds = new long[n + 1];
+            long[] newDatesById = new long[n + 1];
+            System.arraycopy(base.sortedIds, 0, newSortedIds, 0, j);
+            System.arraycopy(base.datesById, 0, newDatesById, 0, j);
+            newSortedIds[j] = entryId;
+            newDatesById[j] = date;
+            System.arraycopy(base.sortedIds, j, newSortedIds, j + 1, n - j);
+            System.arraycopy(base.datesById, j, newDatesById, j + 1, n - j);
+
+            return new Snapshot(newIds, newDates, newSortedIds, newDatesById,
+                    n + 1);
+        }
+
+        /**
+         * Returns a snapshot without the specified entry, copying the arrays
+         * so that an append can't overwrite what this snapshot still reads.
+         */
+        Snapshot without(long entryId) {
+            int j = indexOfId(entryId);
+            if (j < 0) {
+                return this;
+            }
+            int n = size;
+            int i = following(datesById[j], entryId) - 1;
+
+            long[] newIds = new long[n - 1];
+            long[] newDates = new long[n - 1];
+            System.arraycopy(ids, 0, newIds, 0, i);
+            System.arraycopy(dates, 0, newDates, 0, i);
+            System.arraycopy(ids, i + 1, newIds, i, n - i - 1);
+            System.arraycopy(dates, i + 1, newDates, i, n - i - 1);
+
+            long[] newSortedIds = new long[n - 1];
+            long[] newDatesById = new long[n - 1];
+            System.arraycopy(sortedIds, 0, newSortedIds, 0, j);
+            System.arraycopy(datesById, 0, newDatesById, 0, j);
+            System.arraycopy(sortedIds, j + 1, newSortedIds, j, n - j - 1);
+            System.arraycopy(datesById, j + 1, newDatesById, j, n - j - 1);
+
+            return new Snapshot(newIds, newDates, newSortedIds, newDatesById,
+                    n - 1);
+        }
+
+        /**
+         * Sorts the parallel arrays in place: by ascending id, or by
+         * ascending date then ascending id.
+         */
+        private static void sort(long[] ids, long[] dates, boolean byDate) {
+            sort(ids, dates, byDate, 0, ids.length - 1);
+        }
+
+        private static void sort(long[] ids, long[] dates, boolean byDate,
+                int low, int high) {
+            while (low < high) {
+                if (high - low < 16) {
+                    // insertion sort for small ranges
+                    for (int i = low + 1; i <= high; i++) {
+                        for (int j = i; j > low
+                                && before(ids[j], dates[j], ids[j - 1],
+                                        dates[j - 1], byDate); j--) {
+                            swap(ids, dates, j, j - 1);
+                        }
+                    }
+                    return;
+                }
+                int mid = (low + high) >>> 1;
+                long pivotId = ids[mid];
+                long pivotDate = dates[mid];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (before(ids[i], dates[i], pivotId, pivotDate, byDate)) {
+                        i++;
+                    }
+                    while (before(pivotId, pivotDate, ids[j], dates[j], byDate)) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(ids, dates, i++, j--);
+                    }
+                }
+                // recurse into the smaller side to bound stack depth
+                if (j - low < high - i) {
+                    sort(ids, dates, byDate, low, j);
+                    low = i;
+                } else {
+                    sort(ids, dates, byDate, i, high);
+                    high = j;
+                }
+            }
+        }
+
+        private static boolean before(long id1, long date1, long id2,
+                long date2, boolean byDate) {
+            if (byDate) {
+                return date1 < date2 || (date1 == date2 && id1 < id2);
+            }
+            return id1 < id2;
+        }
+
+        private static void swap(long[] ids, long[] dates, int i, int j) {
+            long t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+            t = dates[i];
+            dates[i] = dates[j];
+            dates[j] = t;
+        }
+    }
+
+}
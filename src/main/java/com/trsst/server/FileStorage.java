@@ -17,6 +17,7 @@ package com.trsst.server;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -24,18 +25,29 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
 import com.trsst.Common;
 
 /**
@@ -46,46 +58,545 @@ import com.trsst.Common;
  * Files are placed in a "trsstd" directory inside of your home directory, or
  * inside the directory in the system property "com.trsst.storage" if specified.
  * 
+ * Each feed directory keeps a manifest of its entry ids and publish dates so
+ * that paging and counting don't need to list and stat the entry files.
+ * 
+ * New storage roots use a sharded layout: each feed directory is placed under
+ * two levels of directories named by a hash of the feed id, and entries and
+ * resources are placed in subdirectories of the feed directory by the time of
+ * the entry, so that no directory grows without bound. Roots created by
+ * earlier versions keep the flat layout, with every feed directly under the
+ * root and every entry directly in its feed directory, until migrated with
+ * migrate(); both layouts are resolved in the meantime. The layout of a root
+ * is recorded in its "storage.properties" file, and each process using a root
+ * holds a shared lock on its "storage.lock" file, which migrate() must lock
+ * exclusively.
+ * 
+ * Entries and feeds are stored compressed if the "compression" property of a
+ * root is "deflate"; a root without the property takes its setting from the
+ * system property "com.trsst.server.storage.compression" (default "none").
+ * Files written before a root was compressed remain readable, and are
+ * compressed when next written.
+ * 
+ * Resources are stored once per distinct content in a blob store under the
+ * "blobs" directory of the root; each feed keeps a small reference file for
+ * each of its resources, naming the blob by its digest. Resources stored by
+ * earlier versions as plain files in the feed directory remain readable.
+ * 
+ * If the system property "com.trsst.server.storage.mmap" is "true", entries
+ * and feeds are read from memory mappings that are cached up to the number of
+ * bytes in "com.trsst.server.storage.mmap.bytes" (default 64MB); mappings
+ * evicted from the cache hold address space until they are garbage collected.
+ * 
  * @author mpowers
  */
 public class FileStorage implements Storage {
 
     public static final String FEED_XML = "feed.xml";
     public static final String ENTRY_SUFFIX = ".atom";
+    public static final String ENTRY_MANIFEST = "entries.manifest";
     public static final String ENCODING = "UTF-8";
+    public static final String STORAGE_PROPERTIES = "storage.properties";
+    public static final String BLOBS = "blobs";
+    public static final String BLOB_REFERENCE_SUFFIX = ".ref";
+    private static final String LOCK_FILE = "storage.lock";
+
+    /**
+     * Lock on the lock file of each root used by this process: shared while
+     * in use, exclusive while migrating. A jvm holds file locks for the whole
+     * process, and throws on overlapping requests, so all storages of a root
+     * in this process share one.
+     */
+    private static final Map<File, RootLock> rootLocks = new HashMap<File, RootLock>();
 
     private File root;
 
+    /**
+     * True if new feeds are created in the sharded layout.
+     */
+    private volatile boolean sharded;
+
+    /**
+     * True if entries and feeds are written compressed.
+     */
+    private boolean compressed;
+
+    /**
+     * Loaded entry manifests, bounded by total number of entries.
+     */
+    private ConcurrentMap<String, EntryManifest> manifests;
+
+    /**
+     * Striped locks serializing manifest loads with manifest updates.
+     */
+    private final Object[] manifestLocks;
+
+    /**
+     * Memory-mapped entry and feed files, bounded by total bytes mapped; null
+     * if memory-mapped reads are not enabled.
+     */
+    private ConcurrentMap<File, ByteBuffer> mappedFiles;
+
+    /**
+     * Counts writes and deletes by stripe of file, so that a reader can tell
+     * whether the file it mapped was replaced before it cached the mapping.
+     */
+    private final AtomicLongArray mappedVersions = new AtomicLongArray(64);
+
+    /**
+     * Shared content of resources.
+     */
+    private final BlobStore blobs;
+
+    /**
+     * Feeds for which we have a keystore; created on first use.
+     */
+    private volatile ManagedFeedRegistry managedFeeds;
+
     public FileStorage() {
         this(Common.getServerRoot());
     }
 
     public FileStorage(File root) {
         this.root = root;
-        System.err.println("File storage serving from: " + root);
+        this.manifests = new ConcurrentLinkedHashMap.Builder<String, EntryManifest>()
+                .maximumWeightedCapacity(1024 * 1024)
+                .weigher(new Weigher<EntryManifest>() {
+                    public int weightOf(EntryManifest manifest) {
+                        return manifest.size() + 1;
+                    }
+                }).build();
+        this.blobs = new BlobStore(new File(root, BLOBS));
+        this.manifestLocks = new Object[64];
+        for (int i = 0; i < manifestLocks.length; i++) {
+            manifestLocks[i] = new Object();
+        }
+        if (Boolean.getBoolean("com.trsst.server.storage.mmap")) {
+            this.mappedFiles = new ConcurrentLinkedHashMap.Builder<File, ByteBuffer>()
+                    .maximumWeightedCapacity(
+                            Long.getLong("com.trsst.server.storage.mmap.bytes",
+                                    64 * 1024 * 1024))
+                    .weigher(new Weigher<ByteBuffer>() {
+                        public int weightOf(ByteBuffer buffer) {
+                            return buffer.capacity() + 1;
+                        }
+                    }).build();
+        }
+        acquireRoot();
+        loadProperties();
+        System.err.println("File storage serving from: " + root
+                + (sharded ? "" : " (flat layout)"));
+    }
+
+    /**
+     * Reads the layout and compression of this root from its properties, or
+     * if none, records the sharded layout for a new root and the flat layout
+     * for an existing one.
+     */
+    private void loadProperties() {
+        File file = new File(root, STORAGE_PROPERTIES);
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream input = null;
+            try {
+                input = new FileInputStream(file);
+                properties.load(input);
+            } catch (IOException e) {
+                log.error("Could not read storage properties: " + file, e);
+            } finally {
+                try {
+                    if (input != null) {
+                        input.close();
+                    }
+                } catch (IOException ioe) {
+                    // suppress any futher error on closing
+                }
+            }
+            sharded = !"flat".equals(properties.getProperty("layout"));
+        } else {
+            sharded = getFlatFeedDirs().length == 0;
+        }
+        String compression = properties.getProperty("compression");
+        if (compression == null) {
+            compression = System.getProperty(
+                    "com.trsst.server.storage.compression", "none");
+        }
+        compressed = "deflate".equals(compression);
+        if (!file.exists() || properties.getProperty("compression") == null) {
+            saveProperties();
+        }
+    }
+
+    private void saveProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("layout", sharded ? "sharded" : "flat");
+        properties.setProperty("compression", compressed ? "deflate" : "none");
+        root.mkdirs();
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(new File(root, STORAGE_PROPERTIES));
+            properties.store(output, "trsst file storage");
+        } catch (IOException e) {
+            log.error("Could not write storage properties: " + root, e);
+        } finally {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+    }
+
+    /**
+     * Marks this root as used by this storage, first waiting for any other
+     * process migrating it.
+     */
+    private void acquireRoot() {
+        root.mkdirs();
+        synchronized (rootLocks) {
+            File key = getCanonicalRoot();
+            RootLock held = rootLocks.get(key);
+            while (held != null && held.migrating) {
+                try {
+                    rootLocks.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                held = rootLocks.get(key);
+            }
+            if (held == null) {
+                held = new RootLock();
+                try {
+                    held.channel = new RandomAccessFile(new File(root,
+                            LOCK_FILE), "rw").getChannel();
+                    held.lock = held.channel.tryLock(0, Long.MAX_VALUE, true);
+                    if (held.lock == null) {
+                        System.err.println("Waiting for migration of: " + root);
+                        held.lock = held.channel.lock(0, Long.MAX_VALUE, true);
+                    }
+                } catch (IOException e) {
+                    log.warn("Could not lock storage: " + root, e);
+                }
+                rootLocks.put(key, held);
+            }
+            held.users++;
+        }
+    }
+
+    private File getCanonicalRoot() {
+        try {
+            return root.getCanonicalFile();
+        } catch (IOException e) {
+            return root.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Moves every feed in the flat layout into the sharded layout, one feed
+     * at a time, and then switches this root to the sharded layout. Refuses
+     * to run while any other process uses this root, or while any other
+     * storage in this process was created for it, so that no writer can
+     * resolve a feed to its old location. Processes that open this root
+     * meanwhile wait until the migration finishes. Progress is printed to the
+     * specified stream if not null.
+     * 
+     * @return the number of feeds migrated.
+     * @throws IOException
+     *             if the root is in use elsewhere, or a feed could not be
+     *             moved.
+     */
+    public int migrate(PrintStream out) throws IOException {
+        RootLock held;
+        synchronized (rootLocks) {
+            held = rootLocks.get(getCanonicalRoot());
+            if (held.users > 1 || held.migrating) {
+                throw new IOException("Storage is in use by this process: "
+                        + root);
+            }
+            if (held.channel == null) {
+                throw new IOException("Could not lock storage: " + root);
+            }
+            // trade our shared lock for an exclusive one
+            if (held.lock != null) {
+                held.lock.release();
+            }
+            held.lock = held.channel.tryLock();
+            if (held.lock == null) {
+                held.lock = held.channel.tryLock(0, Long.MAX_VALUE, true);
+                throw new IOException("Storage is in use by another process: "
+                        + root);
+            }
+            held.migrating = true;
+        }
+        int count = 0;
+        try {
+            File[] dirs = getFlatFeedDirs();
+            for (File dir : dirs) {
+                migrateFeed(Common.decodeURL(dir.getName()));
+                count++;
+                if (out != null && count % 100 == 0) {
+                    out.println("Migrated " + count + " of " + dirs.length
+                            + " feeds");
+                }
+            }
+            sharded = true;
+            saveProperties();
+        } finally {
+            synchronized (rootLocks) {
+                try {
+                    held.lock.release();
+                    held.lock = held.channel.lock(0, Long.MAX_VALUE, true);
+                } finally {
+                    held.migrating = false;
+                    rootLocks.notifyAll();
+                }
+            }
+        }
+        if (out != null) {
+            out.println("Migrated " + count + " feeds in " + root);
+        }
+        log.info("Migrated " + count + " feeds to sharded layout: " + root);
+        return count;
+    }
+
+    /**
+     * Moves the specified feed from the flat layout to the sharded layout.
+     */
+    private void migrateFeed(String feedId) throws IOException {
+        String name = Common.encodeURL(feedId);
+        File flat = new File(root, name);
+        File target = getShardedFeedDir(name);
+        synchronized (getManifestLock(feedId)) {
+            // the cached manifest refers to the old location
+            manifests.remove(feedId);
+            if (mappedFiles != null) {
+                String prefix = flat.getPath() + File.separator;
+                for (File file : mappedFiles.keySet()) {
+                    if (file.getPath().startsWith(prefix)) {
+                        invalidate(file);
+                    }
+                }
+            }
+            target.getParentFile().mkdirs();
+            if (!target.exists() && !flat.renameTo(target)) {
+                throw new IOException("Could not move feed: " + flat);
+            }
+            // move entries and resources into their time buckets, including
+            // any left in the flat directory if the move was interrupted
+            File[] sources = new File[] { flat, target };
+            for (File source : sources) {
+                File[] files = source.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    File destination;
+                    long entryId = getEntryIdForFileName(file.getName());
+                    if (file.isDirectory()) {
+                        continue;
+                    } else if (entryId != -1) {
+                        destination = new File(new File(target,
+                                getBucket(entryId)), file.getName());
+                    } else if (source != target) {
+                        destination = new File(target, file.getName());
+                    } else {
+                        continue; // feed.xml, manifest: stay put
+                    }
+                    destination.getParentFile().mkdirs();
+                    if (destination.exists()) {
+                        file.delete(); // already moved
+                    } else if (!file.renameTo(destination)) {
+                        throw new IOException("Could not move file: " + file);
+                    }
+                }
+            }
+            if (flat.exists() && !flat.delete()) {
+                log.warn("Could not remove migrated feed directory: " + flat);
+            }
+        }
+    }
+
+    /**
+     * Returns the entry id prefixing the specified entry or resource file
+     * name, or -1 if not an entry or resource file.
+     */
+    private static long getEntryIdForFileName(String name) {
+        int i = 0;
+        while (i < name.length() && i < 16
+                && Character.digit(name.charAt(i), 16) != -1) {
+            i++;
+        }
+        if (i == 0 || i == name.length()
+                || (name.charAt(i) != '.' && name.charAt(i) != '-')) {
+            return -1;
+        }
+        if (name.charAt(i) == '.' && !name.startsWith(ENTRY_SUFFIX, i)) {
+            return -1;
+        }
+        return Long.parseLong(name.substring(0, i), 16);
     }
 
     public String[] getFeedIds(int start, int length) {
         /* Returns feeds for which we have a keystore. */
-        File[] files = root.listFiles();
-        if (files == null) {
-            return new String[0];
+        return getManagedFeeds().getFeedIds(start, length);
+    }
+
+    /**
+     * Returns the registry of feeds for which we have a keystore, which is
+     * created on first use.
+     */
+    public ManagedFeedRegistry getManagedFeeds() {
+        if (managedFeeds == null) {
+            synchronized (this) {
+                if (managedFeeds == null) {
+                    managedFeeds = new ManagedFeedRegistry(root);
+                }
+            }
         }
-        List<String> result = new LinkedList<String>();
-        int i;
-        for (File f : files) {
-            i = f.getName().indexOf(Common.KEY_EXTENSION);
-            if (i != -1) {
-                result.add(Common.unescapeHTML(f.getName().substring(0, i)));
+        return managedFeeds;
+    }
+
+    /**
+     * Returns the ids of all feeds stored in this directory, whether or not
+     * they are managed by this server.
+     */
+    public String[] getStoredFeedIds() {
+        List<String> result = new ArrayList<String>();
+        File[] dirs = root.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (isHashDir(dir)) {
+                    File[] subdirs = dir.listFiles();
+                    if (subdirs != null) {
+                        for (File subdir : subdirs) {
+                            File[] feeds = subdir.listFiles();
+                            if (feeds != null) {
+                                for (File feed : feeds) {
+                                    addFeedId(feed, result);
+                                }
+                            }
+                        }
+                    }
+                } else {
+                    addFeedId(dir, result);
+                }
             }
         }
-        return result.toArray(new String[0]);
+        return result.toArray(new String[result.size()]);
     }
 
-    public String[] getCategories(int start, int length) {
+    private static void addFeedId(File dir, List<String> result) {
+        if (new File(dir, FEED_XML).exists()) {
+            result.add(Common.decodeURL(dir.getName()));
+        }
+    }
+
+    /**
+     * Returns the feed directories in the flat layout.
+     */
+    private File[] getFlatFeedDirs() {
+        File[] result = root.listFiles(new FileFilter() {
+            public boolean accept(File dir) {
+                return !isHashDir(dir)
+                        && (new File(dir, FEED_XML).exists() || new File(dir,
+                                ENTRY_MANIFEST).exists());
+            }
+        });
+        return result != null ? result : new File[0];
+    }
+
+    private static boolean isHashDir(File dir) {
+        String name = dir.getName();
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) != -1
+                && Character.digit(name.charAt(1), 16) != -1
+                && dir.isDirectory();
+    }
+
+    /**
+     * Returns the total size in bytes of the files stored for the specified
+     * feed, or -1 if the feed is not stored here.
+     */
+    public long getFeedSize(String feedId) {
+        File dir = getFeedDir(feedId);
+        if (!dir.exists()) {
+            return -1;
+        }
+        return getSize(dir);
+    }
+
+    /**
+     * Returns the size of the files in the specified directory, counting the
+     * full size of any shared blobs that they reference.
+     */
+    private long getSize(File dir) {
+        long result = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    result += getSize(file);
+                } else if (file.getName().endsWith(BLOB_REFERENCE_SUFFIX)) {
+                    try {
+                        result += blobs.getFile(readBlobReference(file))
+                                .length();
+                    } catch (IOException e) {
+                        result += file.length();
+                    }
+                } else {
+                    result += file.length();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time the specified feed's directory was last modified, or 0
+     * if the feed is not stored here.
+     */
+    public long getFeedLastModified(String feedId) {
+        return getFeedDir(feedId).lastModified();
+    }
+
+    /**
+     * Deletes the specified feed with all of its entries and resources.
+     */
+    public void deleteFeed(String feedId) throws IOException {
+        File dir = getFeedDir(feedId);
+        synchronized (getManifestLock(feedId)) {
+            manifests.remove(feedId);
+            delete(dir, Common.encodeURL(feedId));
+            if (dir.exists()) {
+                throw new IOException("Could not delete feed: " + dir);
+            }
+        }
+    }
 
-        // TODO: implement category trackers
+    private void delete(File dir, String name) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file, name);
+                } else {
+                    if (file.getName().endsWith(BLOB_REFERENCE_SUFFIX)) {
+                        releaseBlob(file, name);
+                    }
+                    invalidate(file);
+                    if (!file.delete()) {
+                        log.warn("Could not delete file: " + file);
+                    }
+                }
+            }
+        }
+        dir.delete();
+    }
 
+    public String[] getCategories(int start, int length) {
+        // not supported: LuceneStorage tracks categories as it indexes
         return new String[0];
     }
 
@@ -103,12 +614,14 @@ public class FileStorage implements Storage {
 
     public int getEntryCountForFeedId(String feedId, Date after, Date before,
             String query, String[] mentions, String[] tags, String verb) {
-        File[] files = new File(root, feedId).listFiles(new FileFilter() {
-            public boolean accept(File file) {
-                return file.getName().toLowerCase().endsWith(ENTRY_SUFFIX);
-            }
-        });
-        return files.length;
+        try {
+            return getManifest(feedId).getEntryCount(
+                    after != null ? after.getTime() : 0,
+                    before != null ? before.getTime() : 0);
+        } catch (IOException e) {
+            log.error("Could not read manifest for feed: " + feedId, e);
+            return -1;
+        }
     }
 
     public long[] getEntryIdsForFeedId(String feedId, int start, int length,
@@ -118,17 +631,47 @@ public class FileStorage implements Storage {
             throw new IllegalArgumentException("Invalid range: start: " + start
                     + " : length: " + length);
         }
-        long[] all = getEntryIdsForFeedId(feedId, after, before);
-        if (start >= all.length) {
-            return new long[0];
+
+        // TODO: implement query/tag/mention/verb filter
+
+        try {
+            return getManifest(feedId).getEntryIds(start, length,
+                    after != null ? after.getTime() : 0,
+                    before != null ? before.getTime() : 0);
+        } catch (IOException e) {
+            log.error("Could not read manifest for feed: " + feedId, e);
+            return null;
+        }
+    }
+
+    public String[] getEntryIdsFromCursor(String cursor, int length,
+            Date after, Date before, String query, String[] mentions,
+            String[] tags, String verb) {
+        // not supported
+        return null;
+    }
+
+    public long[] getEntryIdsForFeedIdFromCursor(String feedId, long cursor,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        if (cursor == 0) {
+            return getEntryIdsForFeedId(feedId, 0, length, after, before,
+                    query, mentions, tags, verb);
+        }
+        if (length < 1) {
+            throw new IllegalArgumentException("Invalid length: " + length);
         }
 
         // TODO: implement query/tag/mention/verb filter
 
-        int end = Math.min(start + length, all.length);
-        long[] result = new long[end - start];
-        System.arraycopy(all, start, result, 0, result.length);
-        return result;
+        try {
+            return getManifest(feedId).getEntryIdsAfter(cursor, length,
+                    after != null ? after.getTime() : 0,
+                    before != null ? before.getTime() : 0);
+        } catch (IOException e) {
+            log.error("Could not read manifest for feed: " + feedId, e);
+            return null;
+        }
     }
 
     public String readFeed(String feedId) throws FileNotFoundException,
@@ -150,19 +693,94 @@ public class FileStorage implements Storage {
         return readStringFromFile(getEntryFileForFeedEntry(feedId, entryId));
     }
 
+    /**
+     * Resolves the feed directory once and reads the entries in id order, so
+     * that entries in the same time bucket are read together.
+     */
+    public String[] readEntries(String feedId, long[] entryIds)
+            throws IOException {
+        File dir = getFeedDir(feedId);
+        long[] sorted = entryIds.clone();
+        Arrays.sort(sorted);
+        Map<Long, String> entries = new HashMap<Long, String>();
+        for (long entryId : sorted) {
+            try {
+                entries.put(entryId, readStringFromFile(getFileForFeedEntry(
+                        dir, entryId, Long.toHexString(entryId)
+                                + ENTRY_SUFFIX)));
+            } catch (FileNotFoundException e) {
+                // leave null
+            }
+        }
+        String[] result = new String[entryIds.length];
+        for (int i = 0; i < entryIds.length; i++) {
+            result[i] = entries.get(entryIds[i]);
+        }
+        return result;
+    }
+
+    public String[] readEntries(String[] entryIds) throws IOException {
+        // group by feed
+        Map<String, List<Integer>> feeds = new LinkedHashMap<String, List<Integer>>();
+        String feedId;
+        List<Integer> indices;
+        for (int i = 0; i < entryIds.length; i++) {
+            feedId = entryIds[i].substring(0, entryIds[i].lastIndexOf(':'));
+            indices = feeds.get(feedId);
+            if (indices == null) {
+                indices = new ArrayList<Integer>();
+                feeds.put(feedId, indices);
+            }
+            indices.add(i);
+        }
+        String[] result = new String[entryIds.length];
+        for (Map.Entry<String, List<Integer>> feed : feeds.entrySet()) {
+            indices = feed.getValue();
+            long[] ids = new long[indices.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = Common.toEntryId(entryIds[indices.get(i)]);
+            }
+            String[] entries = readEntries(feed.getKey(), ids);
+            for (int i = 0; i < ids.length; i++) {
+                result[indices.get(i)] = entries[i];
+            }
+        }
+        return result;
+    }
+
+    public boolean hasEntry(String feedId, long entryId) {
+        try {
+            return getManifest(feedId).contains(entryId);
+        } catch (IOException e) {
+            log.error("Could not read manifest for feed: " + feedId, e);
+            return getEntryFileForFeedEntry(feedId, entryId).exists();
+        }
+    }
+
     public void updateEntry(String feedId, long entryId, Date publishDate,
             String entry) throws IOException {
         File file = getEntryFileForFeedEntry(feedId, entryId);
-        writeStringToFile(entry, file);
-        if (publishDate != null) {
-            file.setLastModified(publishDate.getTime());
+        synchronized (getManifestLock(feedId)) {
+            writeStringToFile(entry, file);
+            if (publishDate != null) {
+                file.setLastModified(publishDate.getTime());
+            }
+            EntryManifest manifest = getManifest(feedId);
+            manifest.put(entryId, file.lastModified());
+            reweigh(feedId, manifest);
         }
     }
 
     public void deleteEntry(String feedId, long entryId) throws IOException {
         File file = getEntryFileForFeedEntry(feedId, entryId);
-        if (file.exists()) {
-            file.delete();
+        synchronized (getManifestLock(feedId)) {
+            if (file.exists()) {
+                file.delete();
+            }
+            invalidate(file);
+            EntryManifest manifest = getManifest(feedId);
+            manifest.remove(entryId);
+            reweigh(feedId, manifest);
         }
     }
 
@@ -175,139 +793,446 @@ public class FileStorage implements Storage {
     public InputStream readFeedEntryResource(String feedId, long entryId,
             String resourceId) throws IOException {
         return new BufferedInputStream(new FileInputStream(
-                getResourceFileForFeedEntry(feedId, entryId, resourceId)));
+                getResourceContentFile(feedId, entryId, resourceId)));
+    }
+
+    public ResourceHandle openFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws IOException {
+        File file = getResourceContentFile(feedId, entryId, resourceId);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        return new ResourceHandle(
+                getMimeTypeForFile(getResourceFileForFeedEntry(feedId,
+                        entryId, resourceId)), channel, 0, channel.size());
+    }
+
+    /**
+     * Returns the file holding the content of the specified resource: the
+     * shared blob if the resource refers to one, otherwise a plain file
+     * stored by an earlier version.
+     */
+    private File getResourceContentFile(String feedId, long entryId,
+            String resourceId) throws IOException {
+        File reference = getResourceReferenceFile(feedId, entryId, resourceId);
+        if (reference.exists()) {
+            return blobs.getFile(readBlobReference(reference));
+        }
+        return getResourceFileForFeedEntry(feedId, entryId, resourceId);
     }
 
     public void updateFeedEntryResource(String feedId, long entryId,
             String resourceId, String mimetype, Date publishDate, byte[] data)
             throws IOException {
-        File file = getResourceFileForFeedEntry(feedId, entryId, resourceId);
-        OutputStream output = new BufferedOutputStream(new FileOutputStream(
-                file));
+        updateFeedEntryResource(feedId, entryId, resourceId, mimetype,
+                publishDate, new ByteArrayInputStream(data));
+    }
+
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimetype, Date publishDate,
+            InputStream data) throws IOException {
+        String name = Common.encodeURL(feedId);
+        File file = getResourceReferenceFile(feedId, entryId, resourceId);
+        String reference = getBlobReference(name, file);
+        // read the content outside the lock, but reference it under the lock
+        // so that a concurrent delete can't release the blob in between
+        BlobStore.Staged staged = blobs.stage(data);
         try {
-            output.write(data, 0, data.length);
-            output.flush();
-            System.err.println("wrote: " + file.getAbsolutePath());
-        } finally {
-            try {
-                output.close();
-            } catch (IOException ioe) {
-                // suppress any futher error on closing
+            synchronized (getManifestLock(feedId)) {
+                String hash = blobs.put(staged, reference);
+                String previous = file.exists() ? readBlobReference(file)
+                        : null;
+                if (!hash.equals(previous)) {
+                    if (!file.getParentFile().exists()) {
+                        // ensure directory exists
+                        file.getParentFile().mkdirs();
+                    }
+                    File temp = File.createTempFile(file.getName(), ".tmp",
+                            file.getParentFile());
+                    OutputStream output = new FileOutputStream(temp);
+                    try {
+                        output.write(hash.getBytes(ENCODING));
+                    } finally {
+                        try {
+                            output.close();
+                        } catch (IOException ioe) {
+                            // suppress any futher error on closing
+                        }
+                    }
+                    renameTempFile(temp, file);
+                    if (previous != null) {
+                        blobs.release(previous, reference);
+                    }
+                }
+                // replace any copy stored by an earlier version
+                File legacy = getResourceFileForFeedEntry(feedId, entryId,
+                        resourceId);
+                if (legacy.exists()) {
+                    legacy.delete();
+                }
             }
+        } finally {
+            blobs.discard(staged);
         }
+        log.debug("wrote: " + file.getAbsolutePath());
         if (publishDate != null) {
             file.setLastModified(publishDate.getTime());
         }
     }
 
     public void deleteFeedEntryResource(String feedId, long entryId,
-            String resourceId) {
-        File file = getResourceFileForFeedEntry(feedId, entryId, resourceId);
-        if (file.exists()) {
-            file.delete();
+            String resourceId) throws IOException {
+        File file = getResourceReferenceFile(feedId, entryId, resourceId);
+        synchronized (getManifestLock(feedId)) {
+            if (file.exists()) {
+                releaseBlob(file, Common.encodeURL(feedId));
+                file.delete();
+            }
+            File legacy = getResourceFileForFeedEntry(feedId, entryId,
+                    resourceId);
+            if (legacy.exists()) {
+                legacy.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the name by which the specified resource reference file of the
+     * specified feed refers to its blob, which is the same in both layouts.
+     */
+    private static String getBlobReference(String name, File file) {
+        String fileName = file.getName();
+        return name
+                + '/'
+                + fileName.substring(0, fileName.length()
+                        - BLOB_REFERENCE_SUFFIX.length());
+    }
+
+    private static String readBlobReference(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return new String(Common.readFully(input), ENCODING).trim();
+        } finally {
+            try {
+                input.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
         }
     }
 
+    private void releaseBlob(File file, String name) {
+        try {
+            blobs.release(readBlobReference(file),
+                    getBlobReference(name, file));
+        } catch (IOException e) {
+            log.error("Could not release blob: " + file, e);
+        }
+    }
+
+    public void flush() {
+        // each file is written through
+    }
+
     private static final String getMimeTypeForFile(File file) {
         return URLConnection.getFileNameMap().getContentTypeFor(file.getName());
     }
 
-    private long[] getEntryIdsForFeedId(String feedId, Date after, Date before) {
-        feedId = Common.encodeURL(feedId);
-        final long afterTime = after != null ? after.getTime() : 0;
-        final long beforeTime = before != null ? before.getTime() : 0;
-        File[] files = new File(root, feedId).listFiles(new FileFilter() {
-            public boolean accept(File file) {
-                if ((file.getName().toLowerCase().endsWith(ENTRY_SUFFIX))
-                        && (afterTime == 0 || file.lastModified() > afterTime)
-                        && (beforeTime == 0 || file.lastModified() < beforeTime)) {
-                    return true;
+    private Object getManifestLock(String feedId) {
+        return manifestLocks[(feedId.hashCode() & 0x7fffffff)
+                % manifestLocks.length];
+    }
+
+    /**
+     * Replaces the cached manifest with itself: the cache weighs a manifest
+     * by its size only when it is stored.
+     */
+    private void reweigh(String feedId, EntryManifest manifest) {
+        manifests.replace(feedId, manifest, manifest);
+    }
+
+    /**
+     * Returns the entry manifest for the specified feed, loading it from disk
+     * or building it from the feed directory as needed.
+     */
+    private EntryManifest getManifest(String feedId) throws IOException {
+        EntryManifest result = manifests.get(feedId);
+        if (result == null) {
+            synchronized (getManifestLock(feedId)) {
+                result = manifests.get(feedId);
+                if (result == null) {
+                    File dir = getFeedDir(feedId);
+                    result = new EntryManifest(new File(dir, ENTRY_MANIFEST));
+                    if (result.getFile().exists()) {
+                        result.load();
+                    } else if (dir.exists()) {
+                        // legacy feed directory: build from entry files
+                        rebuildManifest(dir, result);
+                    }
+                    manifests.put(feedId, result);
                 }
-                return false;
             }
-        });
-        Arrays.sort(files, new Comparator<File>() {
-            public int compare(File o1, File o2) {
-                // System.out.println( new Date(o1.lastModified() ) + " : " +
-                // new Date(o2.lastModified()) );
-                return o1.lastModified() > o2.lastModified() ? -1 : o1
-                        .lastModified() < o2.lastModified() ? 1 : 0;
+        }
+        return result;
+    }
+
+    private static void rebuildManifest(File dir, EntryManifest manifest)
+            throws IOException {
+        FileFilter filter = new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().toLowerCase().endsWith(ENTRY_SUFFIX);
             }
-        });
+        };
+        List<File> found = new ArrayList<File>();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    // time bucket of sharded layout
+                    File[] bucket = child.listFiles(filter);
+                    if (bucket != null) {
+                        found.addAll(Arrays.asList(bucket));
+                    }
+                } else if (filter.accept(child)) {
+                    found.add(child);
+                }
+            }
+        }
+        File[] files = found.toArray(new File[found.size()]);
         String name;
         int suffix = ENTRY_SUFFIX.length();
-        long[] result = new long[files.length];
-        for (int i = 0; i < files.length; i++) {
-            name = files[i].getName();
-            result[i] = Long.parseLong(
-                    name.substring(0, name.length() - suffix), 16);
+        long[] ids = new long[files.length];
+        long[] dates = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            name = file.getName();
+            try {
+                ids[count] = Long.parseLong(
+                        name.substring(0, name.length() - suffix), 16);
+                dates[count] = file.lastModified();
+                count++;
+            } catch (NumberFormatException nfe) {
+                log.warn("Ignoring unrecognized entry file: " + file);
+            }
         }
-        return result;
+        manifest.rebuild(Arrays.copyOf(ids, count), Arrays.copyOf(dates, count));
+        log.info("Built entry manifest: " + manifest.getFile() + " : " + count);
     }
 
-    private static final String readStringFromFile(File file)
-            throws IOException {
-        StringBuffer result = new StringBuffer();
-        Reader reader = null;
+    private String readStringFromFile(File file) throws IOException {
+        if (mappedFiles != null) {
+            return readStringFromMappedFile(file);
+        }
+        InputStream input = new FileInputStream(file);
         try {
-            reader = new InputStreamReader(new BufferedInputStream(
-                    new FileInputStream(file)), ENCODING);
-            int c;
-            char[] buf = new char[256];
-            while ((c = reader.read(buf)) > 0) {
-                result.append(buf, 0, c);
+            // read in one pass: entries and feeds are small
+            ByteBuffer buffer = ByteBuffer.wrap(Common.readFully(input));
+            if (DeflateCodec.isEncoded(buffer)) {
+                return DeflateCodec.decode(buffer);
             }
+            return new String(buffer.array(), ENCODING);
         } finally {
             try {
-                if (reader != null) {
-                    reader.close();
-                }
+                input.close();
             } catch (IOException ioe) {
                 // suppress any futher error on closing
             }
         }
-        return result.toString();
     }
 
-    private static final void writeStringToFile(String text, File file)
-            throws IOException {
-        Writer writer = null;
+    /**
+     * Decodes the specified file from a cached memory mapping, mapping the file
+     * if needed. Mappings are dropped from the cache when we write or delete
+     * the file or when the cache is full, but the mapped memory is only
+     * unmapped when the garbage collector reclaims the buffer. A mapping made
+     * while the file was being replaced is used for this read only.
+     */
+    private String readStringFromMappedFile(File file) throws IOException {
+        ByteBuffer buffer = mappedFiles.get(file);
+        if (buffer == null) {
+            int stripe = getMappedStripe(file);
+            long version = mappedVersions.get(stripe);
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            } finally {
+                try {
+                    input.close(); // mapping remains valid after close
+                } catch (IOException ioe) {
+                    // suppress any futher error on closing
+                }
+            }
+            mappedFiles.put(file, buffer);
+            if (mappedVersions.get(stripe) != version) {
+                // replaced or deleted since we opened it: don't keep it
+                mappedFiles.remove(file, buffer);
+            }
+        }
+        if (DeflateCodec.isEncoded(buffer)) {
+            return DeflateCodec.decode(buffer.duplicate());
+        }
+        CharsetDecoder decoder = decoders.get();
+        decoder.reset();
+        return decoder.decode(buffer.duplicate()).toString();
+    }
+
+    private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>() {
+        protected CharsetDecoder initialValue() {
+            return Charset.forName(ENCODING).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    /**
+     * Writes to a temporary file and renames it into place, so that readers
+     * and memory mappings of the previous file never see a partial write.
+     */
+    private void writeStringToFile(String text, File file) throws IOException {
+        byte[] data = compressed ? DeflateCodec.encode(text) : text
+                .getBytes(ENCODING);
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs(); // ensure directory exists
+        }
+        // unique per writer: concurrent updates to a feed are not serialized
+        File temp = File.createTempFile(file.getName(), ".tmp",
+                file.getParentFile());
+        OutputStream output = null;
+        boolean complete = false;
         try {
-            if (!file.getParentFile().exists()) {
-                file.getParentFile().mkdirs(); // ensure directory exists
-            }
-            writer = new OutputStreamWriter(new BufferedOutputStream(
-                    new FileOutputStream(file)), ENCODING);
-            writer.write(text);
-            writer.flush();
-            System.err.println("wrote: " + file.getAbsolutePath());
+            output = new FileOutputStream(temp);
+            output.write(data);
+            output.flush();
+            complete = true;
         } finally {
             try {
-                if (writer != null) {
-                    writer.close();
+                if (output != null) {
+                    output.close();
                 }
             } catch (IOException ioe) {
                 // suppress any futher error on closing
             }
+            if (!complete) {
+                temp.delete();
+            }
         }
+        renameTempFile(temp, file);
+        invalidate(file);
+        log.debug("wrote: " + file.getAbsolutePath());
+    }
+
+    private static void renameTempFile(File temp, File file)
+            throws IOException {
+        if (!temp.renameTo(file)) {
+            // some platforms won't rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not write file: " + file);
+            }
+        }
+    }
+
+    /**
+     * Discards any cached mapping of the specified file.
+     */
+    private void invalidate(File file) {
+        if (mappedFiles != null) {
+            // count first: a reader that cached a mapping of the previous
+            // file either finds the new count or has its mapping removed
+            mappedVersions.incrementAndGet(getMappedStripe(file));
+            mappedFiles.remove(file);
+        }
+    }
+
+    private int getMappedStripe(File file) {
+        return (file.hashCode() & 0x7fffffff) % mappedVersions.length();
     }
 
     public File getFeedFileForFeedId(String feedId) {
-        feedId = Common.encodeURL(feedId);
-        return new File(new File(root, feedId), FEED_XML);
+        return new File(getFeedDir(feedId), FEED_XML);
     }
 
     public File getEntryFileForFeedEntry(String feedId, long entryId) {
-        feedId = Common.encodeURL(feedId);
-        return new File(new File(root, feedId),
+        return getFileForFeedEntry(getFeedDir(feedId), entryId,
                 Long.toHexString(entryId) + ENTRY_SUFFIX);
     }
 
     public File getResourceFileForFeedEntry(String feedId, long entryId,
             String resourceid) {
-        feedId = Common.encodeURL(feedId);
-        return new File(new File(root, feedId),
+        return getFileForFeedEntry(getFeedDir(feedId), entryId,
                 Long.toHexString(entryId) + '-' + resourceid);
     }
 
+    private File getResourceReferenceFile(String feedId, long entryId,
+            String resourceid) {
+        return getFileForFeedEntry(getFeedDir(feedId), entryId,
+                Long.toHexString(entryId) + '-' + resourceid
+                        + BLOB_REFERENCE_SUFFIX);
+    }
+
+    /**
+     * Returns the directory of the specified feed: the sharded location if it
+     * exists, otherwise the flat location if it exists, otherwise the
+     * location for new feeds in this root's layout.
+     */
+    private File getFeedDir(String feedId) {
+        String name = Common.encodeURL(feedId);
+        File result = getShardedFeedDir(name);
+        if (!result.exists()) {
+            File flat = new File(root, name);
+            if (flat.exists() || !sharded) {
+                result = flat;
+            }
+        }
+        return result;
+    }
+
+    private File getShardedFeedDir(String name) {
+        int hash = name.hashCode();
+        hash = (hash ^ (hash >>> 16)) & 0xffff;
+        String prefix = Integer.toHexString(0x10000 | hash).substring(1);
+        return new File(new File(new File(root, prefix.substring(0, 2)),
+                prefix.substring(2)), name);
+    }
+
+    /**
+     * Returns the specified file of an entry in the specified feed directory:
+     * in a sharded feed directory, files are placed in a subdirectory for
+     * each span of 2^32 milliseconds (about seven weeks), but may still be
+     * found in the feed directory itself while it is being migrated.
+     */
+    private File getFileForFeedEntry(File dir, long entryId, String name) {
+        if (root.equals(dir.getParentFile())) {
+            return new File(dir, name); // flat layout
+        }
+        File result = new File(new File(dir, getBucket(entryId)), name);
+        if (!result.exists()) {
+            File flat = new File(dir, name);
+            if (flat.exists()) {
+                result = flat;
+            }
+        }
+        return result;
+    }
+
+    private static String getBucket(long entryId) {
+        return Long.toHexString(entryId >>> 32);
+    }
+
+    /**
+     * This process's lock on the lock file of a root.
+     */
+    private static final class RootLock {
+        /** Null if the lock file could not be opened. */
+        FileChannel channel;
+        /** Null if the file system doesn't support locking. */
+        FileLock lock;
+        int users;
+        boolean migrating;
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(FileStorage.class);
+
 }
\ No newline at end of file
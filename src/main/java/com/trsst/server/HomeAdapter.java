@@ -18,12 +18,13 @@ package com.trsst.server;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 import org.apache.abdera.Abdera;
-import org.apache.abdera.model.Document;
 import org.apache.abdera.model.Entry;
 import org.apache.abdera.model.Feed;
 import org.apache.abdera.parser.ParseException;
@@ -159,27 +160,41 @@ public class HomeAdapter extends TrsstAdapter {
      * @return the total number of entries matching the query.
      */
     @Override
-    protected int addEntriesFromStorage(Feed feed, int start, int length,
-            Date after, Date before, String query, String[] mentions,
-            String[] tags, String verb) {
-        String[] entryIds = persistence.getEntryIds(0, length, after, before,
-                query, mentions, tags, verb);
-        Document<Entry> entryDoc;
+    protected int addEntriesFromStorage(Feed feed, String cursor, int start,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        String[] entryIds;
+        if (cursor != null) {
+            entryIds = persistence.getEntryIdsFromCursor(cursor, length, after,
+                    before, query, mentions, tags, verb);
+        } else {
+            entryIds = persistence.getEntryIds(start, length, after, before,
+                    query, mentions, tags, verb);
+        }
+        if (entryIds == null) {
+            return 0;
+        }
+        Entry[] entries = getEntries(persistence, entryIds);
+        Map<String, Feed> parentFeeds = new HashMap<String, Feed>();
         String feedId;
         Feed parentFeed;
         long entryId;
         String urn;
         Entry entry;
         Date updated = null;
-        int end = Math.min(entryIds.length, start + length);
-        for (int i = start; i < end; i++) {
+        for (int i = 0; i < entryIds.length; i++) {
             urn = entryIds[i];
             feedId = urn.substring(0, urn.lastIndexOf(':'));
             entryId = Common.toEntryId(urn);
-            parentFeed = fetchFeedFromStorage(feedId, persistence);
-            entryDoc = getEntry(persistence, feedId, entryId);
-            if (entryDoc != null) {
-                entry = (Entry) entryDoc.getRoot().clone();
+            if (parentFeeds.containsKey(feedId)) {
+                parentFeed = parentFeeds.get(feedId);
+            } else {
+                // once per feed on this page
+                parentFeed = fetchFeedFromStorage(feedId, persistence);
+                parentFeeds.put(feedId, parentFeed);
+            }
+            entry = entries[i];
+            if (entry != null) {
                 if (updated == null || updated.before(entry.getUpdated())) {
                     updated = entry.getUpdated();
                 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Extracts the text content of an html fragment for indexing in a single pass,
+ * without building a document tree. Tags and comments are dropped, the
+ * contents of script and style elements are skipped, entities are decoded,
+ * and runs of whitespace are collapsed; each tag separates words, so that
+ * "a<br>b" is indexed as two terms. Malformed markup is treated as text.
+ *
+ * Instances reuse an internal buffer and are not thread-safe.
+ *
+ * @author mpowers
+ */
+class HtmlTextExtractor {
+
+    /**
+     * The latin-1 entities, in order from code point 160.
+     */
+    private static final String[] LATIN1 = {
+            "nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar",
+            "sect", "uml", "copy", "ordf", "laquo", "not", "shy", "reg",
+            "macr", "deg", "plusmn", "sup2", "sup3", "acute", "micro", "para",
+            "middot", "cedil", "sup1", "ordm", "raquo", "frac14", "frac12",
+            "frac34", "iquest", "Agrave", "Aacute", "Acirc", "Atilde", "Auml",
+            "Aring", "AElig", "Ccedil", "Egrave", "Eacute", "Ecirc", "Euml",
+            "Igrave", "Iacute", "Icirc", "Iuml", "ETH", "Ntilde", "Ograve",
+            "Oacute", "Ocirc", "Otilde", "Ouml", "times", "Oslash", "Ugrave",
+            "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig", "agrave",
+            "aacute", "acirc", "atilde", "auml", "aring", "aelig", "ccedil",
+            "egrave", "eacute", "ecirc", "euml", "igrave", "iacute", "icirc",
+            "iuml", "eth", "ntilde", "ograve", "oacute", "ocirc", "otilde",
+            "ouml", "divide", "oslash", "ugrave", "uacute", "ucirc", "uuml",
+            "yacute", "thorn", "yuml" };
+
+    private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+    static {
+        for (int i = 0; i < LATIN1.length; i++) {
+            ENTITIES.put(LATIN1[i], (char) (160 + i));
+        }
+        ENTITIES.put("nbsp", ' ');
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("ndash", '\u2013');
+        ENTITIES.put("mdash", '\u2014');
+        ENTITIES.put("lsquo", '\u2018');
+        ENTITIES.put("rsquo", '\u2019');
+        ENTITIES.put("ldquo", '\u201c');
+        ENTITIES.put("rdquo", '\u201d');
+        ENTITIES.put("hellip", '\u2026');
+        ENTITIES.put("bull", '\u2022');
+        ENTITIES.put("trade", '\u2122');
+        ENTITIES.put("euro", '\u20ac');
+    }
+
+    private final StringBuilder buffer = new StringBuilder(1024);
+
+    /**
+     * Returns the text content of the specified html.
+     */
+    String extract(String html) {
+        buffer.setLength(0);
+        int length = html.length();
+        int i = 0;
+        char c;
+        while (i < length) {
+            c = html.charAt(i);
+            if (c == '<') {
+                i = skipMarkup(html, i);
+            } else if (c == '&') {
+                i = appendEntity(html, i);
+            } else {
+                if (Character.isWhitespace(c)) {
+                    appendSpace();
+                } else {
+                    buffer.append(c);
+                }
+                i++;
+            }
+        }
+        int end = buffer.length();
+        if (end > 0 && buffer.charAt(end - 1) == ' ') {
+            buffer.setLength(end - 1);
+        }
+        return buffer.toString();
+    }
+
+    private void appendSpace() {
+        int end = buffer.length();
+        if (end > 0 && buffer.charAt(end - 1) != ' ') {
+            buffer.append(' ');
+        }
+    }
+
+    /**
+     * Skips the tag, comment, or declaration at the specified index, and
+     * returns the index after it; a '<' that does not begin markup is
+     * appended as text.
+     */
+    private int skipMarkup(String html, int start) {
+        int length = html.length();
+        int i = start + 1;
+        if (html.startsWith("!--", i)) {
+            int end = html.indexOf("-->", i + 3);
+            appendSpace();
+            return end == -1 ? length : end + 3;
+        }
+        boolean closing = false;
+        if (i < length && html.charAt(i) == '/') {
+            closing = true;
+            i++;
+        }
+        int nameStart = i;
+        while (i < length && Character.isLetterOrDigit(html.charAt(i))) {
+            i++;
+        }
+        if (i == nameStart && !closing && !isDeclaration(html, i)) {
+            // not markup: "a < b"
+            buffer.append('<');
+            return start + 1;
+        }
+        String name = html.substring(nameStart, i);
+
+        // find the end of the tag, ignoring '>' within quoted attributes
+        char quote = 0;
+        char c;
+        while (i < length) {
+            c = html.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                break;
+            }
+            i++;
+        }
+        appendSpace();
+        if (i >= length) {
+            return length;
+        }
+        i++;
+
+        // skip the contents of elements that are not text
+        if (!closing && html.charAt(i - 2) != '/'
+                && (name.equalsIgnoreCase("script") || name
+                        .equalsIgnoreCase("style"))) {
+            int end = indexOfIgnoreCase(html, "</" + name, i);
+            if (end == -1) {
+                return length;
+            }
+            end = html.indexOf('>', end);
+            return end == -1 ? length : end + 1;
+        }
+        return i;
+    }
+
+    /**
+     * Appends the character for the entity at the specified index, and
+     * returns the index after it; an unrecognized entity is appended as text.
+     */
+    private int appendEntity(String html, int start) {
+        int length = html.length();
+        int end = start + 1;
+        while (end < length && end - start < 12 && html.charAt(end) != ';') {
+            end++;
+        }
+        if (end >= length || html.charAt(end) != ';' || end == start + 1) {
+            buffer.append('&');
+            return start + 1;
+        }
+        String name = html.substring(start + 1, end);
+        if (name.charAt(0) == '#') {
+            try {
+                int codePoint;
+                if (name.length() > 1
+                        && (name.charAt(1) == 'x' || name.charAt(1) == 'X')) {
+                    codePoint = Integer.parseInt(name.substring(2), 16);
+                } else {
+                    codePoint = Integer.parseInt(name.substring(1));
+                }
+                if (Character.isWhitespace(codePoint) || codePoint == 0xA0) {
+                    appendSpace();
+                } else {
+                    buffer.appendCodePoint(codePoint);
+                }
+                return end + 1;
+            } catch (IllegalArgumentException e) {
+                // includes NumberFormatException: fall through
+            }
+        } else {
+            Character c = ENTITIES.get(name);
+            if (c != null) {
+                if (c == ' ') {
+                    appendSpace();
+                } else {
+                    buffer.append(c.charValue());
+                }
+                return end + 1;
+            }
+        }
+        buffer.append('&');
+        return start + 1;
+    }
+
+    private static boolean isDeclaration(String html, int i) {
+        return i < html.length()
+                && (html.charAt(i) == '!' || html.charAt(i) == '?');
+    }
+
+    private static int indexOfIgnoreCase(String text, String target, int from) {
+        int last = text.length() - target.length();
+        for (int i = from; i <= last; i++) {
+            if (text.regionMatches(true, i, target, 0, target.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the entries whose index changes have not yet been committed, so the
+ * index can be brought up to date from storage after an unclean shutdown.
+ *
+ * Each change is appended as a single line to the current journal file. When
+ * the index is about to commit, the journal is rolled to a new file, and the
+ * files returned by roll() may be deleted once that commit succeeds. Lines are
+ * not forced to disk: the journal only needs to survive the process, not the
+ * operating system, just like the delegate storage it refers to.
+ *
+ * @author mpowers
+ */
+class IndexJournal {
+
+    static final char UPDATE = 'U';
+    static final char DELETE = 'D';
+
+    private static final String ENCODING = "UTF-8";
+
+    private final File dir;
+    private final String prefix;
+    private long sequence;
+    private FileOutputStream output;
+
+    /**
+     * Opens the journal stored in the specified directory in files named with
+     * the specified prefix. Any existing files are retained for read().
+     */
+    IndexJournal(File dir, String prefix) {
+        this.dir = dir;
+        this.prefix = prefix + '.';
+        for (long id : getFiles().keySet()) {
+            sequence = Math.max(sequence, id + 1);
+        }
+    }
+
+    /**
+     * Appends a change for the specified entry to the current journal file.
+     */
+    synchronized void append(char op, String feedId, long entryId)
+            throws IOException {
+        if (output == null) {
+            output = new FileOutputStream(new File(dir, prefix + sequence),
+                    true);
+        }
+        output.write((op + " " + feedId + " " + Long.toHexString(entryId) + '\n')
+                .getBytes(ENCODING));
+    }
+
+    /**
+     * Closes the current journal file so that subsequent changes are appended
+     * to a new file, and returns all files written before this call.
+     */
+    synchronized Collection<File> roll() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+            sequence++;
+        }
+        return getFiles().values();
+    }
+
+    /**
+     * Returns the latest change recorded for each entry in all journal files,
+     * in the order the changes were made. Truncated lines are ignored.
+     */
+    synchronized Collection<Change> read() throws IOException {
+        Map<String, Change> result = new LinkedHashMap<String, Change>();
+        for (File file : getFiles().values()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), ENCODING));
+            try {
+                String line;
+                String[] fields;
+                while ((line = reader.readLine()) != null) {
+                    fields = line.split(" ");
+                    if (fields.length != 3 || fields[0].length() != 1) {
+                        continue; // partial write
+                    }
+                    try {
+                        Change change = new Change(fields[0].charAt(0),
+                                fields[1], Long.parseLong(fields[2], 16));
+                        String key = change.feedId + ' ' + change.entryId;
+                        result.remove(key); // preserve order of latest
+                        result.put(key, change);
+                    } catch (NumberFormatException e) {
+                        continue; // partial write
+                    }
+                }
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // suppress any futher error on closing
+                }
+            }
+        }
+        return result.values();
+    }
+
+    /**
+     * Closes the current journal file.
+     */
+    synchronized void close() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    /**
+     * Returns the journal files before the current sequence number in order.
+     */
+    private TreeMap<Long, File> getFiles() {
+        TreeMap<Long, File> result = new TreeMap<Long, File>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        long id = Long.parseLong(name.substring(prefix
+                                .length()));
+                        if (output == null || id < sequence) {
+                            result.put(id, new File(dir, name));
+                        }
+                    } catch (NumberFormatException e) {
+                        // not a journal file
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    static class Change {
+        final char op;
+        final String feedId;
+        final long entryId;
+
+        Change(char op, String feedId, long entryId) {
+            this.op = op;
+            this.feedId = feedId;
+            this.entryId = entryId;
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies changes to the index on background threads, so that callers only
+ * wait for a change to be persisted and journaled, not parsed and analyzed.
+ *
+ * Changes are assigned to worker threads by entry, so changes to the same
+ * entry are always applied in the order they were added. Each worker takes
+ * changes from its own bounded queue in batches of up to the specified size;
+ * add() blocks while the queue is full, which limits how far indexing can
+ * fall behind.
+ *
+ * @author mpowers
+ */
+class IndexQueue {
+
+    /**
+     * Applies a batch of changes to the index, calling fail() on any change
+     * that could not be applied.
+     */
+    interface Handler {
+        void index(List<Task> batch);
+    }
+
+    private final Handler handler;
+    private final int batchSize;
+    private final List<BlockingQueue<Task>> queues;
+    private final Worker[] workers;
+
+    /**
+     * @param name
+     *            the prefix for worker thread names.
+     * @param threads
+     *            the number of worker threads.
+     * @param capacity
+     *            the maximum number of changes queued across all workers.
+     * @param batchSize
+     *            the maximum number of changes passed to the handler at once.
+     */
+    IndexQueue(String name, int threads, int capacity, int batchSize,
+            Handler handler) {
+        this.handler = handler;
+        this.batchSize = batchSize;
+        this.queues = new ArrayList<BlockingQueue<Task>>(threads);
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            queues.add(new ArrayBlockingQueue<Task>(Math.max(1, capacity
+                    / threads)));
+            workers[i] = new Worker(queues.get(i));
+            workers[i].setName(name + '-' + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues the specified change, waiting for space if necessary. The
+     * change's pending count is incremented now and decremented once the
+     * change has been applied; a change that fails is left pending, so its
+     * journal file is kept for recovery.
+     */
+    void add(Task task) throws InterruptedException {
+        int hash = task.feedId.hashCode() * 31
+                + (int) (task.entryId ^ (task.entryId >>> 32));
+        int i = (hash & Integer.MAX_VALUE) % workers.length;
+        task.pending.incrementAndGet();
+        workers[i].added.incrementAndGet();
+        try {
+            queues.get(i).put(task);
+        } catch (InterruptedException e) {
+            task.pending.decrementAndGet();
+            workers[i].added.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until all changes added before this call have been applied.
+     */
+    void await() throws InterruptedException {
+        long[] targets = new long[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            targets[i] = workers[i].added.get();
+        }
+        synchronized (this) {
+            for (int i = 0; i < workers.length; i++) {
+                while (workers[i].applied.get() < targets[i]) {
+                    wait(100);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of changes waiting to be applied.
+     */
+    int getDepth() {
+        int result = 0;
+        for (Worker worker : workers) {
+            result += worker.added.get() - worker.applied.get();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of milliseconds since the oldest change still waiting
+     * to be applied was added, or zero if none.
+     */
+    long getLag() {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        Task head;
+        for (int i = 0; i < workers.length; i++) {
+            oldest = Math.min(oldest, workers[i].current);
+            head = queues.get(i).peek();
+            if (head != null) {
+                oldest = Math.min(oldest, head.queued);
+            }
+        }
+        return now - oldest;
+    }
+
+    /**
+     * Waits for all queued changes to be applied and stops the workers.
+     */
+    void close() throws InterruptedException {
+        await();
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+    }
+
+    private class Worker extends Thread {
+        final BlockingQueue<Task> queue;
+        final AtomicLong added = new AtomicLong();
+        final AtomicLong applied = new AtomicLong();
+
+        /**
+         * The time the oldest change in the current batch was added, or
+         * Long.MAX_VALUE if idle.
+         */
+        volatile long current = Long.MAX_VALUE;
+
+        Worker(BlockingQueue<Task> queue) {
+            this.queue = queue;
+        }
+
+        public void run() {
+            List<Task> batch = new ArrayList<Task>(batchSize);
+            try {
+                while (true) {
+                    Task first = queue.take();
+                    current = first.queued;
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    try {
+                        handler.index(batch);
+                    } catch (Throwable t) {
+                        log.error("Unexpected error indexing batch", t);
+                        for (Task task : batch) {
+                            task.fail();
+                        }
+                    }
+                    for (Task task : batch) {
+                        if (!task.failed) {
+                            task.pending.decrementAndGet();
+                        }
+                    }
+                    applied.addAndGet(batch.size());
+                    current = Long.MAX_VALUE;
+                    batch.clear();
+                    synchronized (IndexQueue.this) {
+                        IndexQueue.this.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // exiting
+            }
+        }
+    }
+
+    /**
+     * A change to be applied to the index.
+     */
+    static class Task {
+        final char op;
+        final String feedId;
+        final long entryId;
+        final Date publishDate;
+        final String content;
+        final AtomicInteger pending;
+        final long queued = System.currentTimeMillis();
+        private boolean failed;
+
+        /**
+         * @param op
+         *            IndexJournal.UPDATE or IndexJournal.DELETE.
+         * @param content
+         *            the entry to index, or null if deleting.
+         * @param pending
+         *            the count of unapplied changes sharing a journal file
+         *            with this change.
+         */
+        Task(char op, String feedId, long entryId, Date publishDate,
+                String content, AtomicInteger pending) {
+            this.op = op;
+            this.feedId = feedId;
+            this.entryId = entryId;
+            this.publishDate = publishDate;
+            this.content = content;
+            this.pending = pending;
+        }
+
+        /**
+         * Marks this change as not applied.
+         */
+        void fail() {
+            failed = true;
+        }
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(IndexQueue.class);
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * One partition of the entry index, holding the entries whose ids fall within
+ * a calendar month (UTC). Because entry ids are timestamps, an entry always
+ * belongs to the same shard, and a query for a range of time only needs the
+ * shards overlapping that range. Ids before 1970 or after 9999 are kept in the
+ * first or last of those months.
+ *
+ * A shard is opened when first used, and may be closed when idle and opened
+ * again when next used; writes and searches keep it open while in progress.
+ *
+ * @author mpowers
+ */
+class IndexShard {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final String FORMAT = "yyyyMM";
+
+    /**
+     * Range of entry ids with a shard of their own.
+     */
+    static final long MIN_TIME = 0; // 1970-01-01
+    static final long MAX_TIME = 253402300799999L; // 9999-12-31T23:59:59.999
+
+    final String name;
+    final long start;
+    final long end;
+    final File dir;
+
+    /**
+     * Lowest and highest entry ids this shard may hold.
+     */
+    private final long low;
+    private final long high;
+
+    private final Analyzer analyzer;
+
+    /**
+     * Number of open shards, shared by all shards of an index.
+     */
+    private final AtomicInteger opened;
+
+    /**
+     * Null while closed.
+     */
+    private IndexWriter writer;
+    private SearcherManager searchers;
+
+    /**
+     * Number of writes in progress.
+     */
+    private int pins;
+
+    private volatile long lastUsed;
+    private boolean deleted;
+
+    /**
+     * Creates the specified shard in the specified directory, to be opened
+     * when first used; opening a shard increments the specified count, and
+     * closing it decrements the count.
+     */
+    IndexShard(File root, String name, Analyzer analyzer, AtomicInteger opened) {
+        this.name = name;
+        this.start = parse(name);
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(start);
+        calendar.add(Calendar.MONTH, 1);
+        this.end = calendar.getTimeInMillis();
+        this.low = start > MIN_TIME ? start : Long.MIN_VALUE;
+        this.high = end - 1 < MAX_TIME ? end - 1 : Long.MAX_VALUE;
+        this.dir = new File(root, name);
+        this.analyzer = analyzer;
+        this.opened = opened;
+    }
+
+    /**
+     * Returns the name of the shard holding the specified entry id.
+     */
+    static String getName(long entryId) {
+        entryId = Math.max(MIN_TIME, Math.min(MAX_TIME, entryId));
+        return getFormat().format(new Date(entryId));
+    }
+
+    /**
+     * Returns the start time of the shard with the specified name, or throws
+     * IllegalArgumentException if not a shard name.
+     */
+    static long parse(String name) {
+        if (name.length() != FORMAT.length()) {
+            throw new IllegalArgumentException("Not a shard: " + name);
+        }
+        try {
+            long result = getFormat().parse(name).getTime();
+            if (result < MIN_TIME) {
+                throw new IllegalArgumentException("Not a shard: " + name);
+            }
+            return result;
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Not a shard: " + name);
+        }
+    }
+
+    private static SimpleDateFormat getFormat() {
+        // not thread-safe: create for each use
+        SimpleDateFormat format = new SimpleDateFormat(FORMAT);
+        format.setTimeZone(UTC);
+        format.setLenient(false);
+        return format;
+    }
+
+    /**
+     * Returns true if any time within the shard falls within the specified
+     * exclusive range.
+     */
+    boolean overlaps(long after, long before) {
+        return low < before && high > after;
+    }
+
+    /**
+     * Returns true if all times within the shard fall within the specified
+     * exclusive range.
+     */
+    boolean within(long after, long before) {
+        return low > after && high < before;
+    }
+
+    /**
+     * Returns true if open.
+     */
+    synchronized boolean isOpen() {
+        return writer != null;
+    }
+
+    /**
+     * Returns the time this shard was last used, in nanoseconds.
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Opens this shard if needed; must hold the lock.
+     */
+    private void open() throws IOException {
+        lastUsed = System.nanoTime();
+        if (writer != null) {
+            return;
+        }
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_46,
+                analyzer);
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        IndexWriter result = new IndexWriter(FSDirectory.open(dir), iwc);
+        try {
+            result.commit();
+            searchers = new SearcherManager(result, true, null);
+        } catch (IOException e) {
+            result.rollback();
+            throw e;
+        }
+        writer = result;
+        opened.incrementAndGet();
+    }
+
+    /**
+     * Opens this shard if needed and returns its writer, which stays open
+     * until unpin(); or returns null if the shard has been deleted.
+     */
+    private synchronized IndexWriter pin() throws IOException {
+        if (deleted) {
+            return null;
+        }
+        open();
+        pins++;
+        return writer;
+    }
+
+    private synchronized void unpin() {
+        pins--;
+    }
+
+    void updateDocument(Term term, Document document) throws IOException {
+        IndexWriter pinned = pin();
+        if (pinned != null) {
+            try {
+                pinned.updateDocument(term, document);
+            } finally {
+                unpin();
+            }
+        }
+    }
+
+    void addDocument(Document document) throws IOException {
+        IndexWriter pinned = pin();
+        if (pinned != null) {
+            try {
+                pinned.addDocument(document);
+            } finally {
+                unpin();
+            }
+        }
+    }
+
+    void deleteDocuments(Term... terms) throws IOException {
+        IndexWriter pinned = pin();
+        if (pinned != null) {
+            try {
+                pinned.deleteDocuments(terms);
+            } finally {
+                unpin();
+            }
+        }
+    }
+
+    /**
+     * Returns a searcher for this shard, opening it if needed, to be released
+     * after use; or null if the shard has been deleted. The searcher remains
+     * usable if the shard is closed meanwhile.
+     */
+    synchronized IndexSearcher acquire() throws IOException {
+        if (deleted) {
+            return null;
+        }
+        open();
+        return searchers.acquire();
+    }
+
+    void release(IndexSearcher searcher) throws IOException {
+        // valid whether or not the manager is still open
+        searcher.getIndexReader().decRef();
+    }
+
+    /**
+     * Makes recent changes visible to searches, if open. If blocking, waits
+     * for any refresh in progress; otherwise returns false if one is.
+     */
+    boolean refresh(boolean blocking) throws IOException {
+        SearcherManager current;
+        synchronized (this) {
+            current = searchers;
+        }
+        if (current == null) {
+            return true; // reopened with all changes
+        }
+        try {
+            if (blocking) {
+                current.maybeRefreshBlocking();
+                return true;
+            }
+            return current.maybeRefresh();
+        } catch (AlreadyClosedException e) {
+            return true; // closed since: reopened with all changes
+        }
+    }
+
+    synchronized void commit() throws IOException {
+        if (writer != null && writer.hasUncommittedChanges()) {
+            writer.commit();
+        }
+    }
+
+    /**
+     * Commits and closes this shard if open and no writes are in progress.
+     * 
+     * @return true if closed.
+     */
+    synchronized boolean closeIfIdle() throws IOException {
+        if (writer == null || pins > 0) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    synchronized void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        try {
+            searchers.close();
+            writer.close();
+        } finally {
+            writer = null;
+            searchers = null;
+            opened.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes this shard and deletes its files.
+     */
+    synchronized void delete() throws IOException {
+        deleted = true;
+        if (writer != null) {
+            try {
+                searchers.close();
+                writer.rollback();
+            } finally {
+                writer = null;
+                searchers = null;
+                opened.decrementAndGet();
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (dir.exists() && !dir.delete()) {
+            throw new IOException("Could not delete index shard: " + dir);
+        }
+    }
+
+}
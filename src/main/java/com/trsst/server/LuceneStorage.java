@@ -4,12 +4,35 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.xml.namespace.QName;
 
@@ -23,22 +46,24 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.queryparser.flexible.standard.StandardQueryParser;
 import org.apache.lucene.queryparser.flexible.standard.config.StandardQueryConfigHandler;
 import org.apache.lucene.queryparser.flexible.standard.parser.ParseException;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.NumericRangeFilter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -46,13 +71,9 @@ import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.w3c.tidy.Tidy;
 
 import com.trsst.Common;
 import com.trsst.client.Client;
@@ -84,12 +105,94 @@ public class LuceneStorage implements Storage {
 
     /*
      * Lucene readers/writers are thread-safe and shared instances are
-     * recommended.
+     * recommended. The index is partitioned into monthly shards by entry id,
+     * so queries only search the shards overlapping their range of time, and
+     * whole shards can be dropped when they age out. Searchers are refreshed
+     * from the writers in the background and so may lag behind the most
+     * recent update by the configured maximum staleness; commits are made on
+     * a separate schedule because the primary copy of every entry is already
+     * in the delegate storage. Changes are indexed in the background after
+     * they are stored, and are journaled until committed so they can be
+     * reindexed from storage on startup.
      */
 
-    private IndexWriter writer;
-    private IndexReader reader;
+    private File indexRoot;
+    private final ConcurrentNavigableMap<Long, IndexShard> shards = new ConcurrentSkipListMap<Long, IndexShard>();
+    private final AtomicInteger openShards = new AtomicInteger();
+    private final int maxOpenShards;
+    private final long retention;
+    private Timer reopener;
+    private Timer committer;
+    private CacheRetentionManager cacheRetention;
     private Analyzer analyzer;
+    private IndexJournal journal;
+    private IndexQueue indexer;
+
+    /**
+     * Held for reading across journaling and queuing a change, and for
+     * writing while rolling the journal, so that each journal file is matched
+     * with the count of its changes not yet indexed.
+     */
+    private final ReadWriteLock journalLock = new ReentrantReadWriteLock();
+
+    /**
+     * Count of unindexed changes in the current journal file.
+     */
+    private volatile AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Rolled journal files and the counts of their unindexed changes: a file
+     * is retired by the first commit made after its count reaches zero.
+     */
+    private final Map<File, AtomicInteger> retained = new LinkedHashMap<File, AtomicInteger>();
+
+    /**
+     * Number of changes since the last commit.
+     */
+    private final AtomicInteger uncommitted = new AtomicInteger();
+    private final int commitCount;
+
+    /**
+     * Summary text extractors for indexer threads.
+     */
+    private static final ThreadLocal<HtmlTextExtractor> extractors = new ThreadLocal<HtmlTextExtractor>() {
+        protected HtmlTextExtractor initialValue() {
+            return new HtmlTextExtractor();
+        }
+    };
+
+    /**
+     * Tags and mentions of recently published entries.
+     */
+    private final CategoryTracker trending;
+
+    /**
+     * Notified when the results of reading or searching a feed change other
+     * than by a call to this storage, so that callers caching those results
+     * can discard them.
+     */
+    public interface Listener {
+        void changed(String feedId);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Feeds with changes indexed since searchers were last refreshed.
+     */
+    private final Set<String> indexed = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Results are sorted by entry id, most recent first, and then by feed id
+     * when spanning feeds, so that every entry has a distinct sort position
+     * from which a query can be resumed.
+     */
+    private static final Sort FEED_SORT = new Sort(new SortField("updated",
+            SortField.Type.LONG, true));
+    private static final Sort GLOBAL_SORT = new Sort(new SortField("updated",
+            SortField.Type.LONG, true), new SortField("feed",
+            SortField.Type.STRING));
 
     /**
      * Default constructor manages individual feed, entry, and resource
@@ -117,6 +220,35 @@ public class LuceneStorage implements Storage {
      * individual feed, entry, and resource persistence. Any feeds managed by
      * this server will call to persistent storage rather than cache storage.
      * 
+     * Searches may not reflect updates made within the last
+     * "com.trsst.server.index.stale" milliseconds (default 1000), unless
+     * sync() is called. Updates are committed to the index every
+     * "com.trsst.server.index.commit" milliseconds (default 10000), after every
+     * "com.trsst.server.index.commit.count" updates (default 1000), or on
+     * flush(), whichever comes first.
+     * 
+     * Shards holding only entries older than "com.trsst.server.index.retention"
+     * milliseconds are dropped from the index (default 0: retain all). Up to
+     * "com.trsst.server.index.open" shards are kept open (default 12); the
+     * least recently used are closed, and reopened when next needed.
+     * 
+     * An unpartitioned index from an earlier version is ignored until
+     * rebuilt with reindex(), as by the "reindex" command.
+     * 
+     * If a cache storage delegate is a FileStorage, the least recently used
+     * cached feeds are evicted to keep the cache within
+     * "com.trsst.server.cache.quota" bytes, and feeds unused for
+     * "com.trsst.server.cache.age" milliseconds are evicted (both default 0:
+     * no limit). Feeds managed by this server are never evicted.
+     * 
+     * Entries are indexed after they are stored, by
+     * "com.trsst.server.index.threads" background threads (default 2), with
+     * up to "com.trsst.server.index.queue" entries waiting (default 10000);
+     * updates block while the queue is full.
+     * 
+     * Trending categories are ranked from entries published within the last
+     * "com.trsst.server.categories.window" milliseconds (default one day).
+     * 
      * @param delegate
      * @throws IOException
      */
@@ -124,20 +256,593 @@ public class LuceneStorage implements Storage {
         cacheStorage = cache;
         persistentStorage = persistent;
         abdera = Abdera.getInstance();
-        Directory dir = FSDirectory.open(new File(Common.getServerRoot(),
-                "entry.idx"));
         analyzer = new StandardAnalyzer(Version.LUCENE_46);
+        retention = Long.getLong("com.trsst.server.index.retention", 0);
+        maxOpenShards = Math.max(1, Integer.getInteger(
+                "com.trsst.server.index.open", 12));
+        indexRoot = new File(Common.getServerRoot(), "entry.idx");
+        indexRoot.mkdirs();
+        boolean legacy = false;
+        for (File file : indexRoot.listFiles()) {
+            if (file.isDirectory()) {
+                try {
+                    IndexShard shard = new IndexShard(indexRoot,
+                            file.getName(), analyzer, openShards);
+                    shards.put(shard.start, shard);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring unrecognized index directory: " + file);
+                }
+            } else {
+                // unpartitioned index from an earlier version
+                legacy = true;
+            }
+        }
+        if (legacy) {
+            log.warn("Ignoring unpartitioned index from an earlier version: "
+                    + "run reindex to rebuild it: " + indexRoot);
+        }
+        commitCount = Integer.getInteger("com.trsst.server.index.commit.count",
+                1000);
+        trending = new CategoryTracker(Long.getLong(
+                "com.trsst.server.categories.window", 24 * 60 * 60 * 1000L),
+                24, 60 * 1000, 10000, 1000);
+        journal = new IndexJournal(Common.getServerRoot(), "entry.journal");
+
+        long interval = Long.getLong("com.trsst.server.index.commit", 10000);
+        committer = new Timer("LuceneStorage-commit", true);
+        committer.schedule(new TimerTask() {
+            public void run() {
+                commit();
+                dropExpiredShards();
+                closeIdleShards();
+            }
+        }, interval, interval);
+
+        long maxStale = Long.getLong("com.trsst.server.index.stale", 1000);
+        reopener = new Timer("LuceneStorage-reopen", true);
+        reopener.schedule(new TimerTask() {
+            public void run() {
+                refresh(false);
+            }
+        }, maxStale, maxStale);
+
+        recover();
+        dropExpiredShards();
+
+        indexer = new IndexQueue("LuceneStorage-index", Integer.getInteger(
+                "com.trsst.server.index.threads", 2), Integer.getInteger(
+                "com.trsst.server.index.queue", 10000), 100,
+                new IndexQueue.Handler() {
+                    public void index(List<IndexQueue.Task> batch) {
+                        indexBatch(batch);
+                    }
+                });
+
+        long quota = Long.getLong("com.trsst.server.cache.quota", 0);
+        long age = Long.getLong("com.trsst.server.cache.age", 0);
+        if ((quota > 0 || age > 0) && persistentStorage != null
+                && cacheStorage instanceof FileStorage) {
+            cacheRetention = new CacheRetentionManager(
+                    (FileStorage) cacheStorage, quota, age, Long.getLong(
+                            "com.trsst.server.cache.sweep", 60000),
+                    new CacheRetentionManager.Evictor() {
+                        public boolean isEvictable(String feedId) {
+                            return !isManaged(feedId);
+                        }
+
+                        public void evict(List<String> feedIds)
+                                throws IOException {
+                            deleteFeedsFromIndex(feedIds);
+                        }
+
+                        public void evicted(List<String> feedIds) {
+                            fireChanged(feedIds);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Removes all entries of the specified feeds from the index and commits,
+     * so the feeds can be deleted from storage.
+     */
+    private void deleteFeedsFromIndex(List<String> feedIds) throws IOException {
+        try {
+            // apply any queued updates first
+            indexer.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evicting feeds");
+        }
+        Term[] terms = new Term[feedIds.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = new Term("feed", feedIds.get(i));
+        }
+        for (IndexShard shard : shards.values()) {
+            try {
+                shard.deleteDocuments(terms);
+            } catch (AlreadyClosedException e) {
+                // dropped
+            }
+            closeIdleShards();
+        }
+        commit();
+    }
+
+    /**
+     * Returns the shard for the specified entry id, creating it if necessary,
+     * or null if the entry is too old to be retained.
+     */
+    private IndexShard getShard(long entryId) throws IOException {
+        String name = IndexShard.getName(entryId);
+        long start = IndexShard.parse(name);
+        IndexShard shard = shards.get(start);
+        if (shard == null) {
+            synchronized (shards) {
+                shard = shards.get(start);
+                if (shard == null) {
+                    if (retention > 0
+                            && entryId < System.currentTimeMillis() - retention) {
+                        return null;
+                    }
+                    shard = new IndexShard(indexRoot, name, analyzer,
+                            openShards);
+                    shards.put(start, shard);
+                }
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Closes the least recently used shards while more than the maximum are
+     * open, skipping any with writes in progress.
+     */
+    private void closeIdleShards() {
+        if (openShards.get() <= maxOpenShards) {
+            return;
+        }
+        synchronized (openShards) {
+            List<IndexShard> open = new ArrayList<IndexShard>();
+            for (IndexShard shard : shards.values()) {
+                if (shard.isOpen()) {
+                    open.add(shard);
+                }
+            }
+            Collections.sort(open, new Comparator<IndexShard>() {
+                public int compare(IndexShard a, IndexShard b) {
+                    long x = a.getLastUsed();
+                    long y = b.getLastUsed();
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+            for (IndexShard shard : open) {
+                if (openShards.get() <= maxOpenShards) {
+                    break;
+                }
+                try {
+                    shard.closeIfIdle();
+                } catch (Throwable t) {
+                    log.error("Could not close index shard: " + shard.name, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the shards holding entries within the specified range, most
+     * recent first.
+     */
+    private Collection<IndexShard> getShards(Date after, Date before) {
+        long afterTime = after != null ? after.getTime() : Long.MIN_VALUE;
+        long beforeTime = before != null ? before.getTime() : Long.MAX_VALUE;
+        List<IndexShard> result = new LinkedList<IndexShard>();
+        for (IndexShard shard : shards.descendingMap().values()) {
+            if (shard.overlaps(afterTime, beforeTime)) {
+                result.add(shard);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes from the index any shards holding only entries older than the
+     * retention period. The entries themselves remain in storage.
+     */
+    private void dropExpiredShards() {
+        if (retention <= 0) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - retention;
+        synchronized (shards) {
+            for (IndexShard shard : shards.values()) {
+                if (shard.end > oldest) {
+                    break; // ascending order
+                }
+                shards.remove(shard.start);
+                try {
+                    shard.delete();
+                    log.info("Dropped expired index shard: " + shard.name);
+                } catch (Throwable t) {
+                    log.error("Could not drop index shard: " + shard.name, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a listener to be notified when a feed changes after the fact: when
+     * its queued changes become visible to searches, or when it is evicted
+     * from the cache.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private void fireChanged(Collection<String> feedIds) {
+        for (String feedId : feedIds) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.changed(feedId);
+                } catch (Throwable t) {
+                    log.error("Unexpected error notifying listener: "
+                            + feedId, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshes searchers with any recent changes, and then notifies
+     * listeners of the feeds whose changes are now visible. If blocking,
+     * waits for any refresh already in progress.
+     */
+    private void refresh(boolean blocking) {
+        // changes indexed after this point may not be picked up
+        List<String> feedIds = new ArrayList<String>(indexed);
+        indexed.removeAll(feedIds);
+        boolean refreshed = true;
+        for (IndexShard shard : shards.values()) {
+            try {
+                if (!shard.refresh(blocking)) {
+                    refreshed = false; // another refresh is in progress
+                }
+            } catch (AlreadyClosedException e) {
+                // dropped
+            } catch (Throwable t) {
+                log.error("Unexpected error refreshing index: " + shard.name,
+                        t);
+                refreshed = false;
+            }
+        }
+        if (refreshed) {
+            fireChanged(feedIds);
+        } else {
+            indexed.addAll(feedIds); // next time
+        }
+    }
+
+    /**
+     * Reindexes from storage any entries that were changed but not committed
+     * before the index was last closed.
+     */
+    private void recover() throws IOException {
+        Collection<IndexJournal.Change> changes = journal.read();
+        if (changes.isEmpty()) {
+            return;
+        }
+        int count = 0;
+        for (IndexJournal.Change change : changes) {
+            Term term = new Term("entry", getEntryKeyString(change.feedId,
+                    change.entryId));
+            IndexShard shard = getShard(change.entryId);
+            if (shard == null) {
+                continue; // expired
+            }
+            try {
+                // storage is authoritative: the latest journaled change
+                // may have been superseded by a committed one
+                String content = getStorage(change.feedId).readEntry(
+                        change.feedId, change.entryId);
+                Set<String> terms = new HashSet<String>();
+                shard.updateDocument(term, buildDocument(change.feedId,
+                        change.entryId, content, terms));
+                trending.add(change.entryId, terms);
+                count++;
+                continue;
+            } catch (FileNotFoundException e) {
+                // fall through to delete
+            } catch (Throwable t) {
+                log.error("Could not reindex entry: " + term.text(), t);
+                continue;
+            }
+            shard.deleteDocuments(term);
+        }
+        commit();
+        closeIdleShards();
+        log.info("Recovered index: reindexed " + count + " of "
+                + changes.size() + " uncommitted entries");
+    }
+
+    /**
+     * Commits any pending changes to the index and retires the journal files
+     * whose changes have all been indexed.
+     */
+    private synchronized void commit() {
+        try {
+            journalLock.writeLock().lock();
+            try {
+                for (File file : journal.roll()) {
+                    if (!retained.containsKey(file)) {
+                        retained.put(file, pending);
+                    }
+                }
+                pending = new AtomicInteger();
+                uncommitted.set(0);
+            } finally {
+                journalLock.writeLock().unlock();
+            }
+            List<File> committed = new LinkedList<File>();
+            for (Map.Entry<File, AtomicInteger> e : retained.entrySet()) {
+                if (e.getValue().get() == 0) {
+                    committed.add(e.getKey());
+                }
+            }
+            for (IndexShard shard : shards.values()) {
+                try {
+                    shard.commit();
+                } catch (AlreadyClosedException e) {
+                    // dropped
+                }
+            }
+            for (File file : committed) {
+                retained.remove(file);
+                if (!file.delete()) {
+                    log.warn("Could not delete index journal: " + file);
+                }
+            }
+            if (indexer != null && indexer.getDepth() > 0) {
+                log.debug("Committed index: " + indexer.getDepth()
+                        + " entries queued, lagging " + indexer.getLag()
+                        + "ms");
+            }
+        } catch (Throwable t) {
+            log.error("Unexpected error committing index", t);
+        }
+    }
+
+    /**
+     * Called on an indexer thread to apply the specified changes.
+     */
+    private void indexBatch(List<IndexQueue.Task> batch) {
+        Set<String> terms = new HashSet<String>();
+        for (IndexQueue.Task task : batch) {
+            Term term = new Term("entry", getEntryKeyString(task.feedId,
+                    task.entryId));
+            try {
+                IndexShard shard = getShard(task.entryId);
+                if (shard == null) {
+                    continue; // expired
+                }
+                if (task.op == IndexJournal.UPDATE) {
+                    terms.clear();
+                    shard.updateDocument(term, buildDocument(task.feedId,
+                            task.entryId, task.content, terms));
+                    trending.add(task.publishDate != null ? task.publishDate
+                            .getTime() : task.entryId, terms);
+                } else {
+                    shard.deleteDocuments(term);
+                }
+            } catch (Throwable t) {
+                // reindexed from storage on recovery
+                log.error("Could not index entry: " + term.text(), t);
+                task.fail();
+            }
+            indexed.add(task.feedId);
+        }
+        closeIdleShards();
+        if (uncommitted.addAndGet(batch.size()) >= commitCount) {
+            // commit elsewhere: a caller waiting on this queue may
+            // be holding the journal lock
+            try {
+                committer.schedule(new TimerTask() {
+                    public void run() {
+                        commit();
+                    }
+                }, 0);
+            } catch (IllegalStateException e) {
+                // closing: will commit
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries waiting to be indexed.
+     */
+    public int getIndexQueueDepth() {
+        return indexer.getDepth();
+    }
+
+    /**
+     * Returns the number of milliseconds the oldest entry waiting to be
+     * indexed has been waiting, or zero if none.
+     */
+    public long getIndexLag() {
+        return indexer.getLag();
+    }
+
+    /**
+     * Flushes the storage delegates, then waits for queued changes to be
+     * indexed and commits the index so they survive a restart. Call sync() to
+     * also wait until they are visible to searches.
+     */
+    public void flush() throws IOException {
+        if (cacheStorage != null) {
+            cacheStorage.flush();
+        }
+        if (persistentStorage != null && persistentStorage != cacheStorage) {
+            persistentStorage.flush();
+        }
+        try {
+            indexer.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for index");
+        }
+        commit();
+    }
+
+    /**
+     * Waits until all changes made before this call are indexed, committed,
+     * and visible to searches.
+     */
+    public void sync() throws IOException {
+        flush();
+        refresh(true);
+    }
+
+    /**
+     * Indexes any queued changes, commits, and releases the index. This
+     * instance may not be used after it is closed.
+     */
+    public void close() throws IOException {
+        if (cacheRetention != null) {
+            cacheRetention.close();
+        }
+        try {
+            indexer.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        committer.cancel();
+        reopener.cancel();
+        commit();
+        synchronized (shards) {
+            for (IndexShard shard : shards.values()) {
+                shard.close();
+            }
+            shards.clear();
+        }
+        journal.close();
+    }
+
+    /**
+     * Discards the index and rebuilds it from the entries in storage. Entries
+     * are read, parsed, and analyzed on the specified number of threads, all
+     * feeding the shard index writers; progress is printed to the specified
+     * stream every few seconds. Intended to run offline, before this instance
+     * serves any requests. Trending categories are counted from the entries
+     * as they are indexed.
+     * 
+     * @return the number of entries indexed.
+     */
+    public int reindex(int threads, final PrintStream out) throws IOException {
+        final Set<String> feedIds = new LinkedHashSet<String>();
+        if (persistentStorage != null) {
+            feedIds.addAll(Arrays.asList(getStoredFeedIds(persistentStorage)));
+        }
+        feedIds.addAll(Arrays.asList(getStoredFeedIds(cacheStorage)));
+
+        final long started = System.currentTimeMillis();
+        final AtomicInteger indexed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger feeds = new AtomicInteger();
+        Timer reporter = new Timer("LuceneStorage-reindex", true);
+        reporter.schedule(new TimerTask() {
+            public void run() {
+                out.println("Indexed " + indexed.get() + " entries from "
+                        + feeds.get() + " of " + feedIds.size() + " feeds ("
+                        + getRate(indexed.get(), started) + " entries/sec)");
+            }
+        }, 5000, 5000);
+
+        // bounded queue: the caller reads ahead only while workers keep up
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            synchronized (shards) {
+                for (IndexShard shard : shards.values()) {
+                    shard.delete();
+                }
+                shards.clear();
+            }
+            for (final String feedId : feedIds) {
+                final Storage storage = getStorage(feedId);
+                long[] entryIds = storage.getEntryIdsForFeedId(feedId, 0,
+                        Integer.MAX_VALUE, null, null, null, null, null, null);
+                if (entryIds != null) {
+                    for (final long entryId : entryIds) {
+                        workers.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    IndexShard shard = getShard(entryId);
+                                    if (shard == null) {
+                                        return; // expired
+                                    }
+                                    Set<String> terms = new HashSet<String>();
+                                    shard.addDocument(buildDocument(feedId,
+                                            entryId, storage.readEntry(feedId,
+                                                    entryId), terms));
+                                    trending.add(entryId, terms);
+                                    indexed.incrementAndGet();
+                                    closeIdleShards();
+                                } catch (Throwable t) {
+                                    log.error("Could not reindex entry: "
+                                            + getEntryKeyString(feedId,
+                                                    entryId), t);
+                                    failed.incrementAndGet();
+                                }
+                            }
+                        });
+                    }
+                }
+                feeds.incrementAndGet();
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait for remaining entries
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reindexing");
+        } finally {
+            workers.shutdownNow();
+            reporter.cancel();
+        }
+        commit();
+        for (IndexShard shard : shards.values()) {
+            shard.refresh(true);
+        }
+        closeIdleShards();
+        for (File file : indexRoot.listFiles()) {
+            // unpartitioned index from an earlier version
+            if (file.isFile() && !file.delete()) {
+                log.warn("Could not delete legacy index file: " + file);
+            }
+        }
+        out.println("Reindexed " + indexed.get() + " entries from "
+                + feedIds.size() + " feeds in "
+                + (System.currentTimeMillis() - started) / 1000 + " seconds ("
+                + getRate(indexed.get(), started) + " entries/sec, "
+                + failed.get() + " failed)");
+        return indexed.get();
+    }
 
-        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_46,
-                analyzer);
-        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-        writer = new IndexWriter(dir, iwc);
-        writer.commit();
-        refreshReader();
+    private static long getRate(int count, long started) {
+        long elapsed = System.currentTimeMillis() - started;
+        return elapsed > 0 ? count * 1000L / elapsed : count;
     }
 
-    private void refreshReader() throws IOException {
-        reader = DirectoryReader.open(writer, true);
+    /**
+     * Returns the ids of all feeds with content in the specified storage.
+     */
+    private static String[] getStoredFeedIds(Storage storage) {
+        if (storage instanceof FileStorage) {
+            // includes feeds without a keystore
+            return ((FileStorage) storage).getStoredFeedIds();
+        }
+        return storage.getFeedIds(0, Integer.MAX_VALUE);
     }
 
     /**
@@ -157,7 +862,12 @@ public class LuceneStorage implements Storage {
     }
 
     private boolean isManaged(String feedId) {
-        String[] feedIds = getFeedIds(0, 100);
+        if (persistentStorage instanceof FileStorage) {
+            // fast path: in-memory lookup
+            return ((FileStorage) persistentStorage).getManagedFeeds()
+                    .contains(feedId);
+        }
+        String[] feedIds = getFeedIds(0, Integer.MAX_VALUE);
         for (String id : feedIds) {
             if (id.equals(feedId)) {
                 return true;
@@ -173,26 +883,28 @@ public class LuceneStorage implements Storage {
         if (isManaged(feedId)) {
             return persistentStorage;
         }
+        if (cacheRetention != null) {
+            cacheRetention.touch(feedId);
+        }
         return cacheStorage;
     }
 
     /**
-     * Returns categories mentioned in content hosted on this server. Categories
-     * should be ordered by most popular or recently used, or a combination of
-     * both ("trending").
-     * 
-     * @param start
-     *            the start index from which to return results; if exceeds
-     *            bounds of available results, zero results are returned.
-     * @param length
-     *            the maximum number of results to return; servers may return
-     *            fewer results.
-     * @return the specified trending categories.
+     * Called after the specified feed is written to storage.
+     */
+    private void changed(String feedId) {
+        if (cacheRetention != null && !isManaged(feedId)) {
+            cacheRetention.changed(feedId);
+        }
+    }
+
+    /**
+     * Returns the tags and mentions most frequently used by entries recently
+     * published to this server. Tags are prefixed with '#' and mentions with
+     * '@'.
      */
     public String[] getCategories(int start, int length) {
-        // TODO: implement category tracking
-        // return most frequent categories for the past 100 or 1000 entries
-        return new String[0];
+        return trending.getCategories(start, length);
     }
 
     public int getEntryCount(Date after, Date before, String query,
@@ -207,7 +919,19 @@ public class LuceneStorage implements Storage {
             Filter filter = buildRangeFilter(after, before);
             Query query = buildTextQuery(feedId, search, mentions, tags, verb);
             CountCollector collector = new CountCollector();
-            new IndexSearcher(reader).search(query, filter, collector);
+            for (IndexShard shard : getShards(after, before)) {
+                IndexSearcher searcher = shard.acquire();
+                if (searcher != null) {
+                    try {
+                        searcher.search(query,
+                                getShardFilter(shard, filter, after, before),
+                                collector);
+                    } finally {
+                        shard.release(searcher);
+                        closeIdleShards();
+                    }
+                }
+            }
             return collector.getCount();
         } catch (IOException e) {
             log.error("Unexpected error getting entry count for feed: "
@@ -221,52 +945,123 @@ public class LuceneStorage implements Storage {
 
     public String[] getEntryIds(int start, int length, Date after, Date before,
             String query, String[] mentions, String[] tags, String verb) {
-        return _getEntryIdsForFeedId(null, start, length, after, before, query,
-                mentions, tags, verb);
+        return toGlobalIds(_getEntryIdsForFeedId(null, null, start, length,
+                after, before, query, mentions, tags, verb));
+    }
+
+    public String[] getEntryIdsFromCursor(String cursor, int length,
+            Date after, Date before, String query, String[] mentions,
+            String[] tags, String verb) {
+        FieldDoc last = null;
+        if (cursor != null) {
+            int index = cursor.lastIndexOf(':');
+            last = new FieldDoc(Integer.MAX_VALUE, Float.NaN, new Object[] {
+                    Long.parseLong(cursor.substring(index + 1), 16),
+                    new BytesRef(cursor.substring(0, index)) });
+        }
+        return toGlobalIds(_getEntryIdsForFeedId(null, last, 0, length, after,
+                before, query, mentions, tags, verb));
+    }
+
+    private static String[] toGlobalIds(Hits hits) {
+        if (hits == null) {
+            return null;
+        }
+        String[] result = new String[hits.entryIds.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = hits.feedIds[i] + ':'
+                    + Long.toHexString(hits.entryIds[i]);
+        }
+        return result;
     }
 
     public long[] getEntryIdsForFeedId(String feedId, int start, int length,
             Date after, Date before, String query, String[] mentions,
             String[] tags, String verb) {
-        String[] ids = _getEntryIdsForFeedId(feedId, start, length, after,
+        Hits hits = _getEntryIdsForFeedId(feedId, null, start, length, after,
                 before, query, mentions, tags, verb);
-        long[] result = null;
-        if (ids != null) {
-            result = new long[ids.length];
-            int i = 0;
-            int offset = feedId.length() + 1; // entry keys contain feed id
-            for (String id : ids) {
-                result[i++] = Long.parseLong(id.substring(offset), 16);
-            }
+        if (hits == null) {
+            return null;
         }
-        return result;
+        return hits.entryIds;
     }
 
-    private String[] _getEntryIdsForFeedId(String feedId, int start,
-            int length, Date after, Date before, String search,
+    public long[] getEntryIdsForFeedIdFromCursor(String feedId, long cursor,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        FieldDoc last = null;
+        if (cursor != 0) {
+            last = new FieldDoc(Integer.MAX_VALUE, Float.NaN,
+                    new Object[] { cursor });
+        }
+        Hits hits = _getEntryIdsForFeedId(feedId, last, 0, length, after,
+                before, query, mentions, tags, verb);
+        if (hits == null) {
+            return null;
+        }
+        return hits.entryIds;
+    }
+
+    /**
+     * Returns the specified page of matching entries, or if the last entry of
+     * the previous page is specified, the entries that follow it.
+     * 
+     * Shards are searched from most recent until the page is filled: shards
+     * hold disjoint ranges of entry ids, so their results are already in
+     * order, and older shards are not searched at all once a page is full.
+     */
+    private Hits _getEntryIdsForFeedId(String feedId, FieldDoc last,
+            int start, int length, Date after, Date before, String search,
             String[] mentions, String[] tags, String verb) {
         try {
             Filter filter = buildRangeFilter(after, before);
             Query query = buildTextQuery(feedId, search, mentions, tags, verb);
-            TopDocs hits = new IndexSearcher(reader).search(query, filter,
-                    start + length, new Sort(new SortField("updated",
-                            SortField.Type.LONG, true)));
-            String[] result = new String[Math.min(length, hits.totalHits)];
-            int i = 0;
-            String id;
-            int replace;
-            Set<String> fields = new HashSet<String>();
-            fields.add("entry"); // we only need the entry field
-            for (ScoreDoc e : hits.scoreDocs) {
-                id = new IndexSearcher(reader).doc(e.doc).get("entry");
-                replace = id.lastIndexOf('-');
-                if (replace != -1) {
-                    id = id.substring(0, replace) + ':'
-                            + id.substring(replace + 1);
-                }
-                result[i++] = id;
-            }
-            return result;
+            Sort sort = feedId == null ? GLOBAL_SORT : FEED_SORT;
+            if (last != null) {
+                // no need to search shards newer than the cursor
+                before = new Date(Math.min(before != null ? before.getTime()
+                        : Long.MAX_VALUE, (Long) last.fields[0] + 1));
+            }
+            List<Hits> pages = new LinkedList<Hits>();
+            int skip = start;
+            int remaining = length;
+            for (IndexShard shard : getShards(after, before)) {
+                if (remaining <= 0) {
+                    break;
+                }
+                IndexSearcher searcher = shard.acquire();
+                if (searcher == null) {
+                    continue;
+                }
+                try {
+                    Filter shardFilter = getShardFilter(shard, filter, after,
+                            before);
+                    TopDocs hits;
+                    if (last != null) {
+                        // the position of the cursor itself is never matched
+                        // because its doc is greater than every other
+                        hits = searcher.searchAfter(last, query, shardFilter,
+                                remaining, sort);
+                    } else {
+                        hits = searcher.search(query, shardFilter, skip
+                                + remaining, sort);
+                    }
+                    if (hits.totalHits <= skip) {
+                        skip -= hits.totalHits;
+                        continue;
+                    }
+                    Hits page = readHits(searcher, hits.scoreDocs, skip,
+                            feedId == null);
+                    skip = 0;
+                    remaining -= page.entryIds.length;
+                    pages.add(page);
+                } finally {
+                    shard.release(searcher);
+                    closeIdleShards();
+                }
+            }
+            return concat(pages, length - remaining,
+                    feedId == null);
         } catch (IOException e) {
             log.error("Unexpected error getting query for feed: " + feedId, e);
         } catch (QueryNodeException e) {
@@ -275,6 +1070,102 @@ public class LuceneStorage implements Storage {
         return null;
     }
 
+    /**
+     * Reads the entry id and optionally the feed id of each of the specified
+     * hits from the specified offset, using doc values where present and
+     * falling back to the stored entry key for documents indexed before doc
+     * values were added.
+     */
+    private static Hits readHits(IndexSearcher searcher, ScoreDoc[] docs,
+            int start, boolean withFeedIds) throws IOException {
+        int count = Math.max(0, docs.length - start);
+        Hits result = new Hits();
+        result.entryIds = new long[count];
+        if (withFeedIds) {
+            result.feedIds = new String[count];
+        }
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        Set<String> fields = new HashSet<String>();
+        fields.add("entry"); // we only need the entry field
+        BytesRef bytes = new BytesRef();
+        AtomicReaderContext leaf = null;
+        NumericDocValues updated = null;
+        SortedDocValues feeds = null;
+        for (int i = 0; i < count; i++) {
+            int doc = docs[start + i].doc;
+            if (leaf == null || doc < leaf.docBase
+                    || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                updated = leaf.reader().getNumericDocValues("updated");
+                feeds = null;
+                if (withFeedIds) {
+                    feeds = leaf.reader().getSortedDocValues("feed");
+                }
+            }
+            int local = doc - leaf.docBase;
+            long entryId = 0;
+            int ord = -1;
+            if (updated != null) {
+                entryId = updated.get(local);
+            }
+            if (feeds != null) {
+                ord = feeds.getOrd(local);
+            }
+            if (entryId != 0 && (!withFeedIds || ord != -1)) {
+                result.entryIds[i] = entryId;
+                if (withFeedIds) {
+                    feeds.lookupOrd(ord, bytes);
+                    result.feedIds[i] = bytes.utf8ToString();
+                }
+            } else {
+                // legacy document: parse the stored key
+                String key = leaf.reader().document(local, fields)
+                        .get("entry");
+                int index = key.lastIndexOf('-');
+                result.entryIds[i] = Long.parseLong(key.substring(index + 1),
+                        16);
+                if (withFeedIds) {
+                    result.feedIds[i] = key.substring(0, index);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Hits concat(List<Hits> pages, int count,
+            boolean withFeedIds) {
+        Hits result = new Hits();
+        result.entryIds = new long[count];
+        if (withFeedIds) {
+            result.feedIds = new String[count];
+        }
+        int offset = 0;
+        for (Hits page : pages) {
+            int n = page.entryIds.length;
+            System.arraycopy(page.entryIds, 0, result.entryIds, offset, n);
+            if (withFeedIds) {
+                System.arraycopy(page.feedIds, 0, result.feedIds, offset, n);
+            }
+            offset += n;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the range filter for searching the specified shard, or null if
+     * the shard lies entirely within the range.
+     */
+    private static Filter getShardFilter(IndexShard shard, Filter filter,
+            Date after, Date before) {
+        if (filter != null
+                && shard.within(after != null ? after.getTime()
+                        : Long.MIN_VALUE, before != null ? before.getTime()
+                        : Long.MAX_VALUE)) {
+            return null;
+        }
+        return filter;
+    }
+
     private Filter buildRangeFilter(Date after, Date before) {
         if (after == null && before == null) {
             return null;
@@ -354,7 +1245,7 @@ public class LuceneStorage implements Storage {
         }
         if (search.trim().length() == 0) {
             log.trace("No search parameters: " + search);
-            search = "*"; // return everything
+            return new MatchAllDocsQuery(); // return everything
         }
         StandardQueryParser parser = new StandardQueryParser();
         parser.setDefaultOperator(StandardQueryConfigHandler.Operator.AND);
@@ -430,6 +1321,7 @@ public class LuceneStorage implements Storage {
             // }
             //
             getStorage(feedId).updateFeed(feedId, lastUpdated, content);
+            changed(feedId);
             // feedWriter.updateDocument(new Term("feed", feedId), document);
             // }
 
@@ -461,6 +1353,84 @@ public class LuceneStorage implements Storage {
         return getStorage(feedId).readEntry(feedId, entryId);
     }
 
+    /**
+     * Returns the contents of the specified entries of the specified feed,
+     * routed to the feed's storage once for all entries.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryIds
+     *            the desired entries for the specified feed.
+     * @return the signed entry element for each entry id, or null where the
+     *         entry does not exist.
+     * @throws IOException
+     *             if a error occurs obtaining the entry data.
+     */
+    public String[] readEntries(String feedId, long[] entryIds)
+            throws IOException {
+        return getStorage(feedId).readEntries(feedId, entryIds);
+    }
+
+    /**
+     * Returns the contents of the specified entries from any number of feeds,
+     * making one call to each storage for all the entries it holds.
+     * 
+     * @param entryIds
+     *            the desired entries, in the form returned by getEntryIds().
+     * @return the signed entry element for each entry id, or null where the
+     *         entry does not exist.
+     * @throws IOException
+     *             if a error occurs obtaining the entry data.
+     */
+    public String[] readEntries(String[] entryIds) throws IOException {
+        Map<String, Storage> routes = new HashMap<String, Storage>();
+        Map<Storage, List<Integer>> batches = new IdentityHashMap<Storage, List<Integer>>();
+        String feedId;
+        Storage storage;
+        List<Integer> batch;
+        for (int i = 0; i < entryIds.length; i++) {
+            feedId = entryIds[i].substring(0, entryIds[i].lastIndexOf(':'));
+            storage = routes.get(feedId);
+            if (storage == null) {
+                storage = getStorage(feedId);
+                routes.put(feedId, storage);
+            }
+            batch = batches.get(storage);
+            if (batch == null) {
+                batch = new ArrayList<Integer>();
+                batches.put(storage, batch);
+            }
+            batch.add(i);
+        }
+        String[] result = new String[entryIds.length];
+        for (Map.Entry<Storage, List<Integer>> e : batches.entrySet()) {
+            batch = e.getValue();
+            String[] ids = new String[batch.size()];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = entryIds[batch.get(j)];
+            }
+            String[] entries = e.getKey().readEntries(ids);
+            for (int j = 0; j < ids.length; j++) {
+                result[batch.get(j)] = entries[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if an entry with the specified id exists for the specified
+     * feed.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the desired entry for the specified feed.
+     * @return true if the entry exists, otherwise false.
+     */
+    public boolean hasEntry(String feedId, long entryId) {
+        return getStorage(feedId).hasEntry(feedId, entryId);
+    }
+
     /**
      * Receives the contents of a signed entry element to be stored and
      * associated with the specified feed and unique identifier for later
@@ -482,163 +1452,153 @@ public class LuceneStorage implements Storage {
      */
     public void updateEntry(String feedId, long entryId, Date publishDate,
             String content) throws IOException {
+        // persist the document and queue it for indexing
+        journalLock.readLock().lock();
         try {
-            Entry entry = (Entry) abdera.getParser()
-                    .parse(new StringReader(content)).getRoot();
-
-            // we also accumulate categories, mentions, and verbs into
-            // a single combined multivalue string index
-            Set<String> tags = new HashSet<String>();
-
-            // get verb
-            String verb = null; // "post" is default verb
-            Element verbElement = entry.getExtension(new QName(
-                    "http://activitystrea.ms/spec/1.0/", "verb", "activity"));
-            if (verbElement != null) {
-                if (verbElement.getText() != null) {
-                    verb = verbElement.getText().trim().toLowerCase();
-                    while (verb.length() > 0
-                            && (verb.charAt(0) == '#' || verb.charAt(0) == '@')) {
-                        // strip our "special" characters
-                        verb = verb.substring(1);
-                    }
+            journal.append(IndexJournal.UPDATE, feedId, entryId);
+            getStorage(feedId).updateEntry(feedId, entryId, publishDate,
+                    content);
+            changed(feedId);
+            indexer.add(new IndexQueue.Task(IndexJournal.UPDATE, feedId,
+                    entryId, publishDate, content, pending));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing: "
+                    + getEntryKeyString(feedId, entryId));
+        } finally {
+            journalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Extracts the indexed fields from the specified entry content, and adds
+     * its tags and mentions to the specified collection if not null.
+     */
+    private Document buildDocument(String feedId, long entryId,
+            String content, Collection<String> terms) {
+        Entry entry = (Entry) abdera.getParser()
+                .parse(new StringReader(content)).getRoot();
+
+        // we also accumulate categories, mentions, and verbs into
+        // a single combined multivalue string index
+        Set<String> tags = new HashSet<String>();
+
+        // get verb
+        String verb = null; // "post" is default verb
+        Element verbElement = entry.getExtension(new QName(
+                "http://activitystrea.ms/spec/1.0/", "verb", "activity"));
+        if (verbElement != null) {
+            if (verbElement.getText() != null) {
+                verb = verbElement.getText().trim().toLowerCase();
+                while (verb.length() > 0
+                        && (verb.charAt(0) == '#' || verb.charAt(0) == '@')) {
+                    // strip our "special" characters
+                    verb = verb.substring(1);
                 }
             }
-            if (verb == null || verb.length() == 0) {
-                verb = "post"; // "post" is default verb
-            }
-            tags.add(verb);
+        }
+        if (verb == null || verb.length() == 0) {
+            verb = "post"; // "post" is default verb
+        }
+        tags.add(verb);
 
-            // get categories
-            List<Category> categories = entry.getCategories();
-            if (categories != null) {
-                for (Category e : categories) {
-                    IRI scheme = e.getScheme();
-                    if (scheme != null
-                            && (Common.TAG_URN.equals(scheme.toString()) || Common.TAG_URN_LEGACY
-                                    .equals(scheme.toString()))) {
-                        if (e.getTerm() != null) {
-                            tags.add('#' + e.getTerm().trim().toLowerCase());
-                        }
-                    } else if (scheme != null
-                            && (Common.MENTION_URN.equals(scheme.toString()) || Common.MENTION_URN_LEGACY
-                                    .equals(scheme.toString()))) {
-                        String mention = e.getTerm();
-                        if (mention != null) {
-                            mention = mention.trim();
-                            if (mention.startsWith(Common.ACCOUNT_URN_PREFIX)) {
-                                int index = mention
-                                        .indexOf(Common.ACCOUNT_URN_FEED_PREFIX);
-                                if (index != -1) {
-                                    // feed id instead
-                                    String id = mention.substring(index
-                                            + Common.ACCOUNT_URN_FEED_PREFIX
-                                                    .length());
-                                    tags.add('@' + id);
-                                    // truncate feed id and continue
-                                    mention = mention.substring(0, index);
-                                }
-                                mention = mention
-                                        .substring(Common.ACCOUNT_URN_PREFIX
-                                                .length());
-                            }
-                            if (mention.startsWith(Common.FEED_URN_PREFIX)) {
-                                mention = mention
-                                        .substring(Common.FEED_URN_PREFIX
-                                                .length());
-                            }
-                            if (mention.startsWith(Common.ENTRY_URN_PREFIX)) {
-                                mention = mention
-                                        .substring(Common.ENTRY_URN_PREFIX
+        // get categories
+        List<Category> categories = entry.getCategories();
+        if (categories != null) {
+            for (Category e : categories) {
+                IRI scheme = e.getScheme();
+                if (scheme != null
+                        && (Common.TAG_URN.equals(scheme.toString()) || Common.TAG_URN_LEGACY
+                                .equals(scheme.toString()))) {
+                    if (e.getTerm() != null) {
+                        tags.add('#' + e.getTerm().trim().toLowerCase());
+                    }
+                } else if (scheme != null
+                        && (Common.MENTION_URN.equals(scheme.toString()) || Common.MENTION_URN_LEGACY
+                                .equals(scheme.toString()))) {
+                    String mention = e.getTerm();
+                    if (mention != null) {
+                        mention = mention.trim();
+                        if (mention.startsWith(Common.ACCOUNT_URN_PREFIX)) {
+                            int index = mention
+                                    .indexOf(Common.ACCOUNT_URN_FEED_PREFIX);
+                            if (index != -1) {
+                                // feed id instead
+                                String id = mention.substring(index
+                                        + Common.ACCOUNT_URN_FEED_PREFIX
                                                 .length());
+                                tags.add('@' + id);
+                                // truncate feed id and continue
+                                mention = mention.substring(0, index);
                             }
-                            tags.add('@' + mention);
+                            mention = mention
+                                    .substring(Common.ACCOUNT_URN_PREFIX
+                                            .length());
                         }
+                        if (mention.startsWith(Common.FEED_URN_PREFIX)) {
+                            mention = mention
+                                    .substring(Common.FEED_URN_PREFIX
+                                            .length());
+                        }
+                        if (mention.startsWith(Common.ENTRY_URN_PREFIX)) {
+                            mention = mention
+                                    .substring(Common.ENTRY_URN_PREFIX
+                                            .length());
+                        }
+                        tags.add('@' + mention);
                     }
                 }
             }
+        }
 
-            // convert to list and persist
-            List<String> converted = new LinkedList<String>();
-            for (String tag : tags) {
-                converted.add(tag);
-            }
-
-            // extract fields for full-text search index
-            Document document = new Document();
-            StringBuffer text = new StringBuffer();
-            document.add(new StringField("entry", getEntryKeyString(feedId,
-                    entryId), Field.Store.YES));
-            text.append(entryId).append(' ');
-            document.add(new StringField("feed", feedId, Field.Store.NO));
-            text.append(feedId).append(' ');
-            document.add(new StringField("verb", verb, Field.Store.NO));
-            text.append(verb).append(' ');
-            document.add(new LongField("updated", entryId, Field.Store.NO));
-            text.append(verb).append(' ');
-
-            if (entry.getTitle() != null) {
-                String title = entry.getTitle().toLowerCase();
-                document.add(new TextField("title", title, Field.Store.NO));
-                text.append(title).append(' ');
-            }
-            if (entry.getSummary() != null) {
-                String summary = extractTextFromHtml(entry.getSummary())
-                        .toLowerCase();
-                // System.out.println("extracting: " + summary);
-                document.add(new TextField("summary", summary, Field.Store.NO));
-                text.append(summary).append(' ');
-            }
-            tags.remove(verb); // don't treat verb as tag in full-text search
-            for (String tag : tags) {
-                tag = tag.substring(1); // remove @ or #
-                document.add(new StringField("tag", tag, Field.Store.NO));
-                text.append(tag).append(' ');
-            }
-            document.add(new TextField("text", text.toString(), Field.Store.NO));
+        // convert to list and persist
+        List<String> converted = new LinkedList<String>();
+        for (String tag : tags) {
+            converted.add(tag);
+        }
 
-            // persist the document
-            getStorage(feedId).updateEntry(feedId, entryId, publishDate,
-                    content);
-            writer.updateDocument(
-                    new Term("entry", getEntryKeyString(feedId, entryId)),
-                    document);
-            writer.commit();
-            refreshReader();
-        } catch (Throwable t) {
-            log.error("Error from update entry: " + feedId + " : " + entryId, t);
-            throw new IOException("Could not parse input for: "
-                    + getEntryKeyString(feedId, entryId) + " : "
-                    + t.getMessage());
+        // extract fields for full-text search index
+        Document document = new Document();
+        StringBuffer text = new StringBuffer();
+        document.add(new StringField("entry", getEntryKeyString(feedId,
+                entryId), Field.Store.YES));
+        text.append(entryId).append(' ');
+        document.add(new StringField("feed", feedId, Field.Store.NO));
+        document.add(new SortedDocValuesField("feed", new BytesRef(feedId)));
+        text.append(feedId).append(' ');
+        document.add(new StringField("verb", verb, Field.Store.NO));
+        text.append(verb).append(' ');
+        document.add(new LongField("updated", entryId, Field.Store.NO));
+        document.add(new NumericDocValuesField("updated", entryId));
+        text.append(verb).append(' ');
+
+        if (entry.getTitle() != null) {
+            String title = entry.getTitle().toLowerCase();
+            document.add(new TextField("title", title, Field.Store.NO));
+            text.append(title).append(' ');
+        }
+        if (entry.getSummary() != null) {
+            String summary = extractTextFromHtml(entry.getSummary())
+                    .toLowerCase();
+            // System.out.println("extracting: " + summary);
+            document.add(new TextField("summary", summary, Field.Store.NO));
+            text.append(summary).append(' ');
         }
+        tags.remove(verb); // don't treat verb as tag in full-text search
+        if (terms != null) {
+            terms.addAll(tags);
+        }
+        for (String tag : tags) {
+            tag = tag.substring(1); // remove @ or #
+            document.add(new StringField("tag", tag, Field.Store.NO));
+            text.append(tag).append(' ');
+        }
+        document.add(new TextField("text", text.toString(), Field.Store.NO));
+        return document;
     }
 
-    // borrowed from lai-xin-chu: http://stackoverflow.com/questions/12576119
     private String extractTextFromHtml(String html) {
-        Tidy tidy = new Tidy();
-        tidy.setQuiet(true);
-        tidy.setShowWarnings(false);
-        org.w3c.dom.Document root = tidy.parseDOM(new StringReader(html), null);
-        return getText(root.getDocumentElement());
-    }
-
-    // borrowed from lai-xin-chu: http://stackoverflow.com/questions/12576119
-    private String getText(Node node) {
-        NodeList children = node.getChildNodes();
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < children.getLength(); i++) {
-            Node child = children.item(i);
-            switch (child.getNodeType()) {
-            case Node.ELEMENT_NODE:
-                sb.append(getText(child));
-                sb.append(" ");
-                break;
-            case Node.TEXT_NODE:
-                sb.append(((Text) child).getData());
-                break;
-            }
-        }
-        return sb.toString();
+        return extractors.get().extract(html);
     }
 
     /**
@@ -655,19 +1615,20 @@ public class LuceneStorage implements Storage {
      */
     public void deleteEntry(String feedId, long entryId)
             throws FileNotFoundException, IOException {
+        journalLock.readLock().lock();
         try {
-            writer.deleteDocuments(new Term("entry", getEntryKeyString(feedId,
-                    entryId)));
-            writer.commit();
-            refreshReader();
-        } catch (Throwable t) {
-            log.error("Unexpected error from delete entry: " + feedId + " : "
-                    + entryId, t);
-            throw new IOException("Unexpected error while deleting: "
-                    + getEntryKeyString(feedId, entryId) + " : "
-                    + t.getMessage());
+            journal.append(IndexJournal.DELETE, feedId, entryId);
+            getStorage(feedId).deleteEntry(feedId, entryId);
+            changed(feedId);
+            indexer.add(new IndexQueue.Task(IndexJournal.DELETE, feedId,
+                    entryId, null, null, pending));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deleting: "
+                    + getEntryKeyString(feedId, entryId));
+        } finally {
+            journalLock.readLock().unlock();
         }
-        getStorage(feedId).deleteEntry(feedId, entryId);
     }
 
     private static final String getEntryKeyString(String feedId, long entityId) {
@@ -720,6 +1681,28 @@ public class LuceneStorage implements Storage {
                 resourceId);
     }
 
+    /**
+     * Obtains a handle to the resource data for the specified entry for the
+     * specified feed. Callers must close the handle when finished.
+     *
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @return an open handle to the contents of the resource.
+     * @throws FileNotFoundException
+     *             if the specified entry does not exist.
+     * @throws IOException
+     *             if a error occurs obtaining the resource data.
+     */
+    public ResourceHandle openFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException {
+        return getStorage(feedId).openFeedEntryResource(feedId, entryId,
+                resourceId);
+    }
+
     /**
      * Stores a binary resource for the specified feed and entry by reading the
      * specified input stream and persisting the contents for later retrieval by
@@ -747,6 +1730,36 @@ public class LuceneStorage implements Storage {
             throws IOException {
         getStorage(feedId).updateFeedEntryResource(feedId, entryId, resourceId,
                 mimeType, publishDate, data);
+        changed(feedId);
+    }
+
+    /**
+     * Stores a binary resource for the specified feed and entry by reading the
+     * specified input stream to its end. Nothing is stored if reading the
+     * stream throws an exception. Callers must close the input stream.
+     *
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @param mimeType
+     *            the mime type of the data if known, otherwise null.
+     * @param publishDate
+     *            the datetime when the associated entry says it was or will be
+     *            published; used for date/time range queries
+     * @param data
+     *            an input stream whose contents are to be persisted.
+     * @throws IOException
+     *             if a error occurs reading or persisting the resource data.
+     */
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate,
+            InputStream data) throws IOException {
+        getStorage(feedId).updateFeedEntryResource(feedId, entryId, resourceId,
+                mimeType, publishDate, data);
+        changed(feedId);
     }
 
     /**
@@ -764,11 +1777,20 @@ public class LuceneStorage implements Storage {
     public void deleteFeedEntryResource(String feedId, long entryId,
             String resourceId) throws IOException {
         getStorage(feedId).deleteFeedEntryResource(feedId, entryId, resourceId);
+        changed(feedId);
     }
 
     private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
             .getLogger(Client.class);
 
+    /**
+     * Entry ids, and feed ids if requested, of a page of search results.
+     */
+    private static class Hits {
+        long[] entryIds;
+        String[] feedIds;
+    }
+
     private static class CountCollector extends Collector {
         int count;
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.trsst.Common;
+
+/**
+ * Keeps the set of feed ids managed by this server in memory, so that routing
+ * a feed to the right storage is a simple lookup rather than a directory
+ * listing. A feed is managed if a keystore for it exists in the specified
+ * directory.
+ *
+ * The set is loaded when created and then follows keystores as they are
+ * written or deleted, by watching the directory for changes; refresh() reloads
+ * the set explicitly, and add() and remove() update it directly.
+ *
+ * @author mpowers
+ */
+public class ManagedFeedRegistry {
+
+    private final File root;
+    private final Set<String> feedIds = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile String[] sorted;
+    private WatchService watcher;
+
+    /**
+     * Loads the feeds with keystores in the specified directory and starts
+     * watching it for changes.
+     */
+    public ManagedFeedRegistry(File root) {
+        this.root = root;
+        refresh();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            root.toPath().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    watch();
+                }
+            }, "ManagedFeedRegistry-watch");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException e) {
+            log.warn("Could not watch for new keystores: " + root, e);
+            watcher = null;
+        }
+    }
+
+    /**
+     * Returns true if the specified feed is managed by this server.
+     */
+    public boolean contains(String feedId) {
+        return feedIds.contains(feedId);
+    }
+
+    /**
+     * Returns the specified range of managed feed ids in sorted order.
+     */
+    public String[] getFeedIds(int start, int length) {
+        String[] all = sorted;
+        if (all == null) {
+            synchronized (this) {
+                if (sorted == null) {
+                    String[] ids = feedIds.toArray(new String[0]);
+                    Arrays.sort(ids);
+                    sorted = ids;
+                }
+                all = sorted;
+            }
+        }
+        if (start < 0 || length < 1 || start >= all.length) {
+            return new String[0];
+        }
+        String[] result = new String[Math.min(length, all.length - start)];
+        System.arraycopy(all, start, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Marks the specified feed as managed.
+     */
+    public void add(String feedId) {
+        if (feedIds.add(feedId)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Marks the specified feed as no longer managed.
+     */
+    public void remove(String feedId) {
+        if (feedIds.remove(feedId)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Reloads the managed feeds from the keystores in the directory.
+     */
+    public void refresh() {
+        Set<String> found = new HashSet<String>();
+        String[] names = root.list();
+        if (names != null) {
+            String feedId;
+            for (String name : names) {
+                feedId = toFeedId(name);
+                if (feedId != null) {
+                    found.add(feedId);
+                }
+            }
+        }
+        feedIds.retainAll(found);
+        feedIds.addAll(found);
+        invalidate();
+    }
+
+    private synchronized void invalidate() {
+        sorted = null;
+    }
+
+    /**
+     * Stops watching the directory for changes.
+     */
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // suppress any futher error on closing
+            }
+        }
+    }
+
+    /**
+     * Returns the feed id for the specified keystore file name, or null if not
+     * a keystore.
+     */
+    private static String toFeedId(String name) {
+        int i = name.indexOf(Common.KEY_EXTENSION);
+        if (i == -1) {
+            return null;
+        }
+        return Common.unescapeHTML(name.substring(0, i));
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        refresh();
+                        continue;
+                    }
+                    String name = ((Path) event.context()).toString();
+                    String feedId = toFeedId(name);
+                    if (feedId != null) {
+                        // check the file itself: events may be stale
+                        if (new File(root, name).exists()) {
+                            add(feedId);
+                        } else {
+                            remove(feedId);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    log.warn("No longer watching for new keystores: " + root);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        } catch (InterruptedException e) {
+            // exiting
+        }
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(ManagedFeedRegistry.class);
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.abdera.Abdera;
+import org.apache.abdera.model.Document;
+import org.apache.abdera.model.Element;
+import org.apache.abdera.model.Entry;
+import org.apache.abdera.model.Feed;
+import org.apache.abdera.parser.ParseException;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.trsst.Common;
+
+/**
+ * Caches fully-parsed feed and entry elements read from storage and hands out
+ * clones, so that frequently requested documents are parsed once rather than
+ * on every request. Templates are keyed by the feed's generation in
+ * CachingStorage, so any write to a feed retires its templates; documents read
+ * from other kinds of storage are parsed every time.
+ *
+ * Templates are bounded by the size of the documents they were parsed from,
+ * weighed as CachingStorage weighs them, within the same number of bytes as
+ * CachingStorage: "com.trsst.server.cache.bytes" (default 32MB).
+ *
+ * @author mpowers
+ */
+public class ParsedDocumentCache {
+
+    private final ConcurrentMap<Key, Template> templates;
+
+    public ParsedDocumentCache() {
+        this(CachingStorage.getDefaultCapacity());
+    }
+
+    /**
+     * Creates a cache bounded by the specified number of bytes of source
+     * documents.
+     */
+    public ParsedDocumentCache(long maximumBytes) {
+        templates = new ConcurrentLinkedHashMap.Builder<Key, Template>()
+                .maximumWeightedCapacity(maximumBytes)
+                .weigher(new Weigher<Template>() {
+                    public int weightOf(Template template) {
+                        return template.size;
+                    }
+                }).build();
+    }
+
+    /**
+     * Returns a newly-cloned copy of the specified feed element from the
+     * specified storage, which the caller is free to modify.
+     *
+     * @throws FileNotFoundException
+     *             if the feed does not exist in storage.
+     * @throws IOException
+     *             if the feed could not be read.
+     * @throws ParseException
+     *             if the feed could not be parsed.
+     */
+    public Feed getFeed(Storage storage, String feedId)
+            throws FileNotFoundException, IOException, ParseException {
+        if (!(storage instanceof CachingStorage)) {
+            return (Feed) parse(storage.readFeed(feedId));
+        }
+        Key key = new Key(storage, feedId, 0, false,
+                ((CachingStorage) storage).getGeneration(feedId));
+        Template template = templates.get(key);
+        if (template == null) {
+            template = new Template(storage.readFeed(feedId));
+            templates.put(key, template);
+        }
+        return (Feed) template.element.clone();
+    }
+
+    /**
+     * Returns a newly-cloned copy of the specified entry element from the
+     * specified storage, which the caller is free to modify.
+     *
+     * @throws FileNotFoundException
+     *             if the entry does not exist in storage.
+     * @throws IOException
+     *             if the entry could not be read.
+     * @throws ParseException
+     *             if the entry could not be parsed.
+     */
+    public Entry getEntry(Storage storage, String feedId, long entryId)
+            throws FileNotFoundException, IOException, ParseException {
+        if (!(storage instanceof CachingStorage)) {
+            return (Entry) parse(storage.readEntry(feedId, entryId));
+        }
+        Key key = new Key(storage, feedId, entryId, true,
+                ((CachingStorage) storage).getGeneration(feedId));
+        Template template = templates.get(key);
+        if (template == null) {
+            template = new Template(storage.readEntry(feedId, entryId));
+            templates.put(key, template);
+        }
+        return (Entry) template.element.clone();
+    }
+
+    /**
+     * Returns newly-cloned copies of the specified entries of the specified
+     * feed, reading any entries not already parsed from storage in a single
+     * call. The result has an element for each entry id, which is null if the
+     * entry does not exist.
+     *
+     * @throws IOException
+     *             if the entries could not be read.
+     * @throws ParseException
+     *             if an entry could not be parsed.
+     */
+    public Entry[] getEntries(Storage storage, String feedId, long[] entryIds)
+            throws IOException, ParseException {
+        String[] feedIds = new String[entryIds.length];
+        Arrays.fill(feedIds, feedId);
+        return getEntries(storage, feedIds, entryIds, true);
+    }
+
+    /**
+     * Returns newly-cloned copies of the specified entries from any number of
+     * feeds, in the form returned by Storage.getEntryIds(), reading any
+     * entries not already parsed from storage in a single call. The result
+     * has an element for each entry id, which is null if the entry does not
+     * exist.
+     *
+     * @throws IOException
+     *             if the entries could not be read.
+     * @throws ParseException
+     *             if an entry could not be parsed.
+     */
+    public Entry[] getEntries(Storage storage, String[] entryIds)
+            throws IOException, ParseException {
+        String[] feedIds = new String[entryIds.length];
+        long[] ids = new long[entryIds.length];
+        for (int i = 0; i < entryIds.length; i++) {
+            feedIds[i] = entryIds[i].substring(0,
+                    entryIds[i].lastIndexOf(':'));
+            ids[i] = Common.toEntryId(entryIds[i]);
+        }
+        return getEntries(storage, feedIds, ids, false);
+    }
+
+    private Entry[] getEntries(Storage storage, String[] feedIds,
+            long[] entryIds, boolean sameFeed) throws IOException,
+            ParseException {
+        Entry[] result = new Entry[entryIds.length];
+        Key[] keys = new Key[entryIds.length];
+        List<Integer> misses = new ArrayList<Integer>();
+        Template template;
+        for (int i = 0; i < entryIds.length; i++) {
+            if (storage instanceof CachingStorage) {
+                keys[i] = new Key(storage, feedIds[i], entryIds[i], true,
+                        ((CachingStorage) storage).getGeneration(feedIds[i]));
+                template = templates.get(keys[i]);
+                if (template != null) {
+                    result[i] = (Entry) template.element.clone();
+                    continue;
+                }
+            }
+            misses.add(i);
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+
+        String[] loaded;
+        if (sameFeed) {
+            long[] ids = new long[misses.size()];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = entryIds[misses.get(j)];
+            }
+            loaded = storage.readEntries(feedIds[0], ids);
+        } else {
+            String[] ids = new String[misses.size()];
+            int i;
+            for (int j = 0; j < ids.length; j++) {
+                i = misses.get(j);
+                ids[j] = feedIds[i] + ':' + Long.toHexString(entryIds[i]);
+            }
+            loaded = storage.readEntries(ids);
+        }
+        int i;
+        for (int j = 0; j < loaded.length; j++) {
+            if (loaded[j] != null) {
+                i = misses.get(j);
+                template = new Template(loaded[j]);
+                if (keys[i] != null) {
+                    templates.put(keys[i], template);
+                    result[i] = (Entry) template.element.clone();
+                } else {
+                    result[i] = (Entry) template.element; // not shared
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses the entire document up front: templates are shared between
+     * threads and must never be lazily built while being cloned.
+     */
+    private static Element parse(String xml) throws ParseException {
+        Document<Element> document = Abdera.getInstance().getParser()
+                .parse(new StringReader(xml));
+        document.complete();
+        return document.getRoot();
+    }
+
+    /**
+     * A parsed document and the size of the text it was parsed from.
+     */
+    private static final class Template {
+        final Element element;
+        final int size;
+
+        Template(String xml) throws ParseException {
+            this.element = parse(xml);
+            this.size = CachingStorage.sizeOf(xml);
+        }
+    }
+
+    private static final class Key {
+        final Storage storage;
+        final String feedId;
+        final long entryId;
+        final boolean entry;
+        final long generation;
+        final int hash;
+
+        Key(Storage storage, String feedId, long entryId, boolean entry,
+                long generation) {
+            this.storage = storage;
+            this.feedId = feedId;
+            this.entryId = entryId;
+            this.entry = entry;
+            this.generation = generation;
+            int h = System.identityHashCode(storage);
+            h = 31 * h + feedId.hashCode();
+            h = 31 * h + (int) (entryId ^ (entryId >>> 32));
+            h = 31 * h + (int) (generation ^ (generation >>> 32));
+            this.hash = entry ? h : ~h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && storage == k.storage
+                    && entryId == k.entryId && entry == k.entry
+                    && generation == k.generation && feedId.equals(k.feedId);
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An open resource returned by Storage.openFeedEntryResource(), exposing the
+ * mime type, length, and a region of a file channel, so that callers can send
+ * the contents with transferTo() instead of reading the whole resource into
+ * memory. Callers must close the handle when finished.
+ *
+ * @author mpowers
+ */
+public class ResourceHandle implements Closeable {
+
+    private final String mimeType;
+    private final FileChannel channel;
+    private final long position;
+    private final long length;
+
+    /**
+     * Creates a handle for the specified region of the specified channel,
+     * which will be closed when this handle is closed.
+     *
+     * @param mimeType
+     *            the mime type of the resource, or null if not known.
+     * @param channel
+     *            an open channel containing the resource.
+     * @param position
+     *            the offset of the resource within the channel.
+     * @param length
+     *            the length of the resource in bytes.
+     */
+    public ResourceHandle(String mimeType, FileChannel channel, long position,
+            long length) {
+        this.mimeType = mimeType;
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    /**
+     * Returns the mime type of the resource, or null if not known.
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Returns the length of the resource in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the channel containing the resource.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the offset of the resource within the channel.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Writes the entire resource to the specified channel. The operating
+     * system copies directly from the file only when the target is a file or
+     * socket channel; other targets are written through small buffers.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long offset = 0;
+        while (offset < length) {
+            long c = channel.transferTo(position + offset, length - offset,
+                    target);
+            if (c <= 0) {
+                // some targets accept nothing from transferTo: copy instead
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                while (offset < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length
+                            - offset));
+                    if (channel.read(buffer, position + offset) == -1) {
+                        throw new IOException("Resource truncated at: "
+                                + offset);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        offset += target.write(buffer);
+                    }
+                }
+                return;
+            }
+            offset += c;
+        }
+    }
+
+    /**
+     * Returns an input stream over the resource; closing the stream closes
+     * this handle.
+     */
+    public InputStream openStream() throws IOException {
+        channel.position(position);
+        final InputStream input = Channels.newInputStream(channel);
+        return new InputStream() {
+            private long remaining = length;
+
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int c = input.read();
+                if (c != -1) {
+                    remaining--;
+                }
+                return c;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int c = input.read(b, off, (int) Math.min(len, remaining));
+                if (c > 0) {
+                    remaining -= c;
+                }
+                return c;
+            }
+
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, remaining);
+            }
+
+            public void close() throws IOException {
+                ResourceHandle.this.close();
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+import org.apache.abdera.protocol.server.context.MediaResponseContext;
+import org.apache.abdera.util.EntityTag;
+
+/**
+ * Sends a stored resource by transferring its file channel to the output
+ * stream. A servlet stream is not a channel the operating system can copy to
+ * directly, so the content passes through small buffers, but large resources
+ * are neither read into memory whole nor left mapped until collected.
+ * Writing to a character stream falls back to reading the resource through a
+ * stream. The resource handle is closed once written.
+ *
+ * @author mpowers
+ */
+class ResourceResponseContext extends MediaResponseContext {
+
+    private final ResourceHandle handle;
+
+    ResourceResponseContext(ResourceHandle handle, EntityTag etag, int status)
+            throws IOException {
+        super(handle.openStream(), etag, status);
+        this.handle = handle;
+        setContentLength(handle.getLength());
+        if (handle.getMimeType() != null) {
+            setContentType(handle.getMimeType());
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            handle.transferTo(Channels.newChannel(out));
+        } finally {
+            try {
+                handle.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+    }
+
+}
@@ -0,0 +1,1209 @@
+/*
+ * Copyright 2014 mpowers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.trsst.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import com.trsst.Common;
+
+/**
+ * Log-structured persistence for nodes that store many small documents. Feeds,
+ * entries, and resources are appended as records to large segment files, and
+ * an in-memory index maps each (feed, entry, resource) to the location of its
+ * latest record, so writes are sequential and reads are a single positional
+ * read.
+ *
+ * Superseded and deleted records are reclaimed by a background task that
+ * copies live records out of mostly-dead segments and then deletes them. On
+ * startup the index is rebuilt by replaying every segment; an incomplete or
+ * corrupt record at the tail of the newest segment is truncated.
+ *
+ * Files are placed in the specified directory; segments roll over at the size
+ * in the system property "com.trsst.server.segment.size" (default 64MB), and
+ * each write is forced to disk if "com.trsst.server.segment.sync" is "true".
+ *
+ * @author mpowers
+ */
+public class SegmentStorage implements Storage {
+
+    public static final String SEGMENT_PREFIX = "segment-";
+    public static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x54525354; // "TRST"
+    private static final byte TYPE_FEED = 1;
+    private static final byte TYPE_ENTRY = 2;
+    private static final byte TYPE_RESOURCE = 3;
+    private static final byte TYPE_DELETE_ENTRY = 4;
+    private static final byte TYPE_DELETE_RESOURCE = 5;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final File root;
+    private final long maxSegmentSize;
+    private final boolean sync;
+
+    /**
+     * All segments by id; the highest id is the active segment.
+     */
+    private final ConcurrentMap<Integer, Segment> segments;
+    private volatile Segment active;
+
+    /**
+     * Index of the latest record locations by feed id.
+     */
+    private final ConcurrentMap<String, FeedIndex> feeds;
+
+    /**
+     * Serializes appends, index updates, and segment rollover.
+     */
+    private final Object writeLock = new Object();
+
+    private Timer compactor;
+
+    /**
+     * Opens or creates a segment store in the specified directory, replaying
+     * any existing segments.
+     *
+     * @param root
+     *            the directory to contain segment files.
+     * @throws IOException
+     *             if the segments could not be read.
+     */
+    public SegmentStorage(File root) throws IOException {
+        this.root = root;
+        this.maxSegmentSize = Long.getLong("com.trsst.server.segment.size",
+                64 * 1024 * 1024);
+        this.sync = Boolean.getBoolean("com.trsst.server.segment.sync");
+        this.segments = new ConcurrentHashMap<Integer, Segment>();
+        this.feeds = new ConcurrentHashMap<String, FeedIndex>();
+        root.mkdirs();
+        recover();
+
+        compactor = new Timer("SegmentStorage compactor", true);
+        compactor.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    compact();
+                } catch (Throwable t) {
+                    log.error("Unexpected error while compacting: " + root, t);
+                }
+            }
+        }, 60 * 1000, 60 * 1000);
+        System.err.println("Segment storage serving from: " + root);
+    }
+
+    /**
+     * Stops background compaction and closes all segment files.
+     */
+    public void close() throws IOException {
+        compactor.cancel();
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+    }
+
+    public String[] getFeedIds(int start, int length) {
+        List<FeedIndex> list = new ArrayList<FeedIndex>();
+        for (FeedIndex index : feeds.values()) {
+            if (index.feed != null) {
+                list.add(index);
+            }
+        }
+        Collections.sort(list, new Comparator<FeedIndex>() {
+            public int compare(FeedIndex o1, FeedIndex o2) {
+                long d1 = o1.feed.date;
+                long d2 = o2.feed.date;
+                return d1 > d2 ? -1 : d1 < d2 ? 1 : 0;
+            }
+        });
+        if (start >= list.size()) {
+            return new String[0];
+        }
+        int end = (int) Math.min((long) start + length, list.size());
+        String[] result = new String[end - start];
+        for (int i = start; i < end; i++) {
+            result[i - start] = list.get(i).feedId;
+        }
+        return result;
+    }
+
+    public String[] getCategories(int start, int length) {
+        // not supported: LuceneStorage tracks categories as it indexes
+        return new String[0];
+    }
+
+    public int getEntryCount(Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        // not supported
+        return -1;
+    }
+
+    public String[] getEntryIds(int start, int length, Date after, Date before,
+            String query, String[] mentions, String[] tags, String verb) {
+        // not supported
+        return null;
+    }
+
+    public int getEntryCountForFeedId(String feedId, Date after, Date before,
+            String query, String[] mentions, String[] tags, String verb) {
+        FeedIndex index = feeds.get(feedId);
+        if (index == null) {
+            return -1;
+        }
+        return index.manifest.getEntryCount(
+                after != null ? after.getTime() : 0,
+                before != null ? before.getTime() : 0);
+    }
+
+    public long[] getEntryIdsForFeedId(String feedId, int start, int length,
+            Date after, Date before, String query, String[] mentions,
+            String[] tags, String verb) {
+        if (start < 0 || length < 1) {
+            throw new IllegalArgumentException("Invalid range: start: " + start
+                    + " : length: " + length);
+        }
+        FeedIndex index = feeds.get(feedId);
+        if (index == null) {
+            return new long[0];
+        }
+
+        // TODO: implement query/tag/mention/verb filter
+
+        return index.manifest.getEntryIds(start, length,
+                after != null ? after.getTime() : 0,
+                before != null ? before.getTime() : 0);
+    }
+
+    public String[] getEntryIdsFromCursor(String cursor, int length,
+            Date after, Date before, String query, String[] mentions,
+            String[] tags, String verb) {
+        // not supported
+        return null;
+    }
+
+    public long[] getEntryIdsForFeedIdFromCursor(String feedId, long cursor,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        if (cursor == 0) {
+            return getEntryIdsForFeedId(feedId, 0, length, after, before,
+                    query, mentions, tags, verb);
+        }
+        if (length < 1) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        FeedIndex index = feeds.get(feedId);
+        if (index == null) {
+            return new long[0];
+        }
+
+        // TODO: implement query/tag/mention/verb filter
+
+        return index.manifest.getEntryIdsAfter(cursor, length,
+                after != null ? after.getTime() : 0,
+                before != null ? before.getTime() : 0);
+    }
+
+    public String readFeed(String feedId) throws FileNotFoundException,
+            IOException {
+        return readString(new Key(feedId, TYPE_FEED, 0, null));
+    }
+
+    public void updateFeed(String feedId, Date lastUpdated, String feed)
+            throws IOException {
+        long date = lastUpdated != null ? lastUpdated.getTime() : System
+                .currentTimeMillis();
+        append(TYPE_FEED, feedId, 0, null, null, date,
+                feed.getBytes(FileStorage.ENCODING));
+    }
+
+    public String readEntry(String feedId, long entryId)
+            throws FileNotFoundException, IOException {
+        return readString(new Key(feedId, TYPE_ENTRY, entryId, null));
+    }
+
+    public String[] readEntries(String feedId, long[] entryIds)
+            throws IOException {
+        Key[] keys = new Key[entryIds.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Key(feedId, TYPE_ENTRY, entryIds[i], null);
+        }
+        return readStrings(keys);
+    }
+
+    public String[] readEntries(String[] entryIds) throws IOException {
+        Key[] keys = new Key[entryIds.length];
+        String id;
+        for (int i = 0; i < keys.length; i++) {
+            id = entryIds[i];
+            keys[i] = new Key(id.substring(0, id.lastIndexOf(':')),
+                    TYPE_ENTRY, Common.toEntryId(id), null);
+        }
+        return readStrings(keys);
+    }
+
+    public boolean hasEntry(String feedId, long entryId) {
+        return lookup(new Key(feedId, TYPE_ENTRY, entryId, null)) != null;
+    }
+
+    public void updateEntry(String feedId, long entryId, Date publishDate,
+            String entry) throws IOException {
+        long date = publishDate != null ? publishDate.getTime() : System
+                .currentTimeMillis();
+        append(TYPE_ENTRY, feedId, entryId, null, null, date,
+                entry.getBytes(FileStorage.ENCODING));
+    }
+
+    public void deleteEntry(String feedId, long entryId)
+            throws FileNotFoundException, IOException {
+        if (lookup(new Key(feedId, TYPE_ENTRY, entryId, null)) != null) {
+            append(TYPE_DELETE_ENTRY, feedId, entryId, null, null, 0, EMPTY);
+        }
+    }
+
+    public String readFeedEntryResourceType(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException {
+        Location location = lookup(new Key(feedId, TYPE_RESOURCE, entryId,
+                resourceId));
+        if (location == null) {
+            throw new FileNotFoundException("Not found: " + feedId + " : "
+                    + Long.toHexString(entryId) + " : " + resourceId);
+        }
+        return location.type;
+    }
+
+    public InputStream readFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException {
+        Key key = new Key(feedId, TYPE_RESOURCE, entryId, resourceId);
+        Location location = lookup(key);
+        if (location == null) {
+            throw new FileNotFoundException("Not found: " + feedId + " : "
+                    + Long.toHexString(entryId) + " : " + resourceId);
+        }
+        return new RegionInputStream(key, location);
+    }
+
+    public ResourceHandle openFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException {
+        Key key = new Key(feedId, TYPE_RESOURCE, entryId, resourceId);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location location = lookup(key);
+            if (location == null) {
+                break;
+            }
+            Segment segment = segments.get(location.segment);
+            if (segment == null) {
+                continue; // compacted away: look again
+            }
+            try {
+                // our own descriptor stays valid even if compaction
+                // deletes the segment while the caller is reading
+                FileChannel channel = new FileInputStream(segment.file)
+                        .getChannel();
+                return new ResourceHandle(location.type, channel,
+                        location.offset, location.length);
+            } catch (FileNotFoundException e) {
+                // compacted away: look again
+            }
+        }
+        throw new FileNotFoundException("Not found: " + key);
+    }
+
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate, byte[] data)
+            throws IOException {
+        long date = publishDate != null ? publishDate.getTime() : System
+                .currentTimeMillis();
+        append(TYPE_RESOURCE, feedId, entryId, resourceId, mimeType, date,
+                data);
+    }
+
+    public void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate,
+            InputStream data) throws IOException {
+        long date = publishDate != null ? publishDate.getTime() : System
+                .currentTimeMillis();
+
+        // spool outside the write lock: the stream may be slow or fail
+        File temp = File.createTempFile("resource-", TEMP_SUFFIX, root);
+        try {
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                int c;
+                byte[] buf = new byte[8192];
+                while ((c = data.read(buf)) != -1) {
+                    output.write(buf, 0, c);
+                }
+            } finally {
+                try {
+                    output.close();
+                } catch (IOException ioe) {
+                    // suppress any futher error on closing
+                }
+            }
+            FileChannel source = new FileInputStream(temp).getChannel();
+            try {
+                synchronized (writeLock) {
+                    Record record = new Record(TYPE_RESOURCE, feedId,
+                            entryId, resourceId, mimeType, date);
+                    Segment segment = activeSegment();
+                    Location location = segment.append(record, source);
+                    if (sync) {
+                        segment.channel.force(false);
+                    }
+                    apply(record, location, true);
+                }
+            } finally {
+                try {
+                    source.close();
+                } catch (IOException ioe) {
+                    // suppress any futher error on closing
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    public void deleteFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws IOException {
+        if (lookup(new Key(feedId, TYPE_RESOURCE, entryId, resourceId)) != null) {
+            append(TYPE_DELETE_RESOURCE, feedId, entryId, resourceId, null, 0,
+                    EMPTY);
+        }
+    }
+
+    /**
+     * Forces the active segment to disk, unless every write already is.
+     */
+    public void flush() throws IOException {
+        if (!sync) {
+            synchronized (writeLock) {
+                if (active != null) {
+                    active.channel.force(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the location of the latest record for the specified key, or
+     * null if none.
+     */
+    private Location lookup(Key key) {
+        FeedIndex index = feeds.get(key.feedId);
+        if (index == null) {
+            return null;
+        }
+        switch (key.type) {
+        case TYPE_FEED:
+            return index.feed;
+        case TYPE_ENTRY:
+            return index.entries.get(key.entryId);
+        default:
+            return index.resources.get(key.resourceKey());
+        }
+    }
+
+    private String readString(Key key) throws IOException {
+        return new String(read(key), FileStorage.ENCODING);
+    }
+
+    /**
+     * Reads the specified records in the order they are stored in the
+     * segments, returning null for any record that does not exist.
+     */
+    private String[] readStrings(Key[] keys) throws IOException {
+        final Location[] locations = new Location[keys.length];
+        List<Integer> order = new ArrayList<Integer>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            locations[i] = lookup(keys[i]);
+            if (locations[i] != null) {
+                order.add(i);
+            }
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                Location x = locations[a];
+                Location y = locations[b];
+                if (x.segment != y.segment) {
+                    return x.segment < y.segment ? -1 : 1;
+                }
+                return x.offset < y.offset ? -1 : (x.offset == y.offset ? 0
+                        : 1);
+            }
+        });
+        String[] result = new String[keys.length];
+        for (int i : order) {
+            try {
+                result[i] = readString(keys[i]);
+            } catch (FileNotFoundException e) {
+                // deleted or compacted since lookup: leave null
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the payload of the latest record for the specified key, retrying
+     * if the record was moved by compaction while being read.
+     */
+    private byte[] read(Key key) throws IOException {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location location = lookup(key);
+            if (location == null) {
+                break;
+            }
+            Segment segment = segments.get(location.segment);
+            if (segment == null) {
+                continue; // compacted away: look again
+            }
+            try {
+                byte[] result = new byte[location.length];
+                segment.read(ByteBuffer.wrap(result), location.offset);
+                return result;
+            } catch (ClosedChannelException e) {
+                // compacted away: look again
+            }
+        }
+        throw new FileNotFoundException("Not found: " + key);
+    }
+
+    /**
+     * Appends a record to the active segment and updates the index.
+     */
+    private void append(byte type, String feedId, long entryId,
+            String resourceId, String mimeType, long date, byte[] payload)
+            throws IOException {
+        synchronized (writeLock) {
+            Record record = new Record(type, feedId, entryId, resourceId,
+                    mimeType, date);
+            Segment segment = activeSegment();
+            Location location = segment.append(record, payload);
+            if (sync) {
+                segment.channel.force(false);
+            }
+            apply(record, location, true);
+        }
+    }
+
+    /**
+     * Applies the specified record to the index.
+     *
+     * @param live
+     *            true to update entry ordering immediately, or false while
+     *            replaying, after which manifests are rebuilt in bulk.
+     */
+    private void apply(Record record, Location location, boolean live)
+            throws IOException {
+        FeedIndex index = feeds.get(record.feedId);
+        if (index == null) {
+            index = new FeedIndex(record.feedId);
+            feeds.put(record.feedId, index);
+        }
+        Location previous = null;
+        switch (record.type) {
+        case TYPE_FEED:
+            previous = index.feed;
+            index.feed = location;
+            break;
+        case TYPE_ENTRY:
+            previous = index.entries.put(record.entryId, location);
+            if (live) {
+                index.manifest.put(record.entryId, record.date);
+            }
+            break;
+        case TYPE_RESOURCE:
+            previous = index.resources.put(
+                    resourceKey(record.entryId, record.resourceId), location);
+            break;
+        case TYPE_DELETE_ENTRY:
+            previous = index.entries.remove(record.entryId);
+            if (live) {
+                index.manifest.remove(record.entryId);
+            }
+            break;
+        case TYPE_DELETE_RESOURCE:
+            previous = index.resources.remove(resourceKey(record.entryId,
+                    record.resourceId));
+            break;
+        }
+        if (previous != null) {
+            Segment segment = segments.get(previous.segment);
+            if (segment != null) {
+                segment.liveBytes -= previous.recordLength;
+            }
+        }
+        if (location.isLive()) {
+            segments.get(location.segment).liveBytes += location.recordLength;
+        }
+    }
+
+    /**
+     * Returns the active segment, rolling over to a new one if full. Caller
+     * must hold the write lock.
+     */
+    private Segment activeSegment() throws IOException {
+        if (active == null || active.size >= maxSegmentSize) {
+            int id = 1;
+            if (active != null) {
+                id = active.id + 1;
+                active.seal();
+            }
+            active = new Segment(id, new File(root, segmentName(id)));
+            segments.put(id, active);
+        }
+        return active;
+    }
+
+    private static String segmentName(int id) {
+        String name = Integer.toString(id);
+        while (name.length() < 10) {
+            name = '0' + name;
+        }
+        return SEGMENT_PREFIX + name + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * Rebuilds the index by replaying all segments in order.
+     */
+    private void recover() throws IOException {
+        File[] files = root.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().startsWith(SEGMENT_PREFIX)
+                        && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        File[] spooled = root.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (spooled != null) {
+            for (File file : spooled) {
+                file.delete(); // incomplete uploads
+            }
+        }
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(id, files[i]);
+            segments.put(id, segment);
+            boolean tail = (i == files.length - 1);
+            long valid = replay(segment, tail);
+            if (valid < segment.size) {
+                if (tail) {
+                    log.warn("Truncating incomplete segment tail: "
+                            + files[i] + " : " + valid + " : " + segment.size);
+                    segment.channel.truncate(valid);
+                    segment.size = valid;
+                } else {
+                    log.error("Ignoring corrupt records in segment: "
+                            + files[i] + " : " + valid + " : " + segment.size);
+                }
+            }
+            if (tail) {
+                active = segment;
+            } else {
+                segment.seal();
+            }
+        }
+
+        // build entry ordering in bulk
+        for (FeedIndex index : feeds.values()) {
+            long[] ids = new long[index.entries.size()];
+            long[] dates = new long[ids.length];
+            int i = 0;
+            for (Map.Entry<Long, Location> e : index.entries.entrySet()) {
+                ids[i] = e.getKey();
+                dates[i] = e.getValue().date;
+                i++;
+            }
+            index.manifest.rebuild(ids, dates);
+        }
+        log.info("Recovered segment storage: " + root + " : " + files.length
+                + " segments : " + feeds.size() + " feeds");
+    }
+
+    /**
+     * Replays the records of the specified segment into the index.
+     *
+     * @param verify
+     *            true to checksum every payload, as for a segment that may not
+     *            have been completely written.
+     * @return the offset following the last valid record.
+     */
+    private long replay(final Segment segment, final boolean verify)
+            throws IOException {
+        return segment.scan(verify, new RecordHandler() {
+            public void handle(Record record, Location location)
+                    throws IOException {
+                apply(record, location, false);
+            }
+        });
+    }
+
+    /**
+     * Copies live records out of sealed segments that are mostly dead, and
+     * deletes those segments.
+     */
+    void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<Segment>();
+        int oldest = Integer.MAX_VALUE;
+        for (Segment segment : segments.values()) {
+            oldest = Math.min(oldest, segment.id);
+            if (segment != active && segment.liveBytes * 2 < segment.size) {
+                candidates.add(segment);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Segment>() {
+            public int compare(Segment o1, Segment o2) {
+                return o1.id - o2.id;
+            }
+        });
+        for (Segment segment : candidates) {
+            compact(segment, segment.id == oldest);
+            oldest = Integer.MAX_VALUE;
+            for (Integer id : segments.keySet()) {
+                oldest = Math.min(oldest, id);
+            }
+        }
+    }
+
+    private void compact(final Segment victim, final boolean isOldest)
+            throws IOException {
+        log.info("Compacting segment: " + victim.file + " : "
+                + victim.liveBytes + " of " + victim.size + " bytes live");
+        victim.scan(false, new RecordHandler() {
+            public void handle(Record record, Location location)
+                    throws IOException {
+                Key key = record.key();
+                if (record.isDeletion()) {
+                    // deletions only matter while older segments remain
+                    if (isOldest) {
+                        return;
+                    }
+                    synchronized (writeLock) {
+                        if (lookup(key) == null) {
+                            activeSegment().append(record, EMPTY);
+                        }
+                    }
+                    return;
+                }
+                if (!location.equals(lookup(key))) {
+                    return; // superseded
+                }
+                byte[] payload = new byte[location.length];
+                victim.read(ByteBuffer.wrap(payload), location.offset);
+                synchronized (writeLock) {
+                    // check again now that we hold the lock
+                    if (location.equals(lookup(key))) {
+                        Location moved = activeSegment().append(record,
+                                payload);
+                        apply(record, moved, false);
+                    }
+                }
+            }
+        });
+        synchronized (writeLock) {
+            active.channel.force(false);
+            segments.remove(victim.id);
+            victim.close();
+            if (!victim.file.delete()) {
+                log.warn("Could not delete compacted segment: " + victim.file);
+            }
+        }
+    }
+
+    private static String resourceKey(long entryId, String resourceId) {
+        return Long.toHexString(entryId) + '-' + resourceId;
+    }
+
+    private static byte[] toBytes(String s) throws IOException {
+        if (s == null) {
+            return EMPTY;
+        }
+        return s.getBytes(FileStorage.ENCODING);
+    }
+
+    private static String fromBytes(byte[] b) throws IOException {
+        if (b.length == 0) {
+            return null;
+        }
+        return new String(b, FileStorage.ENCODING);
+    }
+
+    /**
+     * Identifies a feed, entry, or resource.
+     */
+    private static final class Key {
+        final String feedId;
+        final byte type;
+        final long entryId;
+        final String resourceId;
+
+        Key(String feedId, byte type, long entryId, String resourceId) {
+            this.feedId = feedId;
+            this.type = type;
+            this.entryId = entryId;
+            this.resourceId = resourceId;
+        }
+
+        String resourceKey() {
+            return SegmentStorage.resourceKey(entryId, resourceId);
+        }
+
+        public String toString() {
+            if (type == TYPE_FEED) {
+                return feedId;
+            }
+            if (resourceId == null) {
+                return feedId + " : " + Long.toHexString(entryId);
+            }
+            return feedId + " : " + Long.toHexString(entryId) + " : "
+                    + resourceId;
+        }
+    }
+
+    /**
+     * Header fields of a record.
+     */
+    private static final class Record {
+        final byte type;
+        final String feedId;
+        final long entryId;
+        final String resourceId;
+        final String mimeType;
+        final long date;
+
+        Record(byte type, String feedId, long entryId, String resourceId,
+                String mimeType, long date) {
+            this.type = type;
+            this.feedId = feedId;
+            this.entryId = entryId;
+            this.resourceId = resourceId;
+            this.mimeType = mimeType;
+            this.date = date;
+        }
+
+        boolean isDeletion() {
+            return type == TYPE_DELETE_ENTRY || type == TYPE_DELETE_RESOURCE;
+        }
+
+        Key key() {
+            switch (type) {
+            case TYPE_FEED:
+                return new Key(feedId, TYPE_FEED, 0, null);
+            case TYPE_ENTRY:
+            case TYPE_DELETE_ENTRY:
+                return new Key(feedId, TYPE_ENTRY, entryId, null);
+            default:
+                return new Key(feedId, TYPE_RESOURCE, entryId, resourceId);
+            }
+        }
+    }
+
+    /**
+     * Position of a record's payload within a segment.
+     */
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        final int recordLength;
+        final long date;
+        final String type;
+        final boolean deletion;
+
+        Location(int segment, long offset, int length, int recordLength,
+                long date, String type, boolean deletion) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+            this.date = date;
+            this.type = type;
+            this.deletion = deletion;
+        }
+
+        boolean isLive() {
+            return !deletion;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Location)) {
+                return false;
+            }
+            Location other = (Location) o;
+            return segment == other.segment && offset == other.offset;
+        }
+
+        public int hashCode() {
+            return segment * 31 + (int) (offset ^ (offset >>> 32));
+        }
+    }
+
+    private interface RecordHandler {
+        void handle(Record record, Location location) throws IOException;
+    }
+
+    /**
+     * Latest record locations for a single feed.
+     */
+    private static final class FeedIndex {
+        final String feedId;
+        volatile Location feed;
+        final ConcurrentMap<Long, Location> entries;
+        final ConcurrentMap<String, Location> resources;
+        final EntryManifest manifest = new EntryManifest(null);
+
+        FeedIndex(String feedId) {
+            this.feedId = feedId;
+            this.entries = new ConcurrentHashMap<Long, Location>();
+            this.resources = new ConcurrentHashMap<String, Location>();
+        }
+    }
+
+    /**
+     * A single segment file.
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        volatile FileChannel channel;
+        volatile long size;
+        volatile long liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * Forces contents to disk and reopens read-only.
+         */
+        void seal() throws IOException {
+            FileChannel previous = channel;
+            previous.force(true);
+            channel = new RandomAccessFile(file, "r").getChannel();
+            previous.close();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        void read(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int c = channel.read(buffer, position);
+                if (c < 0) {
+                    throw new EOFException("Unexpected end of segment: "
+                            + file);
+                }
+                position += c;
+            }
+        }
+
+        /**
+         * Appends the specified record and returns its location. Caller must
+         * hold the write lock.
+         */
+        Location append(Record record, byte[] payload) throws IOException {
+            byte[] feedBytes = toBytes(record.feedId);
+            byte[] resourceBytes = toBytes(record.resourceId);
+            byte[] mimeBytes = toBytes(record.mimeType);
+            int headerLength = 4 + 1 + 8 + 8 + 2 + feedBytes.length + 2
+                    + resourceBytes.length + 2 + mimeBytes.length + 4;
+            int recordLength = headerLength + payload.length + 4;
+            ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+            buffer.putInt(MAGIC);
+            buffer.put(record.type);
+            buffer.putLong(record.date);
+            buffer.putLong(record.entryId);
+            buffer.putShort((short) feedBytes.length).put(feedBytes);
+            buffer.putShort((short) resourceBytes.length).put(resourceBytes);
+            buffer.putShort((short) mimeBytes.length).put(mimeBytes);
+            buffer.putInt(payload.length);
+            buffer.put(payload);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 4, recordLength - 8);
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+
+            long start = size;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, start + buffer.position());
+            }
+            size = start + recordLength;
+            return new Location(id, start + headerLength, payload.length,
+                    recordLength, record.date, record.mimeType,
+                    record.isDeletion());
+        }
+
+        /**
+         * Appends the specified record with the entire contents of the
+         * specified channel as its payload. Caller must hold the write lock.
+         */
+        Location append(Record record, FileChannel source) throws IOException {
+            byte[] feedBytes = toBytes(record.feedId);
+            byte[] resourceBytes = toBytes(record.resourceId);
+            byte[] mimeBytes = toBytes(record.mimeType);
+            long length = source.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Resource too large: " + length);
+            }
+            int headerLength = 4 + 1 + 8 + 8 + 2 + feedBytes.length + 2
+                    + resourceBytes.length + 2 + mimeBytes.length + 4;
+            int recordLength = headerLength + (int) length + 4;
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(headerLength,
+                    65536));
+            buffer.putInt(MAGIC);
+            buffer.put(record.type);
+            buffer.putLong(record.date);
+            buffer.putLong(record.entryId);
+            buffer.putShort((short) feedBytes.length).put(feedBytes);
+            buffer.putShort((short) resourceBytes.length).put(resourceBytes);
+            buffer.putShort((short) mimeBytes.length).put(mimeBytes);
+            buffer.putInt((int) length);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 4, headerLength - 4);
+            buffer.flip();
+
+            long start = size;
+            long position = start;
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                long offset = 0;
+                while (offset < length) {
+                    buffer.clear();
+                    int c = source.read(buffer, offset);
+                    if (c < 0) {
+                        throw new EOFException("Resource truncated: "
+                                + offset + " of " + length);
+                    }
+                    crc.update(buffer.array(), 0, c);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    offset += c;
+                }
+                buffer.clear();
+                buffer.putInt((int) crc.getValue());
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } catch (IOException e) {
+                // discard the partial record
+                channel.truncate(start);
+                throw e;
+            }
+            size = start + recordLength;
+            return new Location(id, start + headerLength, (int) length,
+                    recordLength, record.date, record.mimeType,
+                    record.isDeletion());
+        }
+
+        /**
+         * Reads each record in order, stopping at the first incomplete or
+         * invalid record.
+         *
+         * @param verify
+         *            true to read and checksum every payload.
+         * @return the offset following the last valid record.
+         */
+        long scan(boolean verify, RecordHandler handler) throws IOException {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 65536));
+            long position = 0;
+            try {
+                CRC32 crc = new CRC32();
+                while (position < size) {
+                    if (input.readInt() != MAGIC) {
+                        break;
+                    }
+                    byte[] header = new byte[1 + 8 + 8];
+                    input.readFully(header);
+                    ByteBuffer fields = ByteBuffer.wrap(header);
+                    byte type = fields.get();
+                    long date = fields.getLong();
+                    long entryId = fields.getLong();
+                    byte[] feedBytes = readField(input);
+                    byte[] resourceBytes = readField(input);
+                    byte[] mimeBytes = readField(input);
+                    int length = input.readInt();
+                    int headerLength = 4 + header.length + 2
+                            + feedBytes.length + 2 + resourceBytes.length + 2
+                            + mimeBytes.length + 4;
+                    if (length < 0
+                            || position + headerLength + length + 4 > size) {
+                        break; // incomplete
+                    }
+                    if (verify) {
+                        byte[] payload = new byte[length];
+                        input.readFully(payload);
+                        crc.reset();
+                        crc.update(header);
+                        updateField(crc, feedBytes);
+                        updateField(crc, resourceBytes);
+                        updateField(crc, mimeBytes);
+                        crc.update(ByteBuffer.allocate(4).putInt(length)
+                                .array());
+                        crc.update(payload);
+                        if (input.readInt() != (int) crc.getValue()) {
+                            break; // corrupt
+                        }
+                    } else {
+                        long remaining = length + 4;
+                        while (remaining > 0) {
+                            long skipped = input.skip(remaining);
+                            if (skipped <= 0) {
+                                throw new EOFException();
+                            }
+                            remaining -= skipped;
+                        }
+                    }
+                    int recordLength = headerLength + length + 4;
+                    Record record = new Record(type, fromBytes(feedBytes),
+                            entryId, fromBytes(resourceBytes),
+                            fromBytes(mimeBytes), date);
+                    handler.handle(record, new Location(id, position
+                            + headerLength, length, recordLength, date,
+                            record.mimeType, record.isDeletion()));
+                    position += recordLength;
+                }
+            } catch (EOFException eof) {
+                // incomplete trailing record
+            } finally {
+                try {
+                    input.close();
+                } catch (IOException ioe) {
+                    // suppress any futher error on closing
+                }
+            }
+            return position;
+        }
+
+        private static byte[] readField(DataInputStream input)
+                throws IOException {
+            byte[] result = new byte[input.readUnsignedShort()];
+            input.readFully(result);
+            return result;
+        }
+
+        private static void updateField(CRC32 crc, byte[] field) {
+            crc.update(field.length >>> 8 & 0xff);
+            crc.update(field.length & 0xff);
+            crc.update(field);
+        }
+    }
+
+    /**
+     * Streams the payload of a resource record.
+     */
+    private final class RegionInputStream extends InputStream {
+        private final Key key;
+        private Location location;
+        private long position;
+
+        RegionInputStream(Key key, Location location) {
+            this.key = key;
+            this.location = location;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int c = read(b, 0, 1);
+            return c < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = location.length - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            len = (int) Math.min(len, remaining);
+            Segment segment = segments.get(location.segment);
+            try {
+                if (segment == null) {
+                    throw new ClosedChannelException();
+                }
+                int c = segment.channel.read(ByteBuffer.wrap(b, off, len),
+                        location.offset + position);
+                if (c < 0) {
+                    throw new EOFException("Unexpected end of segment: "
+                            + segment.file);
+                }
+                position += c;
+                return c;
+            } catch (ClosedChannelException e) {
+                // compacted away: resume from new location
+                Location moved = lookup(key);
+                if (moved == null || moved.equals(location)) {
+                    throw new FileNotFoundException("Not found: " + key);
+                }
+                location = moved;
+                return read(b, off, len);
+            }
+        }
+
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, location.length
+                    - position);
+        }
+    }
+
+    private final static org.slf4j.Logger log = org.slf4j.LoggerFactory
+            .getLogger(SegmentStorage.class);
+}
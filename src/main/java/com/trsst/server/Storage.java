@@ -207,6 +207,82 @@ public interface Storage {
             Date after, Date before, String query, String[] mentions,
             String[] tags, String verb);
 
+    /**
+     * Returns entry ids in the same order as getEntryIds(), starting with the
+     * entry that follows the specified cursor. Unlike an offset, a cursor lets
+     * implementations resume a query without revisiting earlier results, so
+     * each page costs the same however deep it is.
+     * 
+     * @param cursor
+     *            the last entry id returned for the previous page, in the form
+     *            returned by getEntryIds(), or null to start with the most
+     *            recent entry.
+     * @param length
+     *            the number of entries to return.
+     * @param after
+     *            (optional) restricts results to those entries posted after the
+     *            specified date, or null if no restriction.
+     * @param before
+     *            (optional) restricts results to those entries posted before
+     *            the specified date, or null if no restriction.
+     * @param query
+     *            (optional) a space-delimited string of query terms, or null if
+     *            for no query.
+     * @param mentions
+     *            (optional) restricts results to those entries that contain all
+     *            of the specified mentions
+     * @param tags
+     *            (optional) restricts results to those entries that contain all
+     *            of the specified tags
+     * @param verb
+     *            (optional) restricts results to those entries that contain the
+     *            specified verb
+     * @return an array containing the matching entry ids; will contain no more
+     *         entries than the specified length, but may contain fewer entries,
+     *         or zero entries; null if operation not supported on this server.
+     */
+    String[] getEntryIdsFromCursor(String cursor, int length, Date after,
+            Date before, String query, String[] mentions, String[] tags,
+            String verb);
+
+    /**
+     * Returns entry ids for the specified feed in the same order as
+     * getEntryIdsForFeedId(), starting with the entry that follows the
+     * specified cursor, so that each page costs the same however deep it is.
+     * 
+     * @param feedId
+     *            the specified feed.
+     * @param cursor
+     *            the last entry id returned for the previous page, or zero to
+     *            start with the most recent entry.
+     * @param length
+     *            the number of entries to return.
+     * @param after
+     *            (optional) restricts results to those entries posted after the
+     *            specified date, or null if no restriction.
+     * @param before
+     *            (optional) restricts results to those entries posted before
+     *            the specified date, or null if no restriction.
+     * @param query
+     *            (optional) a space-delimited string of query terms, or null if
+     *            for no query.
+     * @param mentions
+     *            (optional) restricts results to those entries that contain all
+     *            of the specified mentions
+     * @param tags
+     *            (optional) restricts results to those entries that contain all
+     *            of the specified tags
+     * @param verb
+     *            (optional) restricts results to those entries that contain the
+     *            specified verb
+     * @return an array containing the matching entry ids; will contain no more
+     *         entries than the specified length, but may contain fewer entries,
+     *         or zero entries; null if error or feed not found.
+     */
+    long[] getEntryIdsForFeedIdFromCursor(String feedId, long cursor,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb);
+
     /**
      * Returns the contents of the unmodified feed element which was previously
      * passed to updateFeed for the specified feed; otherwise throws
@@ -261,6 +337,52 @@ public interface Storage {
     String readEntry(String feedId, long entryId) throws FileNotFoundException,
             IOException;
 
+    /**
+     * Returns the contents of the specified entries of the specified feed, as
+     * readEntry() would for each, in a single call so that implementations
+     * can share lookups and order their reads.
+     *
+     * @param feedId
+     *            the specified feed.
+     * @param entryIds
+     *            the desired entries for the specified feed.
+     * @return an array of the same length as entryIds containing the signed
+     *         entry element for each entry id, or null where the entry does
+     *         not exist.
+     * @throws IOException
+     *             if a error occurs obtaining the entry data.
+     */
+    String[] readEntries(String feedId, long[] entryIds) throws IOException;
+
+    /**
+     * Returns the contents of the specified entries from any number of feeds,
+     * as readEntry() would for each, in a single call so that
+     * implementations can share lookups and order their reads.
+     *
+     * @param entryIds
+     *            the desired entries, in the form returned by getEntryIds():
+     *            the feed id and the hex entry id separated by a colon.
+     * @return an array of the same length as entryIds containing the signed
+     *         entry element for each entry id, or null where the entry does
+     *         not exist.
+     * @throws IOException
+     *             if a error occurs obtaining the entry data.
+     */
+    String[] readEntries(String[] entryIds) throws IOException;
+
+    /**
+     * Returns true if an entry with the specified id exists for the specified
+     * feed. This should be much cheaper than calling readEntry() and catching
+     * FileNotFoundException, as it is called for every incoming entry.
+     *
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the desired entry for the specified feed.
+     * @return true if the entry exists, otherwise false.
+     */
+    boolean hasEntry(String feedId, long entryId);
+
     /**
      * Receives the contents of a signed entry element to be stored and
      * associated with the specified feed and unique identifier for later
@@ -338,6 +460,27 @@ public interface Storage {
     InputStream readFeedEntryResource(String feedId, long entryId,
             String resourceId) throws FileNotFoundException, IOException;
 
+    /**
+     * Obtains a handle to the resource data for the specified entry for the
+     * specified feed, with its mime type and length, so that callers can send
+     * the data directly from the underlying file. Callers must close the handle
+     * when finished.
+     *
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @return an open handle to the contents of the resource.
+     * @throws FileNotFoundException
+     *             if the specified resource does not exist.
+     * @throws IOException
+     *             if a error occurs obtaining the resource data.
+     */
+    ResourceHandle openFeedEntryResource(String feedId, long entryId,
+            String resourceId) throws FileNotFoundException, IOException;
+
     /**
      * Stores a binary resource for the specified feed and entry for later
      * retrieval by readFeedEntryResource().
@@ -362,6 +505,33 @@ public interface Storage {
             String resourceId, String mimeType, Date publishDate, byte[] data)
             throws IOException;
 
+    /**
+     * Stores a binary resource for the specified feed and entry by reading the
+     * specified input stream to its end, for later retrieval by
+     * readFeedEntryResource(). Nothing is stored if reading the stream throws
+     * an exception, including at the end of stream, so callers may verify the
+     * content while it is read. Callers must close the input stream.
+     *
+     * @param feedId
+     *            the specified feed.
+     * @param entryId
+     *            the specified entry.
+     * @param resourceId
+     *            the desired resource id for the specified feed and entry.
+     * @param mimeType
+     *            the mime type of the data if known, otherwise null.
+     * @param publishDate
+     *            the datetime when the associated entry says it was or will be
+     *            published; used for date/time range queries
+     * @param data
+     *            an input stream whose contents are to be persisted.
+     * @throws IOException
+     *             if a error occurs reading or persisting the resource data.
+     */
+    void updateFeedEntryResource(String feedId, long entryId,
+            String resourceId, String mimeType, Date publishDate,
+            InputStream data) throws IOException;
+
     /**
      * Delete an existing resource for the specified feed and entry.
      * 
@@ -377,4 +547,15 @@ public interface Storage {
     void deleteFeedEntryResource(String feedId, long entryId, String resourceId)
             throws IOException;
 
+    /**
+     * Called after a batch of updates, such as the entries of an incoming
+     * feed, to make any buffered changes durable. Implementations that write
+     * through may do nothing; indexes may make changes visible to queries
+     * some time later.
+     * 
+     * @throws IOException
+     *             if a error occurs while flushing changes.
+     */
+    void flush() throws IOException;
+
 }
\ No newline at end of file
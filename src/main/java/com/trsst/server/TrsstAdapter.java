@@ -15,11 +15,17 @@
  */
 package com.trsst.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
@@ -69,7 +75,7 @@ import org.apache.abdera.protocol.server.RequestContext;
 import org.apache.abdera.protocol.server.RequestContext.Scope;
 import org.apache.abdera.protocol.server.ResponseContext;
 import org.apache.abdera.protocol.server.TargetType;
-import org.apache.abdera.protocol.server.context.MediaResponseContext;
+import org.apache.abdera.protocol.server.context.EmptyResponseContext;
 import org.apache.abdera.protocol.server.context.RequestContextWrapper;
 import org.apache.abdera.protocol.server.context.ResponseContextException;
 import org.apache.abdera.protocol.server.context.StreamWriterResponseContext;
@@ -80,7 +86,6 @@ import org.apache.abdera.util.Constants;
 import org.apache.abdera.util.EntityTag;
 import org.apache.abdera.util.MimeTypeHelper;
 import org.apache.abdera.writer.StreamWriter;
-import org.apache.commons.codec.binary.Base64;
 
 import com.trsst.Common;
 
@@ -104,7 +109,13 @@ import com.trsst.Common;
 public class TrsstAdapter extends AbstractMultipartAdapter {
 
     private final static Template paging_template = new Template(
-            "{collection}?{-join|&|q,verb,mention,tag,before,after,count,page}");
+            "{collection}?{-join|&|q,verb,mention,tag,before,after,count,"
+                    + "page,cursor}");
+
+    /**
+     * Parsed feeds and entries shared by all adapters.
+     */
+    private final static ParsedDocumentCache documents = new ParsedDocumentCache();
 
     protected String feedId;
     protected Storage persistence;
@@ -185,9 +196,7 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         Feed feed = null;
         try {
             log.debug("fetchFeedFromStorage: " + feedId);
-            feed = (Feed) Abdera.getInstance().getParser()
-                    .parse(new StringReader(storage.readFeed(feedId)))
-                    .getRoot();
+            feed = documents.getFeed(storage, feedId);
         } catch (FileNotFoundException fnfe) {
             log.debug("Not found in local storage: " + feedId);
         } catch (ParseException e) {
@@ -595,10 +604,10 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             result = currentFeed(request);
             // add requested entry
             String entryId = request.getTarget().getParameter("entry");
-            Document<Entry> entry = getEntry(persistence, feedId,
+            Entry entry = getEntry(persistence, feedId,
                     Common.toEntryId(entryId));
             if (entry != null) {
-                result.addEntry(entry.getRoot());
+                result.addEntry(entry);
             } else {
                 return ProviderHelper.notfound(request);
             }
@@ -617,7 +626,11 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         }
     }
 
-    protected static Document<Entry> getEntry(Storage storage, String feedId,
+    /**
+     * Returns a copy of the specified entry from the specified storage that
+     * the caller is free to modify, or null if not found.
+     */
+    protected static Entry getEntry(Storage storage, String feedId,
             long entryId) {
         try {
             // NOTE: by this point currentFeed() will have fetched
@@ -625,10 +638,7 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             // FIXME: this is not currently working; need a test case
 
             // fetch from local storage
-            return Abdera
-                    .getInstance()
-                    .getParser()
-                    .parse(new StringReader(storage.readEntry(feedId, entryId)));
+            return documents.getEntry(storage, feedId, entryId);
         } catch (FileNotFoundException fnfe) {
             // fall through
         } catch (Exception e) {
@@ -637,16 +647,68 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         return null;
     }
 
+    /**
+     * Returns the specified entries of the specified feed read from storage
+     * together, with null for any entry that could not be found.
+     */
+    protected static Entry[] getEntries(Storage storage, String feedId,
+            long[] entryIds) {
+        try {
+            return documents.getEntries(storage, feedId, entryIds);
+        } catch (Exception e) {
+            log.error("Unexpected error reading entries: " + feedId, e);
+        }
+        // try one at a time
+        Entry[] result = new Entry[entryIds.length];
+        for (int i = 0; i < entryIds.length; i++) {
+            result[i] = getEntry(storage, feedId, entryIds[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the specified entries from any number of feeds read from
+     * storage together, with null for any entry that could not be found.
+     * 
+     * @param entryIds
+     *            entry ids in the form returned by Storage.getEntryIds().
+     */
+    protected static Entry[] getEntries(Storage storage, String[] entryIds) {
+        try {
+            return documents.getEntries(storage, entryIds);
+        } catch (Exception e) {
+            log.error("Unexpected error reading entries", e);
+        }
+        // try one at a time
+        Entry[] result = new Entry[entryIds.length];
+        String id;
+        for (int i = 0; i < entryIds.length; i++) {
+            id = entryIds[i];
+            result[i] = getEntry(storage,
+                    id.substring(0, id.lastIndexOf(':')),
+                    Common.toEntryId(id));
+        }
+        return result;
+    }
+
     /**
      * Accepts a signed feed document containing one or more signed entries and
      * attachments for some or all of those entries.
      */
     public ResponseContext postMedia(RequestContext request) {
+        File requestFile = null;
+        List<MultipartRelatedPost> posts = null;
         try {
             if (MimeTypeHelper.isMultipart(request.getContentType().toString())) {
-                byte[] requestData = Common.readFully(request.getInputStream());
-                List<MultipartRelatedPost> posts = getMultipartRelatedData(
-                        request, new ByteArrayInputStream(requestData));
+                // spool to disk: we may need to forward the original request
+                requestFile = spoolToTempFile(request.getInputStream());
+                InputStream requestData = new BufferedInputStream(
+                        new FileInputStream(requestFile));
+                try {
+                    posts = getMultipartRelatedData(request, requestData);
+                } finally {
+                    requestData.close();
+                }
                 Feed incomingFeed = null;
                 if (posts != null) {
                     Map<String, Entry> contentIdToEntry = new HashMap<String, Entry>();
@@ -710,25 +772,33 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                                 // a file extension on enclosures)
                                 hash = hash.substring(0, dot);
                             }
-                            byte[] data = Common.readFully(contentIdToData
-                                    .get(cid));
-                            String digest = new Base64(0, null, true)
-                                    .encodeToString(Common.ripemd160(data));
-                            if (digest.equals(hash)) {
-                                // only store if hash matches content id
+                            // only stored if hash matches content id
+                            ContentDigestInputStream data = new ContentDigestInputStream(
+                                    contentIdToData.get(cid), hash);
+                            try {
                                 persistence.updateFeedEntryResource(feedId,
                                         Common.toEntryId(entry.getId()), cid,
                                         contentIdToType.get(cid),
                                         entry.getPublished(), data);
-                            } else {
+                            } catch (IOException ioe) {
+                                if (!data.isMismatched()) {
+                                    throw ioe;
+                                }
                                 log.error("Content digests did not match: "
-                                        + hash + " : " + digest);
+                                        + hash + " : " + data.getDigest());
                                 return ProviderHelper.badrequest(request,
                                         "Could not verify content digest for: "
                                                 + hash);
                             }
                         }
-                        pushRawPostIfNeeded(incomingFeed, request, requestData);
+                        requestData = new BufferedInputStream(
+                                new FileInputStream(requestFile));
+                        try {
+                            pushRawPostIfNeeded(incomingFeed, request,
+                                    requestData);
+                        } finally {
+                            requestData.close();
+                        }
                         return ProviderHelper.returnBase(incomingFeed, 201,
                                 null);
                     }
@@ -738,11 +808,50 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             log.error("postMedia: ", pe);
             return ProviderHelper.badrequest(request,
                     "Could not process multipart request: " + pe.getMessage());
+        } finally {
+            if (posts != null) {
+                for (MultipartRelatedPost post : posts) {
+                    try {
+                        if (post.getData() != null) {
+                            post.getData().close(); // deletes spooled part
+                        }
+                    } catch (IOException ioe) {
+                        // suppress any futher error on closing
+                    }
+                }
+            }
+            if (requestFile != null) {
+                requestFile.delete();
+            }
         }
         return ProviderHelper.badrequest(request,
                 "Could not process multipart request");
     }
 
+    /**
+     * Copies the specified stream to a temporary file.
+     */
+    private static File spoolToTempFile(InputStream input) throws IOException {
+        File result = File.createTempFile("trsst-post-", ".tmp");
+        result.deleteOnExit();
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(
+                result));
+        try {
+            int c;
+            byte[] buf = new byte[8192];
+            while ((c = input.read(buf)) != -1) {
+                output.write(buf, 0, c);
+            }
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
+        return result;
+    }
+
     /**
      * Validate then persist incoming feed and entries. Any exception thrown
      * means no feed or entries are persisted.
@@ -812,10 +921,9 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             String feedId = Common.toFeedIdString(feed.getId());
             long entryId = Common.toEntryId(entry.getId());
             try {
-                try {
+                existingEntryXml = null;
+                if (persistence.hasEntry(feedId, entryId)) {
                     existingEntryXml = persistence.readEntry(feedId, entryId);
-                } catch (FileNotFoundException fnfe) {
-                    existingEntryXml = null;
                 }
                 if (existingEntryXml != null) {
                     Entry parsed = (Entry) Abdera.getInstance().getParser()
@@ -867,14 +975,11 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
 
             // remove from feed parent
             entry.discard();
-            try {
-                // see if this file already exists
-                storage.readEntry(Common.toFeedIdString(feed.getId()),
-                        Common.toEntryId(entry.getId()));
+            // see if this file already exists
+            if (storage.hasEntry(Common.toFeedIdString(feed.getId()),
+                    Common.toEntryId(entry.getId()))) {
                 // this file exists; remove from processing
                 entries.remove(entry);
-            } catch (FileNotFoundException e) {
-                // file does not already exist: resume
             }
         }
         // setEditDetail(request, entry, key);
@@ -972,6 +1077,9 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                 }
             }
         }
+
+        // make the batch durable
+        storage.flush();
     }
 
     /**
@@ -1027,12 +1135,11 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                     timestamp = timestamp + hash.hashCode() % 1000;
                 }
 
-                try {
-                    // see if this file already exists
-                    persistence.readEntry(feedId, timestamp);
+                // see if this file already exists
+                if (persistence.hasEntry(feedId, timestamp)) {
                     // this file exists; remove from processing
                     entries.remove(entry);
-                } catch (FileNotFoundException e) {
+                } else {
                     // we don't already have it:
                     // if it's not in trsst id format
                     if (!existing.startsWith(Common.ENTRY_URN_PREFIX)) {
@@ -1079,10 +1186,9 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             }
             long entryId = Common.toEntryId(entry.getId());
             try {
-                try {
+                existingEntryXml = null;
+                if (persistence.hasEntry(feedId, entryId)) {
                     existingEntryXml = persistence.readEntry(feedId, entryId);
-                } catch (FileNotFoundException fnfe) {
-                    existingEntryXml = null;
                 }
                 if (existingEntryXml != null) {
                     Entry parsed = (Entry) Abdera.getInstance().getParser()
@@ -1121,12 +1227,11 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             id = entry.getId();
             feedIdentifier = Common.toFeedIdString(id);
             entryIdentifier = Common.toEntryIdString(id);
-            try {
-                // see if this file already exists locally
-                persistence.readEntry(feedIdentifier,
-                        Common.toEntryId(entryIdentifier));
+            // see if this file already exists locally
+            if (persistence.hasEntry(feedIdentifier,
+                    Common.toEntryId(entryIdentifier))) {
                 log.info("Entry found: skipping: " + id);
-            } catch (FileNotFoundException e) {
+            } else {
                 log.info("Entry not found: fetching: " + id);
                 // we don't already have it:
                 String queryString = null;
@@ -1146,8 +1251,6 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                 if (result != null) {
                     ingestFromRelay(storage, result, relayUrl, relays);
                 }
-            } catch (IOException ioe) {
-                log.error("Unexpected exception from readEntry", ioe);
             }
         }
     }
@@ -1387,7 +1490,8 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
 
                 // we require a feed entity (not solo entries like atompub)
                 ingestFeed(persistence, incomingFeed);
-                pushRawPostIfNeeded(incomingFeed, request, bytes);
+                pushRawPostIfNeeded(incomingFeed, request,
+                        new ByteArrayInputStream(bytes));
                 return ProviderHelper.returnBase(incomingFeed, 201, null);
             } catch (XMLSignatureException xmle) {
                 log.error("Could not verify signature: ", xmle);
@@ -1425,12 +1529,11 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      */
     private static Entry deleteEntry(Storage storage, String feedId,
             long deletedId, long deletingId) throws IOException {
-        Document<Entry> document = getEntry(storage, feedId, deletedId);
+        Entry existing = getEntry(storage, feedId, deletedId);
         Element element;
-        if (document != null) {
+        if (existing != null) {
 
             // copy with only minimum of elements
-            Entry existing = document.getRoot();
             Entry replacement = Abdera.getInstance().newEntry();
             replacement.setId(existing.getId().toString());
             replacement.setUpdated(existing.getUpdated());
@@ -1491,7 +1594,8 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
     /**
      * Categories map to feed ids available on this server. This might be only
      * the feeds belonging to a server's "registered users" or all feeds cached
-     * by a server or some logical place inbetween.
+     * by a server or some logical place inbetween. These are followed by the
+     * trending tags and mentions, if any, with their respective schemes.
      */
     public ResponseContext getCategories(RequestContext request) {
         return new StreamWriterResponseContext(request.getAbdera()) {
@@ -1500,6 +1604,18 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                 for (String id : persistence.getFeedIds(0, 100)) {
                     sw.writeCategory(id);
                 }
+                String[] trending = persistence.getCategories(0, 100);
+                if (trending != null) {
+                    for (String category : trending) {
+                        if (category.charAt(0) == '#') {
+                            sw.writeCategory(category.substring(1),
+                                    Common.TAG_URN);
+                        } else if (category.charAt(0) == '@') {
+                            sw.writeCategory(category.substring(1),
+                                    Common.MENTION_URN);
+                        }
+                    }
+                }
                 sw.endCategories().endDocument();
             }
         }.setStatus(200).setContentType(Constants.CAT_MEDIA_TYPE);
@@ -1596,10 +1712,24 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                 .get("page"))[0];
         int page = (_page != null) ? Integer.parseInt(_page) : 0;
         int begin = page * length;
+        // a cursor resumes after the last entry of the previous page
+        String cursor = params.get("cursor") == null ? null
+                : ((String[]) params.get("cursor"))[0];
+        if (cursor != null && !isValidCursor(cursor)) {
+            throw new IllegalArgumentException("Could not parse cursor: "
+                    + cursor);
+        }
+        String nextCursor = null;
         int total = 0;
         if (length > 0) {
-            total = addEntriesFromStorage(feed, begin, length, beginDate,
-                    endDate, searchTerms, mentions, tags, verb);
+            total = addEntriesFromStorage(feed, cursor, begin, length,
+                    beginDate, endDate, searchTerms, mentions, tags, verb);
+            List<Entry> entries = feed.getEntries();
+            if (total >= length && !entries.isEmpty()) {
+                IRI last = entries.get(entries.size() - 1).getId();
+                nextCursor = Common.toFeedIdString(last) + ':'
+                        + Common.toEntryIdString(last);
+            }
         } else {
             total = countEntriesFromStorage(beginDate, endDate, searchTerms,
                     mentions, tags, verb);
@@ -1611,8 +1741,8 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                     + context.getUri());
         }
 
-        addPagingLinks(context, feed, page, length, total, searchTerms, before,
-                after, mentions, tags, verb);
+        addPagingLinks(context, feed, page, cursor, nextCursor, length, total,
+                searchTerms, before, after, mentions, tags, verb);
 
         // ARGH:
         // because having links appear after entries is invalid
@@ -1627,24 +1757,54 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         }
     }
 
+    /**
+     * Returns true if the specified cursor has the form we generate: a feed id
+     * and a hex entry id separated by a colon.
+     */
+    private static boolean isValidCursor(String cursor) {
+        int index = cursor.lastIndexOf(':');
+        if (index < 1 || index == cursor.length() - 1) {
+            return false;
+        }
+        try {
+            Long.parseLong(cursor.substring(index + 1), 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Adds entries to the specified feed for the specified search and paging
      * parameters. Importantly, this method MUST call addPagingLinks before
      * adding entries in order to generate valid atom xml.
      * 
-     * @return the total number of entries matching the query.
+     * @param cursor
+     *            if not null, the id of the last entry of the previous page,
+     *            in which case start is ignored.
+     * @return the number of entries matching the query for this page.
      */
-    protected int addEntriesFromStorage(Feed feed, int start, int length,
-            Date after, Date before, String query, String[] mentions,
-            String[] tags, String verb) {
-        long[] entryIds = persistence.getEntryIdsForFeedId(feedId, 0, length,
-                after, before, query, mentions, tags, verb);
-        int end = Math.min(entryIds.length, start + length);
-        Document<Entry> document;
-        for (int i = start; i < end; i++) {
-            document = getEntry(persistence, feedId, entryIds[i]);
-            if (document != null) {
-                feed.addEntry((Entry) document.getRoot().clone());
+    protected int addEntriesFromStorage(Feed feed, String cursor, int start,
+            int length, Date after, Date before, String query,
+            String[] mentions, String[] tags, String verb) {
+        long[] entryIds;
+        if (cursor != null) {
+            entryIds = persistence.getEntryIdsForFeedIdFromCursor(feedId,
+                    Common.toEntryId(cursor), length, after, before, query,
+                    mentions, tags, verb);
+        } else {
+            entryIds = persistence.getEntryIdsForFeedId(feedId, start, length,
+                    after, before, query, mentions, tags, verb);
+        }
+        if (entryIds == null) {
+            return 0;
+        }
+        Entry[] entries = getEntries(persistence, feedId, entryIds);
+        Entry entry;
+        for (int i = 0; i < entryIds.length; i++) {
+            entry = entries[i];
+            if (entry != null) {
+                feed.addEntry(entry);
             } else {
                 log.error("Could not find entry for id: " + feedId + " : "
                         + Long.toHexString(entryIds[i]));
@@ -1665,9 +1825,10 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
     }
 
     private void addPagingLinks(RequestContext request, Feed feed,
-            int currentPage, int itemsPerPage, int totalCount,
-            String searchTerms, String before, String after, String[] mentions,
-            String[] tags, String verb) {
+            int currentPage, String cursor, String nextCursor,
+            int itemsPerPage, int totalCount, String searchTerms,
+            String before, String after, String[] mentions, String[] tags,
+            String verb) {
         Map<String, Object> params = new HashMap<String, Object>();
         if (searchTerms != null) {
             params.put("q", searchTerms);
@@ -1700,18 +1861,25 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         }
         params.put("collection", request.getTarget().getParameter("collection"));
         params.put("count", itemsPerPage);
-        params.put("page", currentPage);
+        if (cursor != null) {
+            params.put("cursor", cursor);
+        } else {
+            params.put("page", currentPage);
+        }
 
         String current = paging_template.expand(params);
         // current = request.getResolvedUri().resolve(current).toString();
         feed.addLink(current, "current");
-        if (totalCount > (currentPage + 1) * itemsPerPage) {
-            params.put("page", currentPage + 1);
+        if (nextCursor != null) {
+            // next page resumes from the last entry of this page
+            params.remove("page");
+            params.put("cursor", nextCursor);
             String next = paging_template.expand(params);
             // next = request.getResolvedUri().resolve(next).toString();
             feed.addLink(next, "next");
         }
-        if (currentPage > 0) {
+        if (cursor == null && currentPage > 0) {
+            params.remove("cursor");
             params.put("page", currentPage - 1);
             String prev = paging_template.expand(params);
             // prev = request.getResolvedUri().resolve(prev).toString();
@@ -1722,9 +1890,12 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         feed.addSimpleExtension(new QName(
                 "http://a9.com/-/spec/opensearch/1.1/", "totalResults",
                 "opensearch"), Integer.toString(totalCount));
-        feed.addSimpleExtension(new QName(
-                "http://a9.com/-/spec/opensearch/1.1/", "startIndex",
-                "opensearch"), Integer.toString(currentPage * itemsPerPage + 1));
+        if (cursor == null) {
+            feed.addSimpleExtension(new QName(
+                    "http://a9.com/-/spec/opensearch/1.1/", "startIndex",
+                    "opensearch"), Integer.toString(currentPage
+                    * itemsPerPage + 1));
+        }
         feed.addSimpleExtension(new QName(
                 "http://a9.com/-/spec/opensearch/1.1/", "itemsPerPage",
                 "opensearch"), Integer.toString(itemsPerPage));
@@ -1755,19 +1926,17 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
         String feedId = request.getTarget().getParameter("collection");
         String entryId = request.getTarget().getParameter("entry");
         String resourceId = request.getTarget().getParameter("resource");
-        InputStream input;
         try {
-            // FIXME: this requires a double-fetch of content;
-            // storage should return a struct with mimetype and content length
-            // and data
-            String mimetype = persistence.readFeedEntryResourceType(feedId,
-                    Common.toEntryId(entryId), resourceId);
-            input = persistence.readFeedEntryResource(feedId,
+            // handle is closed by the response once written
+            ResourceHandle handle = persistence.openFeedEntryResource(feedId,
                     Common.toEntryId(entryId), resourceId);
-            MediaResponseContext response = new MediaResponseContext(input,
-                    new EntityTag(resourceId), 200);
-            response.setContentType(mimetype);
-            return response;
+            try {
+                return new ResourceResponseContext(handle, new EntityTag(
+                        resourceId), 200);
+            } catch (IOException e) {
+                handle.close();
+                throw e;
+            }
         } catch (FileNotFoundException e) {
             return ProviderHelper.notfound(request);
         } catch (IOException e) {
@@ -1781,8 +1950,34 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      */
     @Override
     public ResponseContext headMedia(RequestContext request) {
-        // TODO: implement HEAD support
-        return getMedia(request);
+        String feedId = request.getTarget().getParameter("collection");
+        String entryId = request.getTarget().getParameter("entry");
+        String resourceId = request.getTarget().getParameter("resource");
+        ResourceHandle handle = null;
+        try {
+            handle = persistence.openFeedEntryResource(feedId,
+                    Common.toEntryId(entryId), resourceId);
+            EmptyResponseContext response = new EmptyResponseContext(200);
+            response.setEntityTag(new EntityTag(resourceId));
+            response.setContentLength(handle.getLength());
+            if (handle.getMimeType() != null) {
+                response.setContentType(handle.getMimeType());
+            }
+            return response;
+        } catch (FileNotFoundException e) {
+            return ProviderHelper.notfound(request);
+        } catch (IOException e) {
+            return ProviderHelper.badrequest(request,
+                    "Could not parse resource request");
+        } finally {
+            try {
+                if (handle != null) {
+                    handle.close();
+                }
+            } catch (IOException ioe) {
+                // suppress any futher error on closing
+            }
+        }
     }
 
     /**
@@ -1793,7 +1988,7 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      * @param hostUrl
      */
     protected void pushRawPostIfNeeded(Feed feed, RequestContext request,
-            byte[] requestData) {
+            InputStream requestData) {
         IRI ourUri = request.getBaseUri();
         IRI theirUri = feed.getBaseUri();
         if (theirUri != null) {
@@ -1820,16 +2015,16 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
      * @param hostUrl
      */
     protected void pushRawPost(Feed feed, RequestContext request,
-            byte[] requestData, String hostUrl) {
+            InputStream requestData, String hostUrl) {
         try {
             // FIXME: eventually want to move off feed ids in POST
             hostUrl = hostUrl + "/" + Common.toFeedIdString(feed.getId());
             new URL(hostUrl); // validates url
             AbderaClient client = new AbderaClient(Abdera.getInstance(),
                     Common.getBuildString());
-            ClientResponse response = client.post(hostUrl,
-                    new ByteArrayInputStream(requestData), new RequestOptions()
-                            .setContentType(request.getContentType()));
+            ClientResponse response = client.post(hostUrl, requestData,
+                    new RequestOptions().setContentType(request
+                            .getContentType()));
             log.debug("Response: " + response.getStatus() + " : "
                     + response.getStatusText());
 
@@ -1898,9 +2093,10 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
                     // local has latest info: push difference
                     entryIds = storage.getEntryIdsForFeedId(id, 0, 99,
                             remoteDate, null, null, null, null, null);
-                    for (long entryId : entryIds) {
-                        localFeed.addEntry(getEntry(storage, id, entryId)
-                                .getRoot());
+                    for (Entry entry : getEntries(storage, id, entryIds)) {
+                        if (entry != null) {
+                            localFeed.addEntry(entry);
+                        }
                     }
                     return pushToService(localFeed, serviceUrl);
                 }
@@ -1928,8 +2124,10 @@ public class TrsstAdapter extends AbstractMultipartAdapter {
             // remote is missing: push local with (all?) entries
             long[] entryIds = storage.getEntryIdsForFeedId(id, 0, 99, null,
                     null, null, null, null, null);
-            for (long entryId : entryIds) {
-                localFeed.addEntry(getEntry(storage, id, entryId).getRoot());
+            for (Entry entry : getEntries(storage, id, entryIds)) {
+                if (entry != null) {
+                    localFeed.addEntry(entry);
+                }
             }
             return pushToService(localFeed, serviceUrl);
         }
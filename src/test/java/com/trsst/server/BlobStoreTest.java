@@ -0,0 +1,115 @@
+package com.trsst.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that blobs are kept while referenced and deleted with their last
+ * reference, including when several stores share a root.
+ */
+public class BlobStoreTest extends TestCase {
+
+    private File root;
+
+    protected void setUp() throws IOException {
+        root = File.createTempFile("blobs", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    protected void tearDown() {
+        delete(root);
+    }
+
+    public void testReleaseLastReference() throws IOException {
+        BlobStore store = new BlobStore(root);
+        String hash = store.put(stream("content"), "a/1-res");
+        assertEquals(hash, store.put(stream("content"), "b/2-res"));
+        assertEquals(hash, store.put(stream("content"), "a/1-res"));
+        assertEquals(2, store.getReferenceCount(hash));
+
+        store.release(hash, "a/1-res");
+        store.release(hash, "unknown");
+        assertEquals(1, store.getReferenceCount(hash));
+        assertTrue(store.getFile(hash).exists());
+
+        store.release(hash, "b/2-res");
+        assertEquals(0, store.getReferenceCount(hash));
+        assertFalse(store.getFile(hash).exists());
+
+        // stored again after deletion
+        assertEquals(hash, store.put(stream("content"), "c/3-res"));
+        assertEquals(1, store.getReferenceCount(hash));
+        assertTrue(store.getFile(hash).exists());
+    }
+
+    public void testStagedContent() throws IOException {
+        BlobStore store = new BlobStore(root);
+        BlobStore.Staged staged = store.stage(stream("staged"));
+        assertFalse(store.getFile(staged.hash).exists());
+        store.discard(staged);
+        assertFalse(store.getFile(staged.hash).exists());
+
+        staged = store.stage(stream("staged"));
+        assertEquals(staged.hash, store.put(staged, "a/1-res"));
+        store.discard(staged);
+        assertTrue(store.getFile(staged.hash).exists());
+        assertEquals(1, store.getReferenceCount(staged.hash));
+    }
+
+    public void testSharedRoot() throws Exception {
+        final BlobStore[] stores = { new BlobStore(root), new BlobStore(root) };
+        final int count = 50;
+        final String hash = stores[0].put(stream("shared"), "keep");
+        final Exception[] failure = new Exception[1];
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        BlobStore store = stores[thread % stores.length];
+                        for (int j = 0; j < count; j++) {
+                            String reference = thread + "/" + j;
+                            store.put(stream("shared"), reference);
+                            if (j % 2 == 0) {
+                                store.release(hash, reference);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertEquals(1 + threads.length * count / 2,
+                stores[1].getReferenceCount(hash));
+        assertTrue(stores[1].getFile(hash).exists());
+    }
+
+    private static InputStream stream(String text) throws IOException {
+        return new ByteArrayInputStream(text.getBytes("UTF-8"));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.trsst.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that reads are answered from cache until a write invalidates them,
+ * that missing items are remembered only for a while, that concurrent misses
+ * share a single load, and that writes don't discard unrelated results.
+ */
+public class CachingStorageTest extends TestCase {
+
+    private File root;
+    private CountingStorage delegate;
+
+    protected void setUp() throws IOException {
+        root = File.createTempFile("cache", "");
+        root.delete();
+        root.mkdirs();
+        delegate = new CountingStorage(root);
+    }
+
+    protected void tearDown() {
+        System.clearProperty("com.trsst.server.cache.negative.ttl");
+        System.clearProperty("com.trsst.server.cache.stale");
+        System.clearProperty("com.trsst.server.storage");
+        delete(root);
+    }
+
+    public void testHit() throws IOException {
+        CachingStorage storage = new CachingStorage(delegate);
+        storage.updateEntry("f1", 1, new Date(1000), "<entry>1</entry>");
+        assertEquals("<entry>1</entry>", storage.readEntry("f1", 1));
+        assertEquals("<entry>1</entry>", storage.readEntry("f1", 1));
+        assertEquals(1, delegate.reads.get());
+        assertEquals(1, storage.getHitCount());
+        assertEquals(1, storage.getMissCount());
+    }
+
+    public void testInvalidateOnWrite() throws IOException {
+        CachingStorage storage = new CachingStorage(delegate);
+        storage.updateEntry("f1", 1, new Date(1000), "<entry>1</entry>");
+        storage.updateEntry("f2", 1, new Date(1000), "<entry>2</entry>");
+        assertEquals("<entry>1</entry>", storage.readEntry("f1", 1));
+        assertEquals("<entry>2</entry>", storage.readEntry("f2", 1));
+
+        storage.updateEntry("f1", 1, new Date(2000), "<entry>3</entry>");
+        assertEquals("<entry>3</entry>", storage.readEntry("f1", 1));
+        // other feeds are unaffected
+        assertEquals("<entry>2</entry>", storage.readEntry("f2", 1));
+        assertEquals(3, delegate.reads.get());
+
+        storage.deleteEntry("f1", 1);
+        try {
+            storage.readEntry("f1", 1);
+            fail("Read a deleted entry");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testNegativeTtl() throws Exception {
+        System.setProperty("com.trsst.server.cache.negative.ttl", "200");
+        CachingStorage storage = new CachingStorage(delegate);
+        assertMissing(storage);
+        assertMissing(storage);
+        assertEquals(1, delegate.reads.get());
+
+        Thread.sleep(300);
+        assertMissing(storage);
+        assertEquals(2, delegate.reads.get());
+
+        // written through the cache: no longer missing
+        storage.updateEntry("f1", 1, new Date(1000), "<entry>1</entry>");
+        assertEquals("<entry>1</entry>", storage.readEntry("f1", 1));
+    }
+
+    public void testSingleFlight() throws Exception {
+        final CachingStorage storage = new CachingStorage(delegate);
+        storage.updateEntry("f1", 1, new Date(1000), "<entry>1</entry>");
+        delegate.gate = new CountDownLatch(1);
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        results[index] = storage.readEntry("f1", 1);
+                    } catch (IOException e) {
+                        results[index] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long timeout = System.currentTimeMillis() + 10000;
+        while (storage.getCoalescedCount() < threads.length - 1
+                && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        delegate.gate.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (String result : results) {
+            assertEquals("<entry>1</entry>", result);
+        }
+        assertEquals(1, delegate.reads.get());
+        assertEquals(threads.length - 1, storage.getCoalescedCount());
+    }
+
+    public void testStaleFeedAfterWrite() throws IOException {
+        System.setProperty("com.trsst.server.cache.stale", "true");
+        CachingStorage storage = new CachingStorage(delegate);
+        storage.updateFeed("f1", new Date(1000), "<feed>1</feed>");
+        assertEquals("<feed>1</feed>", storage.readFeed("f1"));
+        storage.updateFeed("f1", new Date(2000), "<feed>2</feed>");
+        // never the previous version after our own write
+        assertEquals("<feed>2</feed>", storage.readFeed("f1"));
+        assertEquals(0, storage.getStaleCount());
+    }
+
+    public void testIndexedWritesKeepSpanningResults() throws IOException {
+        System.setProperty("com.trsst.server.storage", root.getPath());
+        LuceneStorage index = new LuceneStorage(new FileStorage(root));
+        try {
+            CachingStorage storage = new CachingStorage(index);
+            long global = storage.getGeneration(null);
+            long feed = storage.getGeneration("f1");
+            storage.updateEntry("f1", 1, new Date(1000), "<entry "
+                    + "xmlns=\"http://www.w3.org/2005/Atom\"><id>urn:1</id>"
+                    + "<title>one</title></entry>");
+            assertTrue(storage.getGeneration("f1") != feed);
+            // not yet searchable: queries spanning feeds are unchanged
+            assertEquals(global, storage.getGeneration(null));
+            index.sync();
+            assertTrue(storage.getGeneration(null) != global);
+        } finally {
+            index.close();
+        }
+    }
+
+    private void assertMissing(CachingStorage storage) throws IOException {
+        try {
+            storage.readEntry("f1", 1);
+            fail("Read a missing entry");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Counts entry reads, optionally holding them until released.
+     */
+    private static class CountingStorage extends FileStorage {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        CountingStorage(File root) {
+            super(root);
+        }
+
+        public String readEntry(String feedId, long entryId)
+                throws FileNotFoundException, IOException {
+            reads.incrementAndGet();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return super.readEntry(feedId, entryId);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
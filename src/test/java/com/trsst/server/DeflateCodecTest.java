@@ -0,0 +1,96 @@
+package com.trsst.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that stored documents survive compression, and that damaged or
+ * unknown encodings are rejected rather than decoded.
+ */
+public class DeflateCodecTest extends TestCase {
+
+    private static final String ENTRY = "<entry xmlns=\"http://www.w3.org/2005/Atom\" "
+            + "xmlns:trsst=\"http://trsst.com/spec/0.1\">"
+            + "<id>urn:entry:1ABCdefGHIjklMNOpqr:145e7a5d0a2</id>"
+            + "<title type=\"text\">caf\u00e9 \u2014 \ud83d\ude00</title>"
+            + "<updated>2014-05-01T12:00:00.000Z</updated></entry>";
+
+    public void testRoundTrip() throws IOException {
+        byte[] encoded = DeflateCodec.encode(ENTRY);
+        assertTrue(encoded.length < ENTRY.getBytes("UTF-8").length);
+        assertTrue(DeflateCodec.isEncoded(ByteBuffer.wrap(encoded)));
+        assertEquals(ENTRY, DeflateCodec.decode(ByteBuffer.wrap(encoded)));
+
+        // direct buffers, as from a memory mapping
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+        direct.put(encoded).flip();
+        assertEquals(ENTRY, DeflateCodec.decode(direct));
+
+        assertEquals("", DeflateCodec.decode(ByteBuffer.wrap(DeflateCodec
+                .encode(""))));
+
+        // larger than the initial output estimate
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append(Integer.toHexString(i * 7919));
+        }
+        String text = builder.toString();
+        assertEquals(text, DeflateCodec.decode(ByteBuffer.wrap(DeflateCodec
+                .encode(text))));
+    }
+
+    public void testPlainTextIsNotEncoded() throws IOException {
+        assertFalse(DeflateCodec.isEncoded(ByteBuffer.wrap(ENTRY
+                .getBytes("UTF-8"))));
+        assertFalse(DeflateCodec.isEncoded(ByteBuffer.wrap(new byte[] {
+                (byte) 0xFE, 'T', 'Z' })));
+    }
+
+    public void testRejectBadHeader() throws IOException {
+        byte[] encoded = DeflateCodec.encode(ENTRY);
+
+        byte[] version = encoded.clone();
+        version[3] = 99;
+        assertRejected(version);
+
+        byte[] length = encoded.clone();
+        ByteBuffer.wrap(length, 4, 4).putInt(ENTRY.length() * 4);
+        assertRejected(length);
+
+        byte[] negative = encoded.clone();
+        ByteBuffer.wrap(negative, 4, 4).putInt(-1);
+        assertRejected(negative);
+
+        byte[] oversized = encoded.clone();
+        ByteBuffer.wrap(oversized, 4, 4).putInt(Integer.MAX_VALUE);
+        assertRejected(oversized);
+
+        byte[] shorter = encoded.clone();
+        ByteBuffer.wrap(shorter, 4, 4).putInt(ENTRY.length() / 2);
+        assertRejected(shorter);
+
+        byte[] trailing = Arrays.copyOf(encoded, encoded.length + 3);
+        assertRejected(trailing);
+
+        assertRejected(Arrays.copyOf(encoded, encoded.length / 2));
+
+        byte[] corrupt = encoded.clone();
+        for (int i = 8; i < corrupt.length; i++) {
+            corrupt[i] = (byte) 0xFF;
+        }
+        assertRejected(corrupt);
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            DeflateCodec.decode(ByteBuffer.wrap(data));
+            fail("Decoded invalid data");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.trsst.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the entry manifest survives an interrupted append, and keeps its
+ * ordering through appends, out-of-order updates, and removals.
+ */
+public class EntryManifestTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("entries", ".manifest");
+        file.delete();
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * A torn trailing record is dropped on load, and later appends remain
+     * readable.
+     */
+    public void testRecoverFromTornRecord() throws IOException {
+        EntryManifest manifest = new EntryManifest(file);
+        manifest.load();
+        manifest.put(1, 100);
+        manifest.put(2, 200);
+        manifest.put(3, 300);
+
+        // simulate a crash partway through an append
+        FileOutputStream output = new FileOutputStream(file, true);
+        output.write(new byte[] { 1, 2, 3, 4, 5 });
+        output.close();
+
+        manifest = new EntryManifest(file);
+        manifest.load();
+        assertEquals(3, manifest.size());
+        assertEquals(48, file.length());
+
+        manifest.put(4, 400);
+        manifest.remove(2);
+
+        manifest = new EntryManifest(file);
+        manifest.load();
+        assertEquals(3, manifest.size());
+        assertTrue(manifest.contains(1));
+        assertFalse(manifest.contains(2));
+        assertEquals(300, manifest.getDate(3));
+        assertEquals(400, manifest.getDate(4));
+        long[] ids = manifest.getEntryIds(0, 10, 0, 0);
+        assertEquals(3, ids.length);
+        assertEquals(4, ids[0]);
+        assertEquals(1, ids[2]);
+    }
+
+    public void testOrderingMatchesModel() throws IOException {
+        EntryManifest manifest = new EntryManifest(file);
+        manifest.load();
+        final Map<Long, Long> model = new HashMap<Long, Long>();
+        Random random = new Random(42);
+        long next = 1000;
+        for (int i = 0; i < 2000; i++) {
+            int op = random.nextInt(10);
+            if (op < 6) {
+                // new post: newest date and highest id
+                next += 1 + random.nextInt(3);
+                manifest.put(next, next);
+                model.put(next, next);
+            } else if (op < 8) {
+                long id = 1 + random.nextInt((int) next);
+                long date = random.nextInt((int) next);
+                manifest.put(id, date);
+                model.put(id, date);
+            } else if (!model.isEmpty()) {
+                Long id = new ArrayList<Long>(model.keySet()).get(random
+                        .nextInt(model.size()));
+                manifest.remove(id);
+                model.remove(id);
+            }
+            if (i % 100 == 0) {
+                assertMatches(model, manifest);
+            }
+        }
+        assertMatches(model, manifest);
+
+        manifest = new EntryManifest(file);
+        manifest.load();
+        assertMatches(model, manifest);
+    }
+
+    private static void assertMatches(Map<Long, Long> model,
+            EntryManifest manifest) {
+        long[] expected = expected(model);
+        assertEquals(expected.length, manifest.size());
+        assertTrue(Arrays.equals(expected,
+                manifest.getEntryIds(0, Integer.MAX_VALUE, 0, 0)));
+        if (expected.length > 10) {
+            long[] page = manifest.getEntryIdsAfter(expected[4], 5, 0, 0);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 5, 10),
+                    page));
+            long time = model.get(expected[expected.length / 2]);
+            int newer = 0;
+            for (long date : model.values()) {
+                if (date > time) {
+                    newer++;
+                }
+            }
+            assertEquals(newer, manifest.getEntryCount(time, 0));
+            assertEquals(expected.length - newer,
+                    manifest.getEntryCount(0, time + 1));
+        }
+        for (Map.Entry<Long, Long> e : model.entrySet()) {
+            assertEquals(e.getValue().longValue(),
+                    manifest.getDate(e.getKey()));
+        }
+    }
+
+    private static long[] expected(final Map<Long, Long> model) {
+        List<Long> ids = new ArrayList<Long>(model.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            public int compare(Long a, Long b) {
+                int c = model.get(b).compareTo(model.get(a));
+                return c != 0 ? c : b.compareTo(a);
+            }
+        });
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+}
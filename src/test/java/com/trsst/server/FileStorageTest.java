@@ -0,0 +1,237 @@
+package com.trsst.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import com.trsst.Common;
+
+/**
+ * Tests that entry listings survive updates, deletes, reloading, and migration
+ * from the flat layout, and that reads through memory mappings see every
+ * completed write and delete, including while the same entry is being
+ * rewritten.
+ */
+public class FileStorageTest extends TestCase {
+
+    private File root;
+    private FileStorage storage;
+
+    protected void setUp() throws IOException {
+        root = File.createTempFile("files", "");
+        root.delete();
+        root.mkdirs();
+        System.setProperty("com.trsst.server.storage.mmap", "true");
+        storage = new FileStorage(root);
+    }
+
+    protected void tearDown() {
+        System.clearProperty("com.trsst.server.storage.mmap");
+        delete(root);
+    }
+
+    public void testManifestAfterUpdateDeleteReload() throws IOException {
+        for (int i = 1; i <= 20; i++) {
+            storage.updateEntry("f1", i, new Date(i * 1000), "<entry>" + i
+                    + "</entry>");
+        }
+        // moved back in time, then deleted
+        storage.updateEntry("f1", 20, new Date(500), "<entry>20</entry>");
+        storage.updateEntry("f1", 5, new Date(25000), "<entry>5</entry>");
+        for (int i = 2; i <= 20; i += 2) {
+            storage.deleteEntry("f1", i);
+        }
+        storage.deleteEntry("f1", 99); // never existed
+        assertEntries();
+
+        storage = new FileStorage(root);
+        assertEntries();
+
+        // without a manifest, listings are rebuilt from the entry files
+        File manifest = new File(storage.getEntryFileForFeedEntry("f1", 1)
+                .getParentFile(), FileStorage.ENTRY_MANIFEST);
+        if (!manifest.exists()) {
+            manifest = new File(manifest.getParentFile().getParentFile(),
+                    FileStorage.ENTRY_MANIFEST);
+        }
+        assertTrue(manifest.delete());
+        storage = new FileStorage(root);
+        assertEntries();
+    }
+
+    private void assertEntries() throws IOException {
+        long[] expected = { 5, 19, 17, 15, 13, 11, 9, 7, 3, 1 };
+        assertEquals(10, storage.getEntryCountForFeedId("f1", null, null,
+                null, null, null, null));
+        assertTrue(Arrays.equals(expected, storage.getEntryIdsForFeedId("f1",
+                0, 20, null, null, null, null, null, null)));
+        assertTrue(Arrays.equals(new long[] { 15, 13, 11 }, storage
+                .getEntryIdsForFeedId("f1", 3, 3, null, null, null, null,
+                        null, null)));
+        assertEquals(4, storage.getEntryCountForFeedId("f1", new Date(14000),
+                null, null, null, null, null));
+        assertTrue(Arrays.equals(new long[] { 13, 11 }, storage
+                .getEntryIdsForFeedIdFromCursor("f1", 15, 2, null, null,
+                        null, null, null, null)));
+        assertEquals("<entry>5</entry>", storage.readEntry("f1", 5));
+        try {
+            storage.readEntry("f1", 20);
+            fail("Read a deleted entry");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testMigrateFlatRoot() throws IOException {
+        File flatRoot = new File(root, "flat");
+        flatRoot.mkdirs();
+        FileOutputStream output = new FileOutputStream(new File(flatRoot,
+                FileStorage.STORAGE_PROPERTIES));
+        output.write("layout=flat\n".getBytes("UTF-8"));
+        output.close();
+
+        FileStorage flat = new FileStorage(flatRoot);
+        String[] feedIds = { "alpha", "beta", "gamma" };
+        for (String feedId : feedIds) {
+            flat.updateFeed(feedId, new Date(1000), "<feed>" + feedId
+                    + "</feed>");
+            for (int i = 1; i <= 5; i++) {
+                // spread over several time buckets
+                long entryId = i * (1L << 32) + 7;
+                flat.updateEntry(feedId, entryId, new Date(entryId), "<entry>"
+                        + feedId + i + "</entry>");
+                flat.updateFeedEntryResource(feedId, entryId, "r" + i,
+                        "text/plain", null, (feedId + i).getBytes("UTF-8"));
+            }
+            flat.deleteEntry(feedId, 3 * (1L << 32) + 7);
+            assertTrue(new File(flatRoot, feedId).isDirectory());
+        }
+
+        assertEquals(feedIds.length, flat.migrate(null));
+        for (String feedId : feedIds) {
+            assertFalse(new File(flatRoot, feedId).exists());
+        }
+        assertMigrated(flat, feedIds);
+        assertMigrated(new FileStorage(flatRoot), feedIds);
+    }
+
+    public void testMigrateRefusedWhileInUse() throws IOException {
+        new FileStorage(root);
+        try {
+            storage.migrate(null);
+            fail("Migrated a root in use");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static void assertMigrated(FileStorage storage, String[] feedIds)
+            throws IOException {
+        for (String feedId : feedIds) {
+            assertEquals("<feed>" + feedId + "</feed>",
+                    storage.readFeed(feedId));
+            assertEquals(4, storage.getEntryCountForFeedId(feedId, null, null,
+                    null, null, null, null));
+            assertEquals(4, storage.getEntryIdsForFeedId(feedId, 0, 10, null,
+                    null, null, null, null, null).length);
+            for (int i = 1; i <= 5; i++) {
+                long entryId = i * (1L << 32) + 7;
+                if (i == 3) {
+                    assertFalse(storage.hasEntry(feedId, entryId));
+                    continue;
+                }
+                assertEquals("<entry>" + feedId + i + "</entry>",
+                        storage.readEntry(feedId, entryId));
+                assertTrue(storage.getEntryFileForFeedEntry(feedId, entryId)
+                        .getParentFile().getName().length() < 16);
+                assertEquals(feedId + i, new String(Common.readFully(storage
+                        .readFeedEntryResource(feedId, entryId, "r" + i)),
+                        "UTF-8"));
+            }
+        }
+    }
+
+    public void testMappedReadAfterWrite() throws IOException {
+        storage.updateEntry("f1", 1, new Date(10), "<entry>one</entry>");
+        assertEquals("<entry>one</entry>", storage.readEntry("f1", 1));
+        storage.updateEntry("f1", 1, new Date(20), "<entry>two</entry>");
+        assertEquals("<entry>two</entry>", storage.readEntry("f1", 1));
+        storage.deleteEntry("f1", 1);
+        try {
+            storage.readEntry("f1", 1);
+            fail("Read a deleted entry");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testMappedReadDuringUpdates() throws Exception {
+        final int count = 500;
+        storage.updateEntry("f1", 1, new Date(1), "<entry>0</entry>");
+        final AtomicBoolean done = new AtomicBoolean();
+        final Exception[] failure = new Exception[1];
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            try {
+                                storage.readEntry("f1", 1);
+                            } catch (FileNotFoundException e) {
+                                // between a delete and an update
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        try {
+            for (int i = 1; i <= count; i++) {
+                if (i % 10 == 0) {
+                    storage.deleteEntry("f1", 1);
+                }
+                storage.updateEntry("f1", 1, new Date(i), "<entry>" + i
+                        + "</entry>");
+                // each completed write is visible to the next read
+                assertEquals("<entry>" + i + "</entry>",
+                        storage.readEntry("f1", 1));
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        storage.deleteEntry("f1", 1);
+        try {
+            storage.readEntry("f1", 1);
+            fail("Read a deleted entry");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.trsst.server;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests text extraction from html summaries and content.
+ */
+public class HtmlTextExtractorTest extends TestCase {
+
+    private HtmlTextExtractor extractor;
+
+    protected void setUp() {
+        extractor = new HtmlTextExtractor();
+    }
+
+    public void testEntities() {
+        assertEquals("fish & chips", extractor.extract("fish &amp; chips"));
+        assertEquals("<b>", extractor.extract("&lt;b&gt;"));
+        assertEquals("caf\u00e9 \u00a9 \u2014",
+                extractor.extract("caf&eacute; &copy; &mdash;"));
+        assertEquals("AB", extractor.extract("&#65;&#x42;"));
+        assertEquals("a b", extractor.extract("a&nbsp;&#160;b"));
+        // unrecognized or unterminated entities are text
+        assertEquals("&bogus; &#xZZ; AT&T", extractor
+                .extract("&bogus; &#xZZ; AT&T"));
+    }
+
+    public void testScriptAndStyle() {
+        assertEquals("before after", extractor
+                .extract("before<script type=\"text/javascript\">"
+                        + "if (a < b && c > d) { alert('</p>'); }"
+                        + "</SCRIPT>after"));
+        assertEquals("text", extractor
+                .extract("<style>p { color: red; }</style>text"));
+        // self-closing script has no content to skip
+        assertEquals("kept", extractor.extract("<script src=\"x.js\"/>kept"));
+        // unterminated script drops the rest
+        assertEquals("start", extractor.extract("start<script>var x = 1;"));
+    }
+
+    public void testComments() {
+        assertEquals("a b", extractor.extract("a<!-- <p>hidden</p> -->b"));
+        assertEquals("a", extractor.extract("a<!-- unterminated"));
+        assertEquals("doc", extractor.extract("<!DOCTYPE html><p>doc</p>"));
+    }
+
+    public void testTagsAndWhitespace() {
+        assertEquals("a b", extractor.extract("a<br>b"));
+        assertEquals("link text", extractor
+                .extract("<a href=\"x?a>b\" title='c>d'>link</a>\n\t text"));
+        assertEquals("a < b", extractor.extract("a < b"));
+        assertEquals("", extractor.extract("  <p> </p>  "));
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.trsst.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that cursor paging visits every entry exactly once, including entries
+ * that share an id across feeds and entries in different monthly shards.
+ */
+public class LuceneStorageCursorTest extends TestCase {
+
+    private static final long JANUARY = 1388534400000L; // 2014-01-01
+    private static final long FEBRUARY = 1391212800000L; // 2014-02-01
+
+    private File root;
+    private LuceneStorage storage;
+
+    protected void setUp() throws IOException {
+        root = File.createTempFile("storage", "");
+        root.delete();
+        root.mkdirs();
+        System.setProperty("com.trsst.server.storage", root.getPath());
+        storage = new LuceneStorage(new FileStorage(root));
+        // the same entry ids in each feed, on both sides of a month boundary
+        String[] feedIds = { "fa", "fb", "fc" };
+        for (String feedId : feedIds) {
+            for (int i = 0; i < 3; i++) {
+                put(feedId, JANUARY + 1000 + i);
+                put(feedId, FEBRUARY + 1000 + i);
+            }
+        }
+        put("fa", JANUARY + 5000);
+        storage.sync();
+    }
+
+    protected void tearDown() throws IOException {
+        storage.close();
+        System.clearProperty("com.trsst.server.storage");
+        delete(root);
+    }
+
+    public void testPagingAcrossFeeds() {
+        String[] all = storage.getEntryIdsFromCursor(null, 100, null, null,
+                null, null, null, null);
+        assertEquals(19, all.length);
+
+        List<String> paged = new ArrayList<String>();
+        String cursor = null;
+        String[] page;
+        do {
+            page = storage.getEntryIdsFromCursor(cursor, 2, null, null, null,
+                    null, null, null);
+            paged.addAll(Arrays.asList(page));
+            if (page.length > 0) {
+                cursor = page[page.length - 1];
+            }
+        } while (page.length == 2);
+        assertEquals(Arrays.asList(all), paged);
+    }
+
+    public void testPagingAcrossShards() {
+        long[] all = storage.getEntryIdsForFeedId("fa", 0, 100, null, null,
+                null, null, null, null);
+        assertEquals(7, all.length);
+
+        List<Long> expected = new ArrayList<Long>();
+        for (long entryId : all) {
+            expected.add(entryId);
+        }
+        List<Long> paged = new ArrayList<Long>();
+        long cursor = 0;
+        long[] page;
+        do {
+            page = storage.getEntryIdsForFeedIdFromCursor("fa", cursor, 2,
+                    null, null, null, null, null, null);
+            for (long entryId : page) {
+                paged.add(entryId);
+            }
+            if (page.length > 0) {
+                cursor = page[page.length - 1];
+            }
+        } while (page.length == 2);
+        assertEquals(expected, paged);
+        assertEquals(FEBRUARY + 1002, all[0]);
+        assertEquals(JANUARY + 1000, all[all.length - 1]);
+    }
+
+    private void put(String feedId, long entryId) throws IOException {
+        storage.updateEntry(feedId, entryId, new Date(entryId),
+                "<entry xmlns=\"http://www.w3.org/2005/Atom\"><id>urn:entry:"
+                        + feedId + ':' + Long.toHexString(entryId)
+                        + "</id><title>" + entryId + "</title></entry>");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
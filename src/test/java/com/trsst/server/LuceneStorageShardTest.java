@@ -0,0 +1,102 @@
+package com.trsst.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that entries are found across more shards than are kept open, and
+ * that entry ids beyond the range of shard names share the boundary shards.
+ */
+public class LuceneStorageShardTest extends TestCase {
+
+    private static final long JANUARY = 1388534400000L; // 2014-01-01
+    private static final long MONTH = 31L * 24 * 60 * 60 * 1000;
+    private static final long FUTURE = 300000000000000L; // year 11476
+
+    private File root;
+    private LuceneStorage storage;
+
+    protected void setUp() throws IOException {
+        root = File.createTempFile("shards", "");
+        root.delete();
+        root.mkdirs();
+        System.setProperty("com.trsst.server.storage", root.getPath());
+        System.setProperty("com.trsst.server.index.open", "2");
+        storage = new LuceneStorage(new FileStorage(root));
+    }
+
+    protected void tearDown() throws IOException {
+        storage.close();
+        System.clearProperty("com.trsst.server.storage");
+        System.clearProperty("com.trsst.server.index.open");
+        delete(root);
+    }
+
+    public void testShardNames() {
+        assertEquals("201401", IndexShard.getName(JANUARY));
+        assertEquals("999912", IndexShard.getName(FUTURE));
+        assertEquals("999912", IndexShard.getName(Long.MAX_VALUE));
+        assertEquals("197001", IndexShard.getName(-1));
+        assertEquals(IndexShard.MIN_TIME, IndexShard.parse("197001"));
+        try {
+            IndexShard.parse("1000001");
+            fail("Parsed an invalid shard name");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testSearchAcrossShards() throws IOException {
+        String[] expected = new String[7];
+        put(FUTURE);
+        expected[0] = "fa:" + Long.toHexString(FUTURE);
+        for (int i = 0; i < 6; i++) {
+            long entryId = JANUARY + (5 - i) * MONTH;
+            put(entryId);
+            expected[i + 1] = "fa:" + Long.toHexString(entryId);
+        }
+        storage.sync();
+        assertFound(expected);
+        assertTrue(new File(new File(root, "entry.idx"), "999912")
+                .isDirectory());
+
+        // beyond the last month: only the boundary shard
+        assertTrue(Arrays.equals(new String[] { expected[0] }, storage
+                .getEntryIds(0, 100, new Date(IndexShard.MAX_TIME), null,
+                        null, null, null, null)));
+
+        // shards are opened again as needed
+        storage.close();
+        storage = new LuceneStorage(new FileStorage(root));
+        assertFound(expected);
+    }
+
+    private void assertFound(String[] expected) {
+        assertEquals(expected.length, storage.getEntryCount(null, null, null,
+                null, null, null));
+        assertTrue(Arrays.equals(expected, storage.getEntryIds(0, 100, null,
+                null, null, null, null, null)));
+    }
+
+    private void put(long entryId) throws IOException {
+        storage.updateEntry("fa", entryId, new Date(entryId),
+                "<entry xmlns=\"http://www.w3.org/2005/Atom\"><id>urn:entry:fa:"
+                        + Long.toHexString(entryId) + "</id><title>"
+                        + entryId + "</title></entry>");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
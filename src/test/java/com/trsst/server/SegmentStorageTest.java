@@ -0,0 +1,87 @@
+package com.trsst.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import com.trsst.Common;
+
+/**
+ * Tests that compaction preserves live records and deletions, both in the
+ * running store and after replaying the compacted segments.
+ */
+public class SegmentStorageTest extends TestCase {
+
+    private File root;
+    private SegmentStorage storage;
+
+    protected void setUp() throws IOException {
+        root = File.createTempFile("segments", "");
+        root.delete();
+        System.setProperty("com.trsst.server.segment.size", "2000");
+        storage = new SegmentStorage(root);
+    }
+
+    protected void tearDown() throws IOException {
+        storage.close();
+        System.clearProperty("com.trsst.server.segment.size");
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        root.delete();
+    }
+
+    public void testCompactionRoundTrip() throws IOException {
+        storage.updateFeed("f1", new Date(5), "<feed>one</feed>");
+        for (int i = 1; i <= 50; i++) {
+            storage.updateEntry("f1", i, new Date(i * 10), "<entry>" + i
+                    + "</entry>");
+        }
+        for (int i = 1; i <= 40; i++) {
+            storage.deleteEntry("f1", i);
+        }
+        storage.updateFeed("f1", new Date(6), "<feed>two</feed>");
+        storage.updateFeedEntryResource("f1", 45, "r", "text/plain",
+                new Date(), "hello".getBytes("UTF-8"));
+        int before = root.list().length;
+
+        storage.compact();
+        assertTrue(root.list().length < before);
+        assertContents();
+
+        storage.close();
+        storage = new SegmentStorage(root);
+        assertContents();
+    }
+
+    private void assertContents() throws IOException {
+        assertEquals("<feed>two</feed>", storage.readFeed("f1"));
+        assertEquals(10, storage.getEntryCountForFeedId("f1", null, null,
+                null, null, null, null));
+        long[] expected = { 50, 49, 48, 47, 46, 45, 44, 43, 42, 41 };
+        assertTrue(Arrays.equals(expected, storage.getEntryIdsForFeedId("f1",
+                0, 20, null, null, null, null, null, null)));
+        for (long entryId : expected) {
+            assertEquals("<entry>" + entryId + "</entry>",
+                    storage.readEntry("f1", entryId));
+        }
+        try {
+            storage.readEntry("f1", 3);
+            fail("Deleted entry was restored");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        assertEquals("text/plain",
+                storage.readFeedEntryResourceType("f1", 45, "r"));
+        assertEquals("hello", new String(Common.readFully(storage
+                .readFeedEntryResource("f1", 45, "r")), "UTF-8"));
+    }
+
+}